@@ -0,0 +1,77 @@
+package edu.wisc.cs.sdn.vnet.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.floodlightcontroller.packet.MACAddress;
+
+import edu.wisc.cs.sdn.vnet.rt.ArpCache;
+import edu.wisc.cs.sdn.vnet.rt.ArpEntry;
+
+/**
+ * ARP cache lookups for next hops that are mostly present.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = { "-Xms2g", "-Xmx2g" })
+@State(Scope.Thread)
+public class ArpCacheBenchmark
+{
+	@Param({ "10", "100", "1000", "10000", "100000", "1000000" })
+	public int size;
+
+	/** Share of lookups for addresses that are in the cache */
+	@Param({ "95" })
+	public int hitPercent;
+
+	private ArpCache cache;
+
+	private int[] traffic;
+
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setup()
+	{
+		Random random = new Random(Workloads.SEED);
+		this.cache = new ArpCache();
+		int[] ips = new int[this.size];
+		for (int i = 0; i < this.size; i++)
+		{
+			ips[i] = random.nextInt();
+			this.cache.insert(MACAddress.valueOf(random.nextLong() 
+					& 0xfeffffffffffL), ips[i]);
+		}
+
+		this.traffic = new int[Workloads.TRAFFIC_SIZE];
+		for (int i = 0; i < this.traffic.length; i++)
+		{
+			this.traffic[i] = (random.nextInt(100) < this.hitPercent)
+					? ips[random.nextInt(this.size)] : random.nextInt();
+		}
+		this.next = 0;
+	}
+
+	@Benchmark
+	public ArpEntry lookup()
+	{
+		int ip = this.traffic[this.next];
+		this.next = (this.next + 1) & (Workloads.TRAFFIC_SIZE - 1);
+		return this.cache.lookup(ip);
+	}
+}
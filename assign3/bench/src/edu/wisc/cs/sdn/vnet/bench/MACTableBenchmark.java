@@ -0,0 +1,84 @@
+package edu.wisc.cs.sdn.vnet.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.floodlightcontroller.packet.MACAddress;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.sw.MACTable;
+import edu.wisc.cs.sdn.vnet.sw.MACTableEntry;
+
+/**
+ * MAC learning table operations as a switch performs them for every frame:
+ * learning (refreshing) the source address and looking up the destination.
+ * Measurements are short enough that the table's 15 second timeout never
+ * removes entries.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = { "-Xms2g", "-Xmx2g" })
+@State(Scope.Thread)
+public class MACTableBenchmark
+{
+	@Param({ "10", "100", "1000", "10000", "100000", "1000000" })
+	public int size;
+
+	private MACTable table;
+
+	private Iface[] ifaces;
+
+	private MACAddress[] traffic;
+
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setup()
+	{
+		Random random = new Random(Workloads.SEED);
+		this.ifaces = Workloads.interfaces(4);
+		this.table = new MACTable();
+		MACAddress[] macs = new MACAddress[this.size];
+		for (int i = 0; i < this.size; i++)
+		{
+			macs[i] = MACAddress.valueOf(random.nextLong() & 0xfeffffffffffL);
+			this.table.insert(macs[i], this.ifaces[i % this.ifaces.length]);
+		}
+
+		this.traffic = new MACAddress[Workloads.TRAFFIC_SIZE];
+		for (int i = 0; i < this.traffic.length; i++)
+		{ this.traffic[i] = macs[random.nextInt(this.size)]; }
+		this.next = 0;
+	}
+
+	@Benchmark
+	public MACTableEntry lookup()
+	{
+		MACAddress mac = this.traffic[this.next];
+		this.next = (this.next + 1) & (Workloads.TRAFFIC_SIZE - 1);
+		return this.table.lookup(mac);
+	}
+
+	@Benchmark
+	public void insert()
+	{
+		MACAddress mac = this.traffic[this.next];
+		this.next = (this.next + 1) & (Workloads.TRAFFIC_SIZE - 1);
+		this.table.insert(mac, this.ifaces[this.next & 3]);
+	}
+}
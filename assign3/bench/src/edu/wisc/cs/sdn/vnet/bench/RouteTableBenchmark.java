@@ -0,0 +1,103 @@
+package edu.wisc.cs.sdn.vnet.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.wisc.cs.sdn.vnet.rt.RouteEntry;
+import edu.wisc.cs.sdn.vnet.rt.RouteTable;
+
+/**
+ * Single-threaded route table lookups: longest-prefix match (one address or
+ * a batch) and exact match by prefix and mask, with and without the
+ * compiled DIR-24-8 forwarding table.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = { "-Xms2g", "-Xmx2g" })
+@State(Scope.Thread)
+public class RouteTableBenchmark
+{
+	/** Number of addresses looked up per batch */
+	private static final int BATCH_SIZE = 64;
+
+	@Param({ "10", "100", "1000", "10000", "100000", "1000000" })
+	public int size;
+
+	@Param({ "false", "true" })
+	public boolean compiled;
+
+	/** Share of lookup addresses that fall inside some route */
+	@Param({ "90" })
+	public int hitPercent;
+
+	private RouteTable table;
+
+	private int[] dstIps;
+
+	private int[] maskIps;
+
+	private int[] traffic;
+
+	private int[] batch;
+
+	private RouteEntry[] results;
+
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setup()
+	{
+		this.table = new RouteTable();
+		this.table.setCompiled(this.compiled);
+		this.dstIps = new int[this.size];
+		this.maskIps = new int[this.size];
+		Workloads.populate(this.table, this.size, Workloads.interfaces(4),
+				this.dstIps, this.maskIps);
+		this.traffic = Workloads.traffic(this.dstIps, this.maskIps, this.size,
+				this.hitPercent);
+		this.batch = new int[BATCH_SIZE];
+		this.results = new RouteEntry[BATCH_SIZE];
+		this.next = 0;
+	}
+
+	@Benchmark
+	public RouteEntry lookup()
+	{
+		int ip = this.traffic[this.next];
+		this.next = (this.next + 1) & (Workloads.TRAFFIC_SIZE - 1);
+		return this.table.lookup(ip);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public RouteEntry[] lookupBatch()
+	{
+		System.arraycopy(this.traffic, this.next, this.batch, 0, BATCH_SIZE);
+		this.next = (this.next + BATCH_SIZE) & (Workloads.TRAFFIC_SIZE - 1);
+		this.table.lookup(this.batch, BATCH_SIZE, this.results);
+		return this.results;
+	}
+
+	@Benchmark
+	public RouteEntry find()
+	{
+		int route = this.next % this.size;
+		this.next = (this.next + 1) & (Workloads.TRAFFIC_SIZE - 1);
+		return this.table.find(this.dstIps[route], this.maskIps[route]);
+	}
+}
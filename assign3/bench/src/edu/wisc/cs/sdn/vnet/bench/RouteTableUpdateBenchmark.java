@@ -0,0 +1,129 @@
+package edu.wisc.cs.sdn.vnet.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.rt.Rib;
+import edu.wisc.cs.sdn.vnet.rt.RouteEntry;
+import edu.wisc.cs.sdn.vnet.rt.RouteTable;
+
+/**
+ * Route table lookups from several forwarding threads while a RIP thread
+ * applies responses to the same table. Each response carries 25 entries,
+ * the most a RIPv2 packet holds, and changes the metric of each route so
+ * every response publishes a new version of the table.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = { "-Xms2g", "-Xmx2g" })
+@State(Scope.Group)
+public class RouteTableUpdateBenchmark
+{
+	/** Entries in each RIP response */
+	private static final int RESPONSE_SIZE = 25;
+
+	/** Number of distinct prefixes the RIP thread advertises */
+	private static final int RIP_PREFIXES = 1000;
+
+	@Param({ "10", "1000", "100000", "1000000" })
+	public int size;
+
+	private RouteTable table;
+
+	private Rib rib;
+
+	private Iface ripIface;
+
+	private int[] ripDstIps;
+
+	private int[] ripMaskIps;
+
+	private int[] traffic;
+
+	private int nextResponse;
+
+	@Setup(Level.Trial)
+	public void setup()
+	{
+		this.table = new RouteTable();
+		this.rib = new Rib(this.table);
+		Iface[] ifaces = Workloads.interfaces(4);
+		int[] dstIps = new int[this.size];
+		int[] maskIps = new int[this.size];
+		Workloads.populate(this.table, this.size, ifaces, dstIps, maskIps);
+		this.traffic = Workloads.traffic(dstIps, maskIps, this.size, 90);
+
+		// RIP routes live in the block populate leaves out, so they never
+		// replace the static routes
+		this.ripIface = ifaces[0];
+		this.ripDstIps = new int[RIP_PREFIXES];
+		this.ripMaskIps = new int[RIP_PREFIXES];
+		for (int i = 0; i < RIP_PREFIXES; i++)
+		{
+			this.ripDstIps[i] = Workloads.RESERVED_BLOCK | (i << 8);
+			this.ripMaskIps[i] = Workloads.maskOf(24);
+		}
+		this.nextResponse = 0;
+	}
+
+	/** Position of one forwarding thread in the lookup traffic */
+	@State(Scope.Thread)
+	public static class Reader
+	{
+		int next;
+
+		@Setup(Level.Trial)
+		public void setup()
+		{ this.next = (int)(Thread.currentThread().getId() * 7919); }
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(3)
+	public RouteEntry lookup(Reader reader)
+	{
+		int i = reader.next & (Workloads.TRAFFIC_SIZE - 1);
+		reader.next = i + 1;
+		return this.table.lookup(this.traffic[i]);
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(1)
+	public long ripResponse()
+	{
+		int first = (this.nextResponse * RESPONSE_SIZE) % RIP_PREFIXES;
+		int metric = 1 + (this.nextResponse % 15);
+		long now = System.currentTimeMillis();
+		this.rib.beginUpdate();
+		try
+		{
+			for (int i = first; i < first + RESPONSE_SIZE; i++)
+			{
+				this.rib.add(this.ripDstIps[i], this.ripMaskIps[i], 
+						Rib.Source.RIP, 0x0A000002, this.ripIface, metric, now);
+			}
+		}
+		finally
+		{ this.rib.endUpdate(); }
+		this.nextResponse++;
+		return this.table.getGeneration();
+	}
+}
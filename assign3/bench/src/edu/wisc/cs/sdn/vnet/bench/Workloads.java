@@ -0,0 +1,133 @@
+package edu.wisc.cs.sdn.vnet.bench;
+
+import java.util.Random;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.rt.RouteTable;
+
+/**
+ * Generates route tables and lookup traffic for the benchmarks. Prefix
+ * lengths follow the shape of a default-free Internet table: mostly /24,
+ * then /22, /23, /20 and /21, with a few very short and very long prefixes.
+ * All generators are seeded, so every run measures the same tables.
+ */
+final class Workloads
+{
+	/** Seed used for every generated table and traffic pattern */
+	static final long SEED = 0x5DEECE66DL;
+
+	/** Number of addresses in a lookup traffic pattern; a power of two */
+	static final int TRAFFIC_SIZE = 1 << 16;
+
+	/** Address block (240.0.0.0/4) left out of generated tables, for routes
+	 * a benchmark adds itself */
+	static final int RESERVED_BLOCK = 0xF0000000;
+	static final int RESERVED_MASK = 0xF0000000;
+
+	/** Prefix lengths and their share (in tenths of a percent) of a table */
+	private static final int[][] LENGTH_SHARES = {
+		{ 8, 2 }, { 12, 3 }, { 14, 5 }, { 16, 15 }, { 17, 10 }, { 18, 15 },
+		{ 19, 30 }, { 20, 50 }, { 21, 50 }, { 22, 100 }, { 23, 100 },
+		{ 24, 580 }, { 25, 10 }, { 26, 10 }, { 27, 5 }, { 28, 5 }, { 29, 5 },
+		{ 30, 3 }, { 32, 2 }
+	};
+
+	private Workloads()
+	{ }
+
+	/**
+	 * @return a subnet mask drawn from the prefix length distribution
+	 */
+	static int randomMask(Random random)
+	{
+		int pick = random.nextInt(1000);
+		for (int[] share : LENGTH_SHARES)
+		{
+			pick -= share[1];
+			if (pick < 0)
+			{ return maskOf(share[0]); }
+		}
+		return maskOf(24);
+	}
+
+	/**
+	 * @return the subnet mask for a prefix length
+	 */
+	static int maskOf(int length)
+	{ return (0 == length) ? 0 : -1 << (32 - length); }
+
+	/**
+	 * Create interfaces for routes to point at.
+	 * @param count number of interfaces
+	 * @return the interfaces
+	 */
+	static Iface[] interfaces(int count)
+	{
+		Iface[] ifaces = new Iface[count];
+		for (int i = 0; i < count; i++)
+		{ ifaces[i] = new Iface("eth" + i); }
+		return ifaces;
+	}
+
+	/**
+	 * Fill a route table with routes to random prefixes. Prefixes that
+	 * happen to repeat replace each other, so the table may end up slightly
+	 * smaller than requested. No prefix falls inside {@link #RESERVED_BLOCK},
+	 * so routes a benchmark adds there never replace these.
+	 * @param table route table to fill
+	 * @param size number of routes to add
+	 * @param ifaces interfaces for routes to point at
+	 * @param dstIps receives the destination of each route
+	 * @param maskIps receives the subnet mask of each route
+	 */
+	static void populate(RouteTable table, int size, Iface[] ifaces,
+			int[] dstIps, int[] maskIps)
+	{
+		Random random = new Random(SEED);
+		long now = System.currentTimeMillis();
+		table.beginUpdate();
+		try
+		{
+			for (int i = 0; i < size; i++)
+			{
+				int maskIp = randomMask(random);
+				int dstIp = random.nextInt() & maskIp;
+				while (RESERVED_BLOCK == (dstIp & RESERVED_MASK))
+				{ dstIp = random.nextInt() & maskIp; }
+				dstIps[i] = dstIp;
+				maskIps[i] = maskIp;
+				table.insert(dstIp, random.nextInt() | 1, maskIp,
+						ifaces[i % ifaces.length], 1 + random.nextInt(15), now);
+			}
+		}
+		finally
+		{ table.endUpdate(); }
+	}
+
+	/**
+	 * Generate destination addresses for lookups. Hits fall inside a random
+	 * route's prefix; the rest are uniformly random and mostly miss.
+	 * @param dstIps destination of each route
+	 * @param maskIps subnet mask of each route
+	 * @param count number of routes
+	 * @param hitPercent share of addresses that fall inside some route
+	 * @return {@link #TRAFFIC_SIZE} addresses
+	 */
+	static int[] traffic(int[] dstIps, int[] maskIps, int count, 
+			int hitPercent)
+	{
+		Random random = new Random(SEED + 1);
+		int[] ips = new int[TRAFFIC_SIZE];
+		for (int i = 0; i < ips.length; i++)
+		{
+			if (count > 0 && random.nextInt(100) < hitPercent)
+			{
+				int route = random.nextInt(count);
+				ips[i] = dstIps[route] | (random.nextInt() & ~maskIps[route]);
+			}
+			else
+			{ ips[i] = random.nextInt(); }
+		}
+		return ips;
+	}
+}
@@ -91,6 +91,14 @@ public abstract class Device
 		return iface;
 	}
 	
+	/**
+	 * Called once the device's interfaces and their addresses have been set
+	 * from the hardware information, so a device can rebuild anything it
+	 * derives from them. Does nothing by default.
+	 */
+	public void interfacesChanged()
+	{ }
+	
 	/**
 	 * Gets an interface on the device by the interface's name.
 	 * @param ifaceName name of the desired interface
@@ -109,6 +117,39 @@ public abstract class Device
 	 */
 	public boolean sendPacket(Ethernet etherPacket, Iface iface)
 	{ return this.vnsComm.sendPacket(etherPacket, iface.getName()); }
+
+	/**
+	 * Send a serialized Ethernet frame out a specific interface. The frame
+	 * must be stored in a buffer received by {@link #handleRawPacket}, or
+	 * in another buffer with room for the VNS command header before it.
+	 * @param buf buffer holding the frame
+	 * @param frameOffset position of the frame in the buffer
+	 * @param frameLength length of the frame
+	 * @param iface interface on which to send the frame
+	 * @return true if the frame was sent successfully, otherwise false
+	 */
+	public boolean sendRawPacket(byte[] buf, int frameOffset, int frameLength,
+			Iface iface)
+	{ 
+		return this.vnsComm.sendRawPacket(buf, frameOffset, frameLength, 
+				iface.getName()); 
+	}
+
+	/**
+	 * Handle a received Ethernet frame without decoding it, if possible. The
+	 * buffer is reused for the next frame once this returns, so a device
+	 * must not keep it, but may modify the frame and resend it in place with
+	 * {@link #sendRawPacket}. By default no frames are handled raw.
+	 * @param buf buffer holding the frame
+	 * @param frameOffset position of the frame in the buffer
+	 * @param frameLength length of the frame
+	 * @param inIface interface on which the frame was received
+	 * @return true if the frame was handled, false if it should be decoded
+	 *         and passed to {@link #handlePacket(Ethernet, Iface)}
+	 */
+	public boolean handleRawPacket(byte[] buf, int frameOffset, 
+			int frameLength, Iface inIface)
+	{ return false; }
 	
 	public abstract void handlePacket(Ethernet etherPacket, Iface inIface);
 }
@@ -9,16 +9,25 @@ import net.floodlightcontroller.packet.MACAddress;
  */
 public class Iface 
 {
+	/** MTU of an interface unless another is set: the largest IPv4 packet
+	 * carried by an Ethernet frame */
+	public static final int DEFAULT_MTU = 1500;
+
+	/** Smallest MTU every IPv4 link must support (RFC 791) */
+	public static final int MIN_MTU = 68;
+
 	private String name;
 	private MACAddress macAddress;
 	private int ipAddress;
     private int subnetMask;
+	private int mtu;
 	
 	public Iface(String name)
 	{
 		this.name = name;
 		this.macAddress = null;
 		this.ipAddress = 0;
+		this.mtu = DEFAULT_MTU;
 	}
 	
 	public String getName()
@@ -42,6 +51,24 @@ public class Iface
 	public int getSubnetMask()
 	{ return this.subnetMask; }
 
+	/**
+	 * @param mtu largest IPv4 packet, in bytes, sent out the interface 
+	 *        without fragmenting it
+	 */
+	public void setMtu(int mtu)
+	{
+		if (mtu < MIN_MTU)
+		{ throw new IllegalArgumentException("MTU must be at least " + MIN_MTU); }
+		this.mtu = mtu;
+	}
+
+	/**
+	 * @return largest IPv4 packet, in bytes, sent out the interface without
+	 *         fragmenting it
+	 */
+	public int getMtu()
+	{ return this.mtu; }
+
 	public String toString()
 	{
 		if ((null == this.macAddress) || (0 == this.ipAddress)
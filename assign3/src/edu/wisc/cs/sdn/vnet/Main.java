@@ -4,24 +4,57 @@ import edu.wisc.cs.sdn.vnet.rt.Router;
 import edu.wisc.cs.sdn.vnet.rt.RouteEntry;
 import edu.wisc.cs.sdn.vnet.sw.Switch;
 import edu.wisc.cs.sdn.vnet.vns.Command;
+import edu.wisc.cs.sdn.vnet.vns.DropPolicy;
 import edu.wisc.cs.sdn.vnet.vns.VNSComm;
-import edu.wisc.cs.sdn.vnet.rt.RouteTable;
+import edu.wisc.cs.sdn.vnet.rt.Rib;
+import edu.wisc.cs.sdn.vnet.log.LogManager;
+import java.io.File;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import net.floodlightcontroller.packet.*;
 
 public class Main 
 {
 	private static final short DEFAULT_PORT = 8888;
 	private static final String DEFAULT_SERVER = "localhost";
+	private static final long RIP_MAINTENANCE_INTERVAL = 1000;
+	private static final long RIP_ROUTE_TIMEOUT = 30000;
+	private static final long RIP_UPDATE_INTERVAL = 10000;
+	private static final long RIP_CHECKPOINT_INTERVAL = 10000;
+	private static final long RIP_SHUTDOWN_TIMEOUT = 5000;
+	private static final long ARP_CHECK_INTERVAL = 250;
+
+	/** Number of workers with virtual threads when none is given; virtual
+	 * threads are cheap, so flows are spread over many workers */
+	private static final int VIRTUAL_WORKERS = 64;
+
+	/** Number of packets queued for each interface when none is given */
+	private static final int OUTPUT_QUEUE_SIZE = 256;
+
+	/** When RIP-learned routes were last checkpointed; only used by the 
+	 * RIP maintenance thread */
+	private static long lastCheckpoint = 0;
 	
 	public static void main(String[] args)
 	{
 		String host = null;
 		String server = DEFAULT_SERVER;
 		String routeTableFile = null;
+		String routeSnapshotFile = null;
+		String checkpointFile = null;
 		String arpCacheFile = null;
 		String logfile = null;
+		String logLevels = null;
+		boolean compiledFib = false;
+		int workers = 0;
+		boolean virtualThreads = false;
+		int outputQueueSize = OUTPUT_QUEUE_SIZE;
+		String dropPolicy = "tail";
+		String mtus = null;
 		short port = DEFAULT_PORT;
 		VNSComm vnsComm = null;
 		Device dev = null;
@@ -47,6 +80,24 @@ public class Main
 			{ routeTableFile = args[++i]; }
 			else if (arg.equals("-a"))
 			{ arpCacheFile = args[++i]; }
+			else if (arg.equals("-c"))
+			{ compiledFib = true; }
+			else if (arg.equals("-b"))
+			{ routeSnapshotFile = args[++i]; }
+			else if (arg.equals("-k"))
+			{ checkpointFile = args[++i]; }
+			else if (arg.equals("-L"))
+			{ logLevels = args[++i]; }
+			else if (arg.equals("-w"))
+			{ workers = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-V"))
+			{ virtualThreads = true; }
+			else if (arg.equals("-q"))
+			{ outputQueueSize = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-d"))
+			{ dropPolicy = args[++i]; }
+			else if (arg.equals("-M"))
+			{ mtus = args[++i]; }
 		}
 
        
@@ -56,6 +107,30 @@ public class Main
 			usage();
 			return;
 		}
+
+		DropPolicy outputDropPolicy;
+		try
+		{ 
+			outputDropPolicy = DropPolicy.parse(dropPolicy); 
+			if (outputQueueSize > 0)
+			{ outputDropPolicy.checkCapacity(outputQueueSize); }
+		}
+		catch (IllegalArgumentException e)
+		{
+			System.err.println("Invalid drop policy "+dropPolicy+": "+e.getMessage());
+			return;
+		}
+
+		if (logLevels != null)
+		{
+			try
+			{ LogManager.configure(logLevels); }
+			catch (IllegalArgumentException e)
+			{
+				System.err.println("Invalid log levels "+logLevels+": "+e.getMessage());
+				return;
+			}
+		}
 		
 		// Open PCAP dump file for logging packets sent/received by the router
 		DumpFile dump = null;
@@ -75,6 +150,12 @@ public class Main
 		{
 			// Create router instance
 			dev = new Router(host, dump);
+			// Only a static route table is compiled; under RIP every update
+			// would rebuild the whole first-level table
+			if (compiledFib && routeTableFile != null)
+			{ ((Router)dev).getRouteTable().setCompiled(true); }
+			else if (compiledFib)
+			{ System.err.println("Ignoring -c: only a static route table (-r) is compiled"); }
 		}
 		else 
 		{
@@ -89,20 +170,52 @@ public class Main
 		if (!vnsComm.connectToServer(port, server))
 		{ System.exit(1); }
 		vnsComm.readFromServerExpect(Command.VNS_HW_INFO);	
+
+		// Set interface MTUs
+		if (mtus != null)
+		{
+			try
+			{ setMtus(dev, mtus); }
+			catch (IllegalArgumentException e)
+			{
+				System.err.println("Invalid MTUs "+mtus+": "+e.getMessage());
+				System.exit(1);
+			}
+		}
+
+		// Queue packets sent out each interface for a writer thread
+		if (outputQueueSize > 0)
+		{ vnsComm.startOutputQueues(outputQueueSize, outputDropPolicy); }
 		
 		if (dev instanceof Router) 
 		{
 			// Read static route table
 			if (routeTableFile != null) { 
 				((Router)dev).loadRouteTable(routeTableFile); 
+				if (routeSnapshotFile != null)
+				{ ((Router)dev).saveRouteTable(routeSnapshotFile); }
 			} else {
                 // Starting RIP: implement RIP since not using a static route table.
 				// Add to route table things that are directly connected to this router.
-                RouteTable routeTable = ((Router) dev).getRouteTable();
+                Rib rib = ((Router) dev).getRib();
                 for (Iface i : dev.getInterfaces().values()) {
-                    routeTable.insert((i.getIpAddress() & i.getSubnetMask()), 0, i.getSubnetMask(), i, 1, System.currentTimeMillis());
+                    rib.add((i.getIpAddress() & i.getSubnetMask()), i.getSubnetMask(), Rib.Source.CONNECTED, 0, i, 1, System.currentTimeMillis());
                 }
 
+				// Restore routes learned from RIP before the last restart, so
+				// forwarding works before neighbors send their next updates
+				if (checkpointFile != null && new File(checkpointFile).exists())
+				{
+					int restored = rib.loadCheckpoint(checkpointFile, (Router)dev,
+							Rib.Source.RIP, RIP_ROUTE_TIMEOUT, System.currentTimeMillis());
+					if (restored >= 0)
+					{
+						System.out.println(String.format(
+								"Restored %d RIP routes from checkpoint %s",
+								restored, checkpointFile));
+					}
+				}
+
 				// send out initial RIP requests out of each interface on the router
 				for (Iface i : dev.getInterfaces().values()) {
                     RIPv2 ripPacket = new RIPv2();
@@ -137,74 +250,210 @@ public class Main
 			{ ((Router)dev).loadArpCache(arpCacheFile); }
 		}
 
+		// Run RIP maintenance on its own thread, so that route expiry and
+		// periodic updates never stall packet processing
+		ScheduledExecutorService ripTimer = null;
+		if (dev instanceof Router && null == routeTableFile)
+		{
+			final Router router = (Router)dev;
+			final String ripCheckpointFile = checkpointFile;
+			ripTimer = Executors.newSingleThreadScheduledExecutor(
+					new ThreadFactory() {
+				public Thread newThread(Runnable task)
+				{
+					Thread thread = new Thread(task, "RIP");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			ripTimer.scheduleAtFixedRate(new Runnable() {
+				public void run()
+				{ ripMaintenance(router, ripCheckpointFile); }
+			}, RIP_MAINTENANCE_INTERVAL, RIP_MAINTENANCE_INTERVAL,
+					TimeUnit.MILLISECONDS);
+		}
+
+		// Resend unanswered ARP requests on their own thread
+		Timer arpTimer = null;
+		if (dev instanceof Router)
+		{
+			final Router router = (Router)dev;
+			arpTimer = new Timer("ARP", true);
+			arpTimer.scheduleAtFixedRate(new TimerTask() {
+				public void run()
+				{ router.checkArpRequests(); }
+			}, ARP_CHECK_INTERVAL, ARP_CHECK_INTERVAL);
+		}
+
+		// Handle packets on worker threads, if requested
+		if (virtualThreads)
+		{
+			if (!VNSComm.isVirtualThreadSupported())
+			{ System.err.println("Virtual threads not supported; using platform threads"); }
+			if (0 == workers)
+			{ workers = VIRTUAL_WORKERS; }
+		}
+		if (workers > 0 && vnsComm.startPipeline(workers, virtualThreads))
+		{ System.out.println(String.format("Handling packets on %d workers", workers)); }
+
 		// Read messages from the server until the server closes the connection
 		System.out.println("<-- Ready to process packets -->");
-		if (routeTableFile != null) {
-			// not running in RIP, avoid printing all the RIP stuff out
-			while (vnsComm.readFromServer());
-		} else {
-			while (vnsComm.readFromServer()) {
-				if (routeTableFile == null) {
-	
-					// implement 30 second timeout for entries in route table learned from RIP
-					int numberOfRouteEntries = ((Router) dev).getRouteTable().getEntries().size();
-					for (int i = (numberOfRouteEntries - 1); i >= 0; i--) {
-						RouteEntry routeEntry = ((Router) dev).getRouteTable().getEntries().get(i);
-						if (routeEntry.getGatewayAddress() == 0) {
-							// we don't want to remove entries for devices directly connected to this router
-							continue;
-						}
-						if ((routeEntry.getLastUpdateTimestamp() + 30000) < System.currentTimeMillis()) {
-							((Router) dev).getRouteTable().remove(routeEntry.getDestinationAddress(), routeEntry.getMaskAddress());
-						}
-					}
-	
-					// send unsolicited RIP responses every 10 seconds
-					if ((System.currentTimeMillis() - ((Router) dev).getLastSent()) > 10000) {
-						for (RouteEntry routeEntry : ((Router) dev).getRouteTable().getEntries()) {
-							RIPv2 ripPacket = new RIPv2();
-							ripPacket.setCommand(RIPv2.COMMAND_RESPONSE);
-							for (RouteEntry r : ((Router) dev).getRouteTable().getEntries()) {
-								RIPv2Entry ripEntry = new RIPv2Entry(r.getDestinationAddress(), r.getMaskAddress(), r.getMetric()); // need to construct this properly
-								ripPacket.addEntry(ripEntry);
-							}
-							ripPacket.resetChecksum();
-	
-							UDP udpPacket = new UDP();
-							udpPacket.setSourcePort(UDP.RIP_PORT);
-							udpPacket.setDestinationPort(UDP.RIP_PORT);
-							udpPacket.resetChecksum();
-	
-							IPv4 ipPacket = new IPv4();
-							ipPacket.setSourceAddress(routeEntry.getInterface().getIpAddress());
-							ipPacket.setDestinationAddress("224.0.0.9");
-	
-	
-							Ethernet ethernetPacket = new Ethernet();
-							ethernetPacket.setEtherType(Ethernet.TYPE_IPv4);
-							ethernetPacket.setSourceMACAddress(routeEntry.getInterface().getMacAddress().toString());
-							ethernetPacket.setDestinationMACAddress("FF:FF:FF:FF:FF:FF");
-	
-							udpPacket.setPayload(ripPacket);
-							ipPacket.setPayload(udpPacket);
-							ethernetPacket.setPayload(ipPacket);
-							dev.sendPacket(ethernetPacket,routeEntry.getInterface());
-							((Router) dev).setLastSent(System.currentTimeMillis());
-						}
-					}		
-				}
-			} 
+		while (vnsComm.readFromServer());
+		if (arpTimer != null)
+		{ arpTimer.cancel(); }
+		vnsComm.stopPipeline();
+		vnsComm.stopOutputQueues();
+		System.out.println(vnsComm.getPacketStats());
+		if (vnsComm.getOutputStats() != null)
+		{ System.out.println(vnsComm.getOutputStats()); }
+		if (dev instanceof Router)
+		{ 
+			System.out.println(((Router)dev).getFlowCache());
+			System.out.println(((Router)dev).getIcmpRateLimiter()); 
+			System.out.println(((Router)dev).getFragmentationStats()); 
+			System.out.println(((Router)dev).getArpStats()); 
 		}
 		
+		if (ripTimer != null)
+		{ 
+			// Let a maintenance run in progress finish, so the final 
+			// checkpoint is written after any it writes
+			ripTimer.shutdown(); 
+			try
+			{ ripTimer.awaitTermination(RIP_SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS); }
+			catch (InterruptedException e)
+			{ Thread.currentThread().interrupt(); }
+			if (checkpointFile != null)
+			{ ((Router)dev).getRib().saveCheckpoint(checkpointFile, Rib.Source.RIP); }
+		}
+
 		// Shutdown the router
 		dev.destroy();
+		LogManager.shutdown();
 	}
 	
+	/**
+	 * Set the MTUs of a device's interfaces.
+	 * @param dev the device
+	 * @param spec an MTU for every interface, such as "1400", or MTUs for
+	 *        named interfaces, such as "eth1=1400,eth2=576"; a bare MTU
+	 *        applies to interfaces not named
+	 * @throws IllegalArgumentException if the specification is malformed
+	 *         or names an interface the device does not have
+	 */
+	static void setMtus(Device dev, String spec)
+	{
+		// Apply a bare MTU first, so named interfaces override it
+		String[] parts = spec.split(",");
+		for (String part : parts)
+		{
+			if (part.indexOf('=') < 0)
+			{
+				int mtu = Integer.parseInt(part.trim());
+				for (Iface iface : dev.getInterfaces().values())
+				{ iface.setMtu(mtu); }
+			}
+		}
+		for (String part : parts)
+		{
+			int equals = part.indexOf('=');
+			if (equals < 0)
+			{ continue; }
+			String name = part.substring(0, equals).trim();
+			Iface iface = dev.getInterface(name);
+			if (null == iface)
+			{ throw new IllegalArgumentException("No interface " + name); }
+			iface.setMtu(Integer.parseInt(part.substring(equals + 1).trim()));
+		}
+	}
+
+	/**
+	 * Remove routes learned from RIP that have timed out, checkpoint the
+	 * remaining routes, and send unsolicited RIP responses out every 
+	 * interface when they are due.
+	 * @param router the router running RIP
+	 * @param checkpointFile file to checkpoint RIP-learned routes to; null
+	 *        if routes are not checkpointed
+	 */
+	static void ripMaintenance(Router router, String checkpointFile)
+	{
+		long now = System.currentTimeMillis();
+
+		// implement 30 second timeout for routes learned from RIP; the next
+		// best candidate for each expired route takes over immediately
+		router.getRib().expire(Rib.Source.RIP, RIP_ROUTE_TIMEOUT, now);
+
+		// checkpoint routes learned from RIP for a warm restart
+		if (checkpointFile != null 
+				&& (now - lastCheckpoint) >= RIP_CHECKPOINT_INTERVAL)
+		{
+			router.getRib().saveCheckpoint(checkpointFile, Rib.Source.RIP);
+			lastCheckpoint = now;
+		}
+
+		// send unsolicited RIP responses every 10 seconds
+		if ((now - router.getLastSent()) <= RIP_UPDATE_INTERVAL)
+		{ return; }
+		for (Iface iface : router.getInterfaces().values())
+		{
+			RIPv2 ripPacket = new RIPv2();
+			ripPacket.setCommand(RIPv2.COMMAND_RESPONSE);
+			for (RouteEntry r : router.getRouteTable().getEntries())
+			{
+				RIPv2Entry ripEntry = new RIPv2Entry(r.getDestinationAddress(), r.getMaskAddress(), r.getMetric());
+				ripPacket.addEntry(ripEntry);
+			}
+			ripPacket.resetChecksum();
+
+			UDP udpPacket = new UDP();
+			udpPacket.setSourcePort(UDP.RIP_PORT);
+			udpPacket.setDestinationPort(UDP.RIP_PORT);
+			udpPacket.resetChecksum();
+
+			IPv4 ipPacket = new IPv4();
+			ipPacket.setSourceAddress(iface.getIpAddress());
+			ipPacket.setDestinationAddress("224.0.0.9");
+
+			Ethernet ethernetPacket = new Ethernet();
+			ethernetPacket.setEtherType(Ethernet.TYPE_IPv4);
+			ethernetPacket.setSourceMACAddress(iface.getMacAddress().toString());
+			ethernetPacket.setDestinationMACAddress("FF:FF:FF:FF:FF:FF");
+
+			udpPacket.setPayload(ripPacket);
+			ipPacket.setPayload(udpPacket);
+			ethernetPacket.setPayload(ipPacket);
+			router.sendPacket(ethernetPacket, iface);
+		}
+		router.setLastSent(now);
+	}
+
 	static void usage()
 	{
 		System.out.println("Virtual Network Client");
 		System.out.println("VNet -v host [-s server] [-p port] [-h]");
 		System.out.println("     [-r routing_table] [-a arp_cache] [-l log_file]");
+		System.out.println("     [-b route_snapshot] [-c] [-k rip_checkpoint]");
+		System.out.println("     [-L log_levels] [-w workers] [-V]");
+		System.out.println("     [-q output_queue_size] [-d drop_policy] [-M mtu]");
+		System.out.println("  -r accepts a text route table or a binary snapshot;");
+		System.out.println("  -b writes the loaded route table as a binary snapshot");
+		System.out.println("  -c compiles the static route table into a DIR-24-8 FIB");
+		System.out.println("  -k checkpoints RIP-learned routes to a file and");
+		System.out.println("     restores them from it on startup");
+		System.out.println("  -L sets log levels, e.g. debug or info,packet=debug/100");
+		System.out.println("     (category=level/N logs 1 of every N messages);");
+		System.out.println("     levels are off, error, warn, info, debug, trace");
+		System.out.println("  -w handles packets on a number of worker threads,");
+		System.out.println("     each handling a share of the flows");
+		System.out.println(String.format("  -V runs workers on virtual threads (%d workers"
+				+ " unless -w is given)", VIRTUAL_WORKERS));
+		System.out.println("  -q sets the packets queued for each interface (0 writes");
+		System.out.println(String.format("     each packet as it is sent; default %d)",
+				OUTPUT_QUEUE_SIZE));
+		System.out.println("  -d drops packets from full queues with tail or red,");
+		System.out.println("     or red:min:max:p (thresholds as fractions of -q)");
+		System.out.println(String.format("  -M sets interface MTUs, e.g. 1400 or eth1=1400,eth2=576"
+				+ " (default %d)", Iface.DEFAULT_MTU));
 		System.out.println(String.format("  defaults server=%s port=%d", 
 				DEFAULT_SERVER, DEFAULT_PORT));
 	}
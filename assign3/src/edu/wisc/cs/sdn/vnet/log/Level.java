@@ -0,0 +1,19 @@
+package edu.wisc.cs.sdn.vnet.log;
+
+/**
+ * Severity of a log message, from most to least severe. A logger emits
+ * messages at its level and every more severe level.
+ */
+public enum Level
+{
+	OFF, ERROR, WARN, INFO, DEBUG, TRACE;
+
+	/**
+	 * Parse a level name, ignoring case.
+	 * @param name name of the level
+	 * @return the level
+	 * @throws IllegalArgumentException if there is no level with the name
+	 */
+	public static Level parse(String name)
+	{ return Level.valueOf(name.trim().toUpperCase()); }
+}
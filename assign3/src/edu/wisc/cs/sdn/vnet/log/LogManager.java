@@ -0,0 +1,263 @@
+package edu.wisc.cs.sdn.vnet.log;
+
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Creates loggers and writes their messages from a background thread.
+ * <p>
+ * Messages are passed through a bounded, lock-free ring: a logging thread
+ * claims a slot with a compare-and-set and stores the message, and the
+ * writer thread takes messages in order. If the ring is full the message
+ * is dropped and counted rather than blocking the caller; the writer 
+ * reports how many messages were dropped.
+ * <p>
+ * Levels and sampling are configured with a specification such as
+ * {@code "info,packet=debug/100,rip=warn"}: a bare level sets the default
+ * for every category, and {@code category=level[/N]} sets the level of one
+ * category and emits one of every N of its messages at INFO or below.
+ */
+public class LogManager
+{
+	/** Level of categories that are not configured */
+	public static final Level DEFAULT_LEVEL = Level.INFO;
+
+	/** Number of messages the ring holds; a power of two */
+	private static final int RING_SIZE = 1 << 14;
+
+	/** How long the writer sleeps when the ring is empty */
+	private static final long IDLE_WAIT_NANOS = 1000000;
+
+	/** A queued message */
+	private static class Record
+	{
+		final Logger logger;
+		final Level level;
+		final String message;
+		final Object[] args;
+
+		Record(Logger logger, Level level, String message, Object[] args)
+		{
+			this.logger = logger;
+			this.level = level;
+			this.message = message;
+			this.args = args;
+		}
+	}
+
+	/** Loggers by category */
+	private static final Map<String,Logger> loggers = 
+			new ConcurrentHashMap<String,Logger>();
+
+	/** Configured level for each category */
+	private static final Map<String,Level> levels = 
+			new ConcurrentHashMap<String,Level>();
+
+	/** Configured sample rate for each category */
+	private static final Map<String,Integer> sampleRates = 
+			new ConcurrentHashMap<String,Integer>();
+
+	/** Level of categories that are not configured */
+	private static volatile Level defaultLevel = DEFAULT_LEVEL;
+
+	/** Queued messages; the message numbered n is in slot n & (RING_SIZE-1) */
+	private static final AtomicReferenceArray<Record> ring = 
+			new AtomicReferenceArray<Record>(RING_SIZE);
+
+	/** Number of messages claimed by logging threads */
+	private static final AtomicLong tail = new AtomicLong();
+
+	/** Number of messages taken by the writer */
+	private static volatile long head = 0;
+
+	/** Number of messages dropped because the ring was full */
+	private static final AtomicLong dropped = new AtomicLong();
+
+	/** Thread that writes messages; started with the first message */
+	private static Thread writer = null;
+
+	/** Whether the writer should exit once the ring is empty */
+	private static volatile boolean stopping = false;
+
+	private LogManager()
+	{ }
+
+	/**
+	 * Get the logger for a category, creating it if needed.
+	 * @param name category of messages
+	 * @return the logger
+	 */
+	public static Logger getLogger(String name)
+	{
+		Logger logger = loggers.get(name);
+		if (null == logger)
+		{
+			Integer rate = sampleRates.get(name);
+			Level level = levels.get(name);
+			logger = new Logger(name, (null == level) ? defaultLevel : level,
+					(null == rate) ? 1 : rate);
+			Logger existing = ((ConcurrentHashMap<String,Logger>)loggers)
+					.putIfAbsent(name, logger);
+			if (existing != null)
+			{ logger = existing; }
+		}
+		return logger;
+	}
+
+	/**
+	 * Apply a level and sampling specification to current and future
+	 * loggers.
+	 * @param spec the specification, e.g. "info,packet=debug/100"
+	 * @throws IllegalArgumentException if the specification is malformed
+	 */
+	public static void configure(String spec)
+	{
+		for (String part : spec.split(","))
+		{
+			part = part.trim();
+			if (0 == part.length())
+			{ continue; }
+			int equals = part.indexOf('=');
+			if (equals < 0)
+			{
+				defaultLevel = Level.parse(part);
+				continue;
+			}
+
+			String name = part.substring(0, equals).trim();
+			String value = part.substring(equals + 1);
+			int slash = value.indexOf('/');
+			if (slash >= 0)
+			{
+				int rate = Integer.parseInt(value.substring(slash + 1).trim());
+				if (rate < 1)
+				{ throw new IllegalArgumentException("Invalid sample rate " + rate); }
+				sampleRates.put(name, rate);
+				value = value.substring(0, slash);
+			}
+			levels.put(name, Level.parse(value));
+		}
+
+		for (Logger logger : loggers.values())
+		{
+			Level level = levels.get(logger.getName());
+			Integer rate = sampleRates.get(logger.getName());
+			logger.setLevel((null == level) ? defaultLevel : level);
+			logger.setSampleRate((null == rate) ? 1 : rate);
+		}
+	}
+
+	/**
+	 * Queue a message for the writer; drops it if the ring is full.
+	 */
+	static void enqueue(Logger logger, Level level, String message, 
+			Object[] args)
+	{
+		if (null == writer)
+		{ startWriter(); }
+
+		Record record = new Record(logger, level, message, args);
+		while (true)
+		{
+			long claimed = tail.get();
+			if (claimed - head >= RING_SIZE)
+			{
+				dropped.incrementAndGet();
+				return;
+			}
+			if (tail.compareAndSet(claimed, claimed + 1))
+			{
+				ring.set((int)claimed & (RING_SIZE - 1), record);
+				return;
+			}
+		}
+	}
+
+	private static synchronized void startWriter()
+	{
+		if (writer != null)
+		{ return; }
+		writer = new Thread(new Runnable() {
+			public void run()
+			{ drain(); }
+		}, "log");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Write queued messages until asked to stop and the ring is empty.
+	 */
+	private static void drain()
+	{
+		long reportedDrops = 0;
+		while (true)
+		{
+			long next = head;
+			int slot = (int)next & (RING_SIZE - 1);
+			Record record = ring.get(slot);
+			if (null == record)
+			{
+				// Report drops while idle, so the report is not lost in a burst
+				long drops = dropped.get();
+				if (drops != reportedDrops)
+				{
+					System.err.println(String.format(
+							"log: %d messages dropped", drops - reportedDrops));
+					reportedDrops = drops;
+				}
+
+				// A claimed slot may still be being filled
+				if (stopping && tail.get() == next)
+				{ return; }
+				LockSupport.parkNanos(IDLE_WAIT_NANOS);
+				continue;
+			}
+			ring.set(slot, null);
+			head = next + 1;
+			write(record);
+		}
+	}
+
+	private static void write(Record record)
+	{
+		String message;
+		try
+		{
+			message = (null == record.args) ? record.message
+					: String.format(record.message, record.args);
+		}
+		catch (RuntimeException e)
+		{ message = record.message + " (" + e + ")"; }
+		PrintStream out = (record.level.compareTo(Level.WARN) <= 0) 
+				? System.err : System.out;
+		out.println(message);
+	}
+
+	/**
+	 * Write every queued message and stop the writer thread. Messages
+	 * logged afterwards start a new writer.
+	 */
+	public static void shutdown()
+	{
+		Thread current;
+		synchronized (LogManager.class)
+		{ current = writer; }
+		if (null == current)
+		{ return; }
+		stopping = true;
+		try
+		{ current.join(); }
+		catch (InterruptedException e)
+		{ Thread.currentThread().interrupt(); }
+		synchronized (LogManager.class)
+		{
+			writer = null;
+			stopping = false;
+		}
+	}
+}
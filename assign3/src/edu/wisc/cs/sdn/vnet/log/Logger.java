@@ -0,0 +1,132 @@
+package edu.wisc.cs.sdn.vnet.log;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Logs messages for one category, such as "packet" or "rip". Messages are
+ * queued and written by a background thread, so logging never blocks on
+ * console or file I/O.
+ * <p>
+ * Code on the packet path should check {@link #sample(Level)} before
+ * building a message, so nothing is formatted unless it will be emitted:
+ * <pre>
+ *   if (log.sample(Level.DEBUG))
+ *   { log.log(Level.DEBUG, "Received " + packet); }
+ * </pre>
+ * A logger can also be sampled, so only one of every N messages at INFO
+ * or below is emitted; warnings and errors are never sampled.
+ */
+public class Logger
+{
+	/** Category of messages logged */
+	private final String name;
+
+	/** Least severe level emitted */
+	private volatile Level level;
+
+	/** Emit one of every sampleRate messages at INFO or below */
+	private volatile int sampleRate;
+
+	/** Number of messages offered at INFO or below, for sampling */
+	private final AtomicLong offered;
+
+	Logger(String name, Level level, int sampleRate)
+	{
+		this.name = name;
+		this.level = level;
+		this.sampleRate = sampleRate;
+		this.offered = new AtomicLong();
+	}
+
+	/**
+	 * @return category of messages logged
+	 */
+	public String getName()
+	{ return this.name; }
+
+	/**
+	 * @return least severe level emitted
+	 */
+	public Level getLevel()
+	{ return this.level; }
+
+	/**
+	 * @param level least severe level emitted
+	 */
+	public void setLevel(Level level)
+	{ this.level = level; }
+
+	/**
+	 * @return number of messages at INFO or below per message emitted
+	 */
+	public int getSampleRate()
+	{ return this.sampleRate; }
+
+	/**
+	 * @param sampleRate number of messages at INFO or below per message
+	 *        emitted; 1 to emit every message
+	 */
+	public void setSampleRate(int sampleRate)
+	{ this.sampleRate = Math.max(1, sampleRate); }
+
+	/**
+	 * @return true if messages at a level are emitted, before sampling
+	 */
+	public boolean isEnabled(Level level)
+	{ return level != Level.OFF && level.compareTo(this.level) <= 0; }
+
+	/**
+	 * Decide whether a message at a level should be built and logged. Each
+	 * call counts as one message for sampling, so call it once per message.
+	 * @return true if the message will be emitted
+	 */
+	public boolean sample(Level level)
+	{
+		if (!this.isEnabled(level))
+		{ return false; }
+		int rate = this.sampleRate;
+		if (1 == rate || level.compareTo(Level.WARN) <= 0)
+		{ return true; }
+		return 0 == (this.offered.getAndIncrement() % rate);
+	}
+
+	/**
+	 * Queue a message that has already passed {@link #sample(Level)}.
+	 * @param level severity of the message
+	 * @param message the message
+	 */
+	public void log(Level level, String message)
+	{ LogManager.enqueue(this, level, message, null); }
+
+	/**
+	 * Queue a message to be formatted by the background thread, if it
+	 * passes {@link #sample(Level)}. The arguments must not change after
+	 * the call, since they are formatted later.
+	 * @param level severity of the message
+	 * @param format format string, as for {@link String#format}
+	 * @param args arguments for the format string
+	 */
+	public void logf(Level level, String format, Object... args)
+	{
+		if (this.sample(level))
+		{ LogManager.enqueue(this, level, format, args); }
+	}
+
+	public void error(String message)
+	{
+		if (this.sample(Level.ERROR))
+		{ this.log(Level.ERROR, message); }
+	}
+
+	public void warn(String message)
+	{
+		if (this.sample(Level.WARN))
+		{ this.log(Level.WARN, message); }
+	}
+
+	public void info(String message)
+	{
+		if (this.sample(Level.INFO))
+		{ this.log(Level.INFO, message); }
+	}
+}
@@ -0,0 +1,62 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+/**
+ * Immutable set of IPv4 addresses, such as the addresses of a router's
+ * interfaces. Addresses are primitive ints in an open-addressing table with
+ * linear probing, kept at most half full, so checking an address takes one
+ * or two probes without boxing. Address 0 marks an empty slot, so it is
+ * never a member; interfaces without an address are left out.
+ */
+class AddressSet
+{
+	/** Set with no addresses */
+	static final AddressSet EMPTY = new AddressSet(new int[0]);
+
+	/** Address stored in each slot; 0 if the slot is empty */
+	private final int[] slots;
+
+	/** Mask that maps a hash onto a slot */
+	private final int mask;
+
+	/**
+	 * Create a set of addresses.
+	 * @param addresses the addresses; 0 and duplicates are ignored
+	 */
+	AddressSet(int[] addresses)
+	{
+		int size = Integer.highestOneBit(Math.max(addresses.length, 1) * 2) << 1;
+		this.slots = new int[size];
+		this.mask = size - 1;
+		for (int address : addresses)
+		{
+			if (0 == address)
+			{ continue; }
+			int slot = slotOf(address, this.mask);
+			while (this.slots[slot] != 0 && this.slots[slot] != address)
+			{ slot = (slot + 1) & this.mask; }
+			this.slots[slot] = address;
+		}
+	}
+
+	private static int slotOf(int address, int mask)
+	{
+		int h = address * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	/**
+	 * @return true if an address is in the set
+	 */
+	boolean contains(int address)
+	{
+		if (0 == address)
+		{ return false; }
+		for (int slot = slotOf(address, this.mask); this.slots[slot] != 0;
+				slot = (slot + 1) & this.mask)
+		{
+			if (this.slots[slot] == address)
+			{ return true; }
+		}
+		return false;
+	}
+}
@@ -4,8 +4,10 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -20,11 +22,24 @@ public class ArpCache {
 	/** Entries in the cache; maps an IP address to an entry */
 	private Map<Integer,ArpEntry> entries;
 
+	/** Number of changes made to the cache */
+	private AtomicLong generation;
+
 	/**
 	 * Initializes an empty ARP cache for a router.
 	 */
 	public ArpCache()
-	{ this.entries = new ConcurrentHashMap<Integer,ArpEntry>(); }
+	{ 
+		this.entries = new ConcurrentHashMap<Integer,ArpEntry>(); 
+		this.generation = new AtomicLong();
+	}
+
+	/**
+	 * @return number of changes made to the cache so far; any change to the
+	 *         cache increases the generation
+	 */
+	public long getGeneration()
+	{ return this.generation.get(); }
 
 	/**
 	* Retrieve the entries in the ARP Cache
@@ -40,7 +55,37 @@ public class ArpCache {
 	 * @param ip IP address corresponding to MAC address
 	 */
 	public void insert(MACAddress mac, int ip)
-	{ this.entries.put(ip, new ArpEntry(mac, ip)); }
+	{ this.insert(new ArpEntry(mac, ip)); }
+
+	private void insert(ArpEntry entry)
+	{ 
+		this.entries.put(entry.getIp(), entry); 
+		this.generation.incrementAndGet();
+	}
+
+	/**
+	 * Remove entries that were learned, rather than loaded from a file, and
+	 * have not been confirmed within a timeout.
+	 * @param timeout time (in milliseconds) an entry is kept unconfirmed
+	 * @return number of entries removed
+	 */
+	public int expire(long timeout)
+	{
+		long now = System.currentTimeMillis();
+		int removed = 0;
+		Iterator<ArpEntry> it = this.entries.values().iterator();
+		while (it.hasNext())
+		{
+			ArpEntry entry = it.next();
+			if (entry.isPermanent() || now - entry.getTimeAdded() < timeout)
+			{ continue; }
+			it.remove();
+			removed++;
+		}
+		if (removed > 0)
+		{ this.generation.incrementAndGet(); }
+		return removed;
+	}
 
 	/**
 	 * Checks if an IP->MAC mapping is the in the cache.
@@ -123,7 +168,7 @@ public class ArpCache {
 			}
 
 			// Add an entry to the ACP cache
-			this.insert(mac, ip);
+			this.insert(new ArpEntry(mac, ip, true));
 		}
 
 		// Close the file
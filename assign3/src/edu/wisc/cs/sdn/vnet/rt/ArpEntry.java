@@ -15,8 +15,12 @@ public class ArpEntry
 	/** IP address corresponding to MAC address */
 	private int ip;
 
-	/** Time (in milliseconds since the epoch) the mapping was created */
-	private long timeAdded;
+	/** Time (in milliseconds since the epoch) the mapping was created or
+	 * last confirmed */
+	private volatile long timeAdded;
+
+	/** True if the mapping was loaded from a file and never expires */
+	private boolean permanent;
 
 	/**
 	 * Create an ARP table entry that maps an IP address to a MAC address.
@@ -24,9 +28,19 @@ public class ArpEntry
 	 * @param ip IP address corresponding to MAC address
 	 */
 	public ArpEntry(MACAddress mac, int ip)
+	{ this(mac, ip, false); }
+
+	/**
+	 * Create an ARP table entry that maps an IP address to a MAC address.
+	 * @param mac MAC address corresponding to IP address
+	 * @param ip IP address corresponding to MAC address
+	 * @param permanent true if the mapping never expires
+	 */
+	public ArpEntry(MACAddress mac, int ip, boolean permanent)
 	{
 		this.mac = mac;
 		this.ip = ip;
+		this.permanent = permanent;
 		this.timeAdded = System.currentTimeMillis();
 	}
 
@@ -44,10 +58,23 @@ public class ArpEntry
 
 	/**
 	 * @return time (in milliseconds since the epoch) the mapping was created
+	 *         or last confirmed
 	 */
 	public long getTimeAdded()
 	{ return this.timeAdded; }
 
+	/**
+	 * @return true if the mapping never expires
+	 */
+	public boolean isPermanent()
+	{ return this.permanent; }
+
+	/**
+	 * Record that the mapping has been confirmed, so it does not expire.
+	 */
+	public void refresh()
+	{ this.timeAdded = System.currentTimeMillis(); }
+
 	public String toString()
 	{
 		return String.format("%s \t%s", IPv4.fromIPv4Address(this.ip),
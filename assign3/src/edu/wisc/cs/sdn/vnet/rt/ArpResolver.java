@@ -0,0 +1,248 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.vns.CommandPacket;
+
+/**
+ * Tracks next hops whose MAC addresses are being resolved with ARP, and
+ * holds the packets waiting for them, as RFC 1122 section 2.3.2.2 asks.
+ * Each unresolved next hop has a bounded queue; when it is full the oldest
+ * packet is dropped. A request is sent when a next hop is first missed and
+ * repeated at most once per {@link #RETRY_INTERVAL_NANOS}; after
+ * {@link #MAX_REQUESTS} unanswered requests the next hop is given up and
+ * its packets returned, so the router can report them unreachable.
+ * <p>
+ * The router sends requests and packets itself, outside the resolver's
+ * lock; the resolver only decides what is due.
+ */
+class ArpResolver
+{
+	/** Packets queued for each unresolved next hop */
+	static final int MAX_QUEUED = 16;
+
+	/** Next hops resolved at once */
+	static final int MAX_PENDING = 256;
+
+	/** Requests sent for a next hop before it is given up */
+	static final int MAX_REQUESTS = 3;
+
+	/** Time between requests for a next hop, in nanoseconds */
+	static final long RETRY_INTERVAL_NANOS = 1000000000L;
+
+	/** Position of each queued frame in its buffer, leaving room for the
+	 * VNS command header */
+	static final int FRAME_OFFSET = CommandPacket.FRAME_OFFSET;
+
+	/**
+	 * A packet waiting for its next hop to be resolved. The frame's TTL has
+	 * already been decremented; its MAC addresses are still those it was
+	 * received with.
+	 */
+	static class Packet
+	{
+		private final byte[] buffer;
+		private final int frameLength;
+		private final Iface inIface;
+
+		private Packet(byte[] buffer, int frameLength, Iface inIface)
+		{
+			this.buffer = buffer;
+			this.frameLength = frameLength;
+			this.inIface = inIface;
+		}
+
+		/**
+		 * @return buffer holding the frame at {@link #FRAME_OFFSET}
+		 */
+		byte[] getBuffer()
+		{ return this.buffer; }
+
+		/**
+		 * @return length of the frame
+		 */
+		int getFrameLength()
+		{ return this.frameLength; }
+
+		/**
+		 * @return the interface on which the packet was received
+		 */
+		Iface getInIface()
+		{ return this.inIface; }
+	}
+
+	/**
+	 * A next hop being resolved, and the packets waiting for it.
+	 */
+	static class Pending
+	{
+		private final int nextHop;
+		private final Iface outIface;
+		private final ArrayDeque<Packet> packets;
+
+		/** Requests sent, and when the last was sent; guarded by the
+		 * resolver */
+		private int requests;
+		private long lastRequest;
+
+		private Pending(int nextHop, Iface outIface, long now)
+		{
+			this.nextHop = nextHop;
+			this.outIface = outIface;
+			this.packets = new ArrayDeque<Packet>();
+			this.requests = 1;
+			this.lastRequest = now;
+		}
+
+		/**
+		 * @return IP address of the next hop
+		 */
+		int getNextHop()
+		{ return this.nextHop; }
+
+		/**
+		 * @return the interface requests are sent out, and packets sent out
+		 *         once the next hop is resolved
+		 */
+		Iface getOutIface()
+		{ return this.outIface; }
+
+		/**
+		 * @return packets waiting, oldest first; only used once the next
+		 *         hop is no longer pending
+		 */
+		Iterable<Packet> getPackets()
+		{ return this.packets; }
+	}
+
+	/** Next hops being resolved, keyed by IP address; guarded by this */
+	private final Map<Integer,Pending> pending;
+
+	/** Requests sent, packets queued, sent once resolved and dropped, and
+	 * next hops resolved and given up; guarded by this */
+	private long requestsSent;
+	private long queued;
+	private long flushed;
+	private long queueDrops;
+	private long resolvedCount;
+	private long failedCount;
+
+	ArpResolver()
+	{ this.pending = new HashMap<Integer,Pending>(); }
+
+	/**
+	 * Start resolving a next hop, if it is not already being resolved, and
+	 * queue a packet for it.
+	 * @param nextHop IP address of the next hop
+	 * @param outIface the interface the next hop is reached through
+	 * @param buf buffer holding the packet's frame, which is copied; null
+	 *        to only resolve the next hop
+	 * @param frameOffset position of the frame in the buffer
+	 * @param frameLength length of the frame
+	 * @param inIface the interface on which the packet was received
+	 * @param now current time, from {@link System#nanoTime()}
+	 * @return true if the caller should send the first request for the
+	 *         next hop
+	 */
+	synchronized boolean enqueue(int nextHop, Iface outIface, byte[] buf,
+			int frameOffset, int frameLength, Iface inIface, long now)
+	{
+		boolean first = false;
+		Pending entry = this.pending.get(nextHop);
+		if (null == entry)
+		{
+			if (this.pending.size() >= MAX_PENDING)
+			{
+				if (buf != null)
+				{ this.queueDrops++; }
+				return false;
+			}
+			entry = new Pending(nextHop, outIface, now);
+			this.pending.put(nextHop, entry);
+			this.requestsSent++;
+			first = true;
+		}
+		if (null == buf)
+		{ return first; }
+
+		if (entry.packets.size() >= MAX_QUEUED)
+		{
+			entry.packets.poll();
+			this.queueDrops++;
+		}
+		byte[] copy = new byte[FRAME_OFFSET + frameLength];
+		System.arraycopy(buf, frameOffset, copy, FRAME_OFFSET, frameLength);
+		entry.packets.add(new Packet(copy, frameLength, inIface));
+		this.queued++;
+		return first;
+	}
+
+	/**
+	 * @return true if a next hop is being resolved
+	 */
+	synchronized boolean isPending(int ip)
+	{ return this.pending.containsKey(ip); }
+
+	/**
+	 * Stop resolving a next hop whose MAC address is now known.
+	 * @param ip IP address of the next hop
+	 * @return the next hop, with the packets to send to it; null if it was
+	 *         not being resolved
+	 */
+	synchronized Pending resolved(int ip)
+	{
+		Pending entry = this.pending.remove(ip);
+		if (entry != null)
+		{
+			this.resolvedCount++;
+			this.flushed += entry.packets.size();
+		}
+		return entry;
+	}
+
+	/**
+	 * Find the next hops due another request, and give up those that have
+	 * had every request.
+	 * @param now current time, from {@link System#nanoTime()}
+	 * @param retry list to add next hops to send another request for
+	 * @param failed list to add next hops given up to, with their packets
+	 */
+	synchronized void expire(long now, List<Pending> retry,
+			List<Pending> failed)
+	{
+		Iterator<Pending> it = this.pending.values().iterator();
+		while (it.hasNext())
+		{
+			Pending entry = it.next();
+			if (now - entry.lastRequest < RETRY_INTERVAL_NANOS)
+			{ continue; }
+			if (entry.requests >= MAX_REQUESTS)
+			{
+				it.remove();
+				this.failedCount++;
+				failed.add(entry);
+			}
+			else
+			{
+				entry.requests++;
+				entry.lastRequest = now;
+				this.requestsSent++;
+				retry.add(entry);
+			}
+		}
+	}
+
+	public synchronized String toString()
+	{
+		return String.format("ARP: %d requests sent, %d next hops resolved,"
+				+ " %d given up, %d pending; %d packets queued, %d sent once"
+				+ " resolved, %d dropped from full queues", this.requestsSent,
+				this.resolvedCount, this.failedCount, this.pending.size(),
+				this.queued, this.flushed, this.queueDrops);
+	}
+}
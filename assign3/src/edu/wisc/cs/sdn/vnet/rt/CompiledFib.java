@@ -0,0 +1,186 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Forwarding table compiled from a route table into DIR-24-8 form.
+ * <p>
+ * The first level has one slot for every /24, indexed by the top 24 bits of
+ * an address. A slot holds the index of the route that covers the whole /24,
+ * or, if some route longer than /24 falls inside it, the number of a 256-slot
+ * overflow block indexed by the last 8 bits. Longest-prefix match is therefore
+ * one or two array reads. A compiled table is immutable and is rebuilt from
+ * scratch whenever the route table changes.
+ */
+public class CompiledFib
+{
+	/** Number of slots in the first-level table */
+	private static final int TBL24_SIZE = 1 << 24;
+
+	/** Number of slots in each overflow block */
+	private static final int BLOCK_SIZE = 1 << 8;
+
+	/** Flag marking a first-level slot that refers to an overflow block */
+	private static final int BLOCK_FLAG = 0x80000000;
+
+	/** First-level table; route index or flagged overflow block number */
+	private final int[] tbl24;
+
+	/** Overflow blocks for prefixes longer than /24, stored back to back */
+	private final int[] tblLong;
+
+	/** Routes referred to by table slots; index 0 means no route */
+	private final RouteEntry[] routes;
+
+	/** Number of overflow blocks in use */
+	private final int blockCount;
+
+	/** Time (in nanoseconds) taken to build the table */
+	private final long buildTime;
+
+	private CompiledFib(int[] tbl24, int[] tblLong, int blockCount,
+			RouteEntry[] routes, long buildTime)
+	{
+		this.tbl24 = tbl24;
+		this.tblLong = tblLong;
+		this.blockCount = blockCount;
+		this.routes = routes;
+		this.buildTime = buildTime;
+	}
+
+	/**
+	 * Compile a set of route entries into a forwarding table.
+	 * @param entries route entries, with at most one entry per prefix
+	 * @return the compiled forwarding table
+	 */
+	public static CompiledFib build(List<RouteEntry> entries)
+	{
+		long start = System.nanoTime();
+
+		// Group routes by prefix length, so longer prefixes are written last
+		List<List<RouteEntry>> byLength = new ArrayList<List<RouteEntry>>(33);
+		for (int i = 0; i <= 32; i++)
+		{ byLength.add(new ArrayList<RouteEntry>()); }
+		for (RouteEntry entry : entries)
+		{ byLength.get(RouteTrie.lengthOf(entry.getMaskAddress())).add(entry); }
+
+		RouteEntry[] routes = new RouteEntry[entries.size() + 1];
+		int[] tbl24 = new int[TBL24_SIZE];
+		int[] tblLong = new int[BLOCK_SIZE * 16];
+		int blockCount = 0;
+		int routeCount = 0;
+
+		for (int length = 0; length <= 32; length++)
+		{
+			for (RouteEntry entry : byLength.get(length))
+			{
+				int index = ++routeCount;
+				routes[index] = entry;
+				int prefix = entry.getDestinationAddress()
+						& RouteTrie.maskOf(length);
+				if (length <= 24)
+				{
+					int first = prefix >>> 8;
+					Arrays.fill(tbl24, first, first + (1 << (24 - length)),
+							index);
+					continue;
+				}
+
+				// Route longer than /24 needs an overflow block for its /24
+				int slot = prefix >>> 8;
+				int block;
+				if ((tbl24[slot] & BLOCK_FLAG) != 0)
+				{ block = tbl24[slot] & ~BLOCK_FLAG; }
+				else
+				{
+					block = blockCount++;
+					if (blockCount * BLOCK_SIZE > tblLong.length)
+					{ tblLong = Arrays.copyOf(tblLong, tblLong.length * 2); }
+					Arrays.fill(tblLong, block * BLOCK_SIZE,
+							(block + 1) * BLOCK_SIZE, tbl24[slot]);
+					tbl24[slot] = block | BLOCK_FLAG;
+				}
+				int first = block * BLOCK_SIZE + (prefix & 0xff);
+				Arrays.fill(tblLong, first, first + (1 << (32 - length)),
+						index);
+			}
+		}
+
+		tblLong = Arrays.copyOf(tblLong, blockCount * BLOCK_SIZE);
+		return new CompiledFib(tbl24, tblLong, blockCount, routes,
+				System.nanoTime() - start);
+	}
+
+	/**
+	 * Find the route with the longest prefix that matches an IP address.
+	 * @param ip IP address
+	 * @return the matching route entry, null if none exists
+	 */
+	public RouteEntry lookup(int ip)
+	{
+		int index = this.tbl24[ip >>> 8];
+		if ((index & BLOCK_FLAG) != 0)
+		{ index = this.tblLong[((index & ~BLOCK_FLAG) << 8) | (ip & 0xff)]; }
+		return this.routes[index];
+	}
+
+	/**
+	 * Find the routes with the longest prefixes that match a batch of IP
+	 * addresses.
+	 * @param ips IP addresses
+	 * @param count number of addresses to look up
+	 * @param results receives the matching route entry for each address, or
+	 *        null if none exists
+	 */
+	public void lookup(int[] ips, int count, RouteEntry[] results)
+	{
+		int[] tbl24 = this.tbl24;
+		int[] tblLong = this.tblLong;
+		RouteEntry[] routes = this.routes;
+		for (int i = 0; i < count; i++)
+		{
+			int ip = ips[i];
+			int index = tbl24[ip >>> 8];
+			if ((index & BLOCK_FLAG) != 0)
+			{ index = tblLong[((index & ~BLOCK_FLAG) << 8) | (ip & 0xff)]; }
+			results[i] = routes[index];
+		}
+	}
+
+	/**
+	 * @return number of routes in the table
+	 */
+	public int getRouteCount()
+	{ return this.routes.length - 1; }
+
+	/**
+	 * @return number of overflow blocks used for prefixes longer than /24
+	 */
+	public int getBlockCount()
+	{ return this.blockCount; }
+
+	/**
+	 * @return approximate memory (in bytes) used by the table arrays
+	 */
+	public long getMemoryUsage()
+	{
+		return 4L * this.tbl24.length + 4L * this.tblLong.length
+				+ 4L * this.routes.length;
+	}
+
+	/**
+	 * @return time (in nanoseconds) taken to build the table
+	 */
+	public long getBuildTime()
+	{ return this.buildTime; }
+
+	public String toString()
+	{
+		return String.format("DIR-24-8 FIB: %d routes, %d overflow blocks, "
+				+ "%.1f MB, built in %.1f ms", this.getRouteCount(),
+				this.blockCount, this.getMemoryUsage() / (1024.0 * 1024.0),
+				this.buildTime / 1000000.0);
+	}
+}
@@ -0,0 +1,281 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.floodlightcontroller.packet.MACAddress;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * Exact-match cache of forwarding decisions for flows, keyed by source and
+ * destination address, protocol and ports. A hit gives the outgoing
+ * interface and next-hop MAC address chosen for the flow, so packets of a
+ * cached flow skip the route lookup, ARP lookup and path selection.
+ * <p>
+ * Keys are kept in primitive arrays for probing; the decision in each slot
+ * is an immutable entry that repeats its key, which a reader confirms, so
+ * concurrent readers and writers at worst miss. Each entry records the
+ * route table and ARP cache generations, and the cache epoch, it was made
+ * against, and is ignored once any of them moves on.
+ * <p>
+ * A flow is stored in a short window of slots from its home slot. When the
+ * window is full, a clock sweep picks the victim: a hit marks the entry
+ * referenced, and the sweep clears marks until it finds an unmarked entry.
+ */
+public class FlowCache
+{
+	/** Default number of slots in the cache */
+	public static final int DEFAULT_CAPACITY = 16384;
+
+	/** Maximum number of slots examined for a flow */
+	private static final int MAX_PROBES = 8;
+
+	/** Set in a port key for packets that carry ports */
+	private static final long HAS_PORTS = 1L << 40;
+
+	/** A cached decision for one flow */
+	public static class Entry
+	{
+		private final long addresses;
+		private final long portKey;
+		private final Iface iface;
+		private final MACAddress nextHopMac;
+		private final long routeGeneration;
+		private final long arpGeneration;
+		private final long epoch;
+
+		Entry(long addresses, long portKey, Iface iface, MACAddress nextHopMac,
+				long routeGeneration, long arpGeneration, long epoch)
+		{
+			this.addresses = addresses;
+			this.portKey = portKey;
+			this.iface = iface;
+			this.nextHopMac = nextHopMac;
+			this.routeGeneration = routeGeneration;
+			this.arpGeneration = arpGeneration;
+			this.epoch = epoch;
+		}
+
+		/**
+		 * @return router interface out which the flow's packets are sent
+		 */
+		public Iface getInterface()
+		{ return this.iface; }
+
+		/**
+		 * @return MAC address of the next hop for the flow
+		 */
+		public MACAddress getNextHopMac()
+		{ return this.nextHopMac; }
+
+		boolean isCurrent(long routeGeneration, long arpGeneration, long epoch)
+		{
+			return (this.routeGeneration == routeGeneration)
+					&& (this.arpGeneration == arpGeneration)
+					&& (this.epoch == epoch);
+		}
+	}
+
+	/** Source and destination addresses stored in each slot */
+	private final long[] addressKeys;
+
+	/** Protocol and ports stored in each slot */
+	private final long[] portKeys;
+
+	/** Decision stored in each slot; null if the slot is empty */
+	private final Entry[] entries;
+
+	/** Whether each slot was hit since the clock last passed it */
+	private final boolean[] referenced;
+
+	/** Mask that maps a hash onto a slot */
+	private final int mask;
+
+	/** Incremented to invalidate every entry at once */
+	private final AtomicLong epoch;
+
+	private final LongAdder hits;
+	private final LongAdder misses;
+	private final LongAdder evictions;
+
+	/**
+	 * Create an empty cache with the default capacity.
+	 */
+	public FlowCache()
+	{ this(DEFAULT_CAPACITY); }
+
+	/**
+	 * Create an empty cache.
+	 * @param capacity number of slots; rounded up to a power of two
+	 */
+	public FlowCache(int capacity)
+	{
+		int size = Integer.highestOneBit(Math.max(capacity, MAX_PROBES) - 1) << 1;
+		this.addressKeys = new long[size];
+		this.portKeys = new long[size];
+		this.entries = new Entry[size];
+		this.referenced = new boolean[size];
+		this.mask = size - 1;
+		this.epoch = new AtomicLong();
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+		this.evictions = new LongAdder();
+	}
+
+	/**
+	 * @return the key for a flow's addresses
+	 */
+	static long addressKey(int srcAddr, int dstAddr)
+	{ return ((long)srcAddr << 32) | (dstAddr & 0xffffffffL); }
+
+	/**
+	 * @return the key for a flow's protocol and ports
+	 * @param protocol IP protocol number
+	 * @param hasPorts true if the packet carries ports
+	 * @param ports TCP or UDP source port and destination port; 0 otherwise
+	 */
+	static long portKey(int protocol, boolean hasPorts, int ports)
+	{
+		return ((long)(protocol & 0xff) << 32) | (hasPorts ? HAS_PORTS : 0)
+				| (ports & 0xffffffffL);
+	}
+
+	/**
+	 * @return the home slot for a flow, from its flow hash
+	 */
+	private int slotOf(int flowHash)
+	{ return flowHash & this.mask; }
+
+	/**
+	 * @return the current epoch; entries made in an earlier epoch are ignored
+	 */
+	public long getEpoch()
+	{ return this.epoch.get(); }
+
+	/**
+	 * Invalidate every entry, for changes not covered by the route table
+	 * and ARP cache generations, such as a change of interface addresses.
+	 */
+	public void invalidateAll()
+	{ this.epoch.incrementAndGet(); }
+
+	/**
+	 * Find the current decision for a flow.
+	 * @param flowHash well-mixed hash of the flow
+	 * @param addresses key from {@link #addressKey(int, int)}
+	 * @param ports key from {@link #portKey(int, boolean, int)}
+	 * @param routeGeneration current route table generation
+	 * @param arpGeneration current ARP cache generation
+	 * @return the decision, null if none is cached or it is stale
+	 */
+	public Entry lookup(int flowHash, long addresses, long ports,
+			long routeGeneration, long arpGeneration)
+	{
+		long currentEpoch = this.epoch.get();
+		int slot = this.slotOf(flowHash);
+		for (int i = 0; i < MAX_PROBES; i++)
+		{
+			if (this.addressKeys[slot] == addresses && this.portKeys[slot] == ports)
+			{
+				Entry entry = this.entries[slot];
+				if (entry != null && entry.addresses == addresses
+						&& entry.portKey == ports
+						&& entry.isCurrent(routeGeneration, arpGeneration,
+								currentEpoch))
+				{
+					this.referenced[slot] = true;
+					this.hits.increment();
+					return entry;
+				}
+				break;
+			}
+			slot = (slot + 1) & this.mask;
+		}
+		this.misses.increment();
+		return null;
+	}
+
+	/**
+	 * Cache the decision for a flow.
+	 * @param flowHash well-mixed hash of the flow
+	 * @param addresses key from {@link #addressKey(int, int)}
+	 * @param ports key from {@link #portKey(int, boolean, int)}
+	 * @param iface outgoing interface
+	 * @param nextHopMac MAC address of the next hop
+	 * @param routeGeneration route table generation read before deciding
+	 * @param arpGeneration ARP cache generation read before deciding
+	 * @param epoch cache epoch read before deciding
+	 */
+	public void insert(int flowHash, long addresses, long ports, Iface iface,
+			MACAddress nextHopMac, long routeGeneration, long arpGeneration,
+			long epoch)
+	{
+		Entry entry = new Entry(addresses, ports, iface, nextHopMac,
+				routeGeneration, arpGeneration, epoch);
+		int home = this.slotOf(flowHash);
+
+		// Use the flow's own slot, an empty slot or a stale slot if there is one
+		int target = -1;
+		int slot = home;
+		for (int i = 0; i < MAX_PROBES; i++)
+		{
+			Entry current = this.entries[slot];
+			if (null == current
+					|| (current.addresses == addresses && current.portKey == ports)
+					|| !current.isCurrent(routeGeneration, arpGeneration, epoch))
+			{
+				target = slot;
+				break;
+			}
+			slot = (slot + 1) & this.mask;
+		}
+
+		// Otherwise sweep the window, giving referenced entries a second chance
+		if (target < 0)
+		{
+			for (int i = 0; i < 2 * MAX_PROBES && target < 0; i++)
+			{
+				slot = (home + (i % MAX_PROBES)) & this.mask;
+				if (this.referenced[slot])
+				{ this.referenced[slot] = false; }
+				else
+				{ target = slot; }
+			}
+			this.evictions.increment();
+		}
+
+		this.entries[target] = entry;
+		this.addressKeys[target] = addresses;
+		this.portKeys[target] = ports;
+		this.referenced[target] = false;
+	}
+
+	/**
+	 * @return number of lookups that found a current decision
+	 */
+	public long getHits()
+	{ return this.hits.sum(); }
+
+	/**
+	 * @return number of lookups that found no current decision
+	 */
+	public long getMisses()
+	{ return this.misses.sum(); }
+
+	/**
+	 * @return number of current decisions evicted to make room
+	 */
+	public long getEvictions()
+	{ return this.evictions.sum(); }
+
+	public String toString()
+	{
+		long hits = this.getHits();
+		long lookups = hits + this.getMisses();
+		return String.format("Flow cache: %d hits, %d misses (%.1f%% hit rate),"
+				+ " %d evictions", hits, lookups - hits,
+				(0 == lookups) ? 0.0 : 100.0 * hits / lookups,
+				this.getEvictions());
+	}
+}
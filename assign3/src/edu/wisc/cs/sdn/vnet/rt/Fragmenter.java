@@ -0,0 +1,222 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import net.floodlightcontroller.packet.IPv4;
+
+import edu.wisc.cs.sdn.vnet.Device;
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.vns.CommandPacket;
+
+/**
+ * Splits IPv4 packets larger than an interface's MTU into fragments, as
+ * described in RFC 791, working on the bytes of the serialized frame. Each
+ * fragment is built in a reusable buffer from the original Ethernet
+ * header, a copy of the IPv4 header and a slice of the payload, and sent
+ * before the next is built; the packet is never decoded or reserialized.
+ * <p>
+ * The first fragment carries every option of the original header; later
+ * fragments carry only the options whose copied flag is set. Fragmenting
+ * a fragment keeps its offset and, on its last piece, its more-fragments
+ * flag.
+ */
+class Fragmenter
+{
+	/** Position of each fragment in a buffer */
+	private static final int FRAME_OFFSET = CommandPacket.FRAME_OFFSET;
+
+	/** Size of an Ethernet header without a VLAN tag */
+	private static final int ETHERNET_HEADER_SIZE = 14;
+
+	/** Size of an IPv4 header without options */
+	private static final int IPV4_MIN_HEADER_SIZE = 20;
+
+	/** Size of a buffer when first used; grown for larger MTUs */
+	private static final int INITIAL_BUFFER_SIZE = FRAME_OFFSET
+			+ ETHERNET_HEADER_SIZE + Iface.DEFAULT_MTU;
+
+	/** Flags in the high byte of the flags and fragment offset field */
+	private static final int FLAG_DONT_FRAGMENT = 0x40;
+	private static final int FLAG_MORE_FRAGMENTS = 0x20;
+
+	/** Option types that end the options, and that have no length */
+	private static final int OPTION_END = 0;
+	private static final int OPTION_NOP = 1;
+
+	/** Set in the type of an option copied into every fragment */
+	private static final int OPTION_COPIED = 0x80;
+
+	/** Buffer each thread builds fragments in */
+	private final ThreadLocal<byte[]> buffers;
+
+	/** Number of packets fragmented, and of fragments sent */
+	private final LongAdder packets;
+	private final LongAdder fragments;
+
+	Fragmenter()
+	{
+		this.buffers = new ThreadLocal<byte[]>() {
+			protected byte[] initialValue()
+			{ return new byte[INITIAL_BUFFER_SIZE]; }
+		};
+		this.packets = new LongAdder();
+		this.fragments = new LongAdder();
+	}
+
+	/**
+	 * @return true if the packet in a frame has its don't fragment flag set
+	 * @param buf buffer holding the frame
+	 * @param frameOffset position of the frame; it must hold a complete
+	 *        IPv4 header
+	 */
+	static boolean isDontFragment(byte[] buf, int frameOffset)
+	{
+		return 0 != (buf[frameOffset + ETHERNET_HEADER_SIZE + 6]
+				& FLAG_DONT_FRAGMENT);
+	}
+
+	/**
+	 * Send a frame out an interface as fragments no larger than the
+	 * interface's MTU. The frame's Ethernet header, TTL and other header
+	 * fields are copied into every fragment as they are.
+	 * @param device device to send the fragments from
+	 * @param buf buffer holding the frame
+	 * @param frameOffset position of the frame; it must hold a complete
+	 *        IPv4 header
+	 * @param frameLength length of the frame
+	 * @param outIface interface to send the fragments out
+	 * @return false if the packet cannot be fragmented for the MTU
+	 */
+	boolean send(Device device, byte[] buf, int frameOffset, int frameLength,
+			Iface outIface)
+	{
+		int ip = frameOffset + ETHERNET_HEADER_SIZE;
+		int headerLength = (buf[ip] & 0x0f) * 4;
+		int totalLength = Math.min(IPv4.getShort(buf, ip + 2),
+				frameLength - ETHERNET_HEADER_SIZE);
+		int field = IPv4.getShort(buf, ip + 6);
+		int baseOffset = (field & 0x1fff) * 8;
+		boolean moreAfter = 0 != ((field >>> 8) & FLAG_MORE_FRAGMENTS);
+
+		// Find the header length of later fragments, which carry only the
+		// options copied into every fragment
+		int mtu = outIface.getMtu();
+		byte[] out = this.getBuffer(mtu);
+		int outIp = FRAME_OFFSET + ETHERNET_HEADER_SIZE;
+		int laterHeaderLength = copyOptions(buf, ip, headerLength, out,
+				outIp);
+		if (mtu - headerLength < 8 || mtu - laterHeaderLength < 8)
+		{ return false; }
+
+		int payload = ip + headerLength;
+		int payloadLength = totalLength - headerLength;
+		int sent = 0;
+		int outHeaderLength = headerLength;
+		while (sent < payloadLength)
+		{
+			// Every fragment but the last carries a multiple of 8 bytes
+			int size = payloadLength - sent;
+			boolean last = (size <= mtu - outHeaderLength);
+			if (!last)
+			{ size = (mtu - outHeaderLength) & ~7; }
+
+			// The first fragment starts with the whole original header
+			if (0 == sent)
+			{
+				System.arraycopy(buf, frameOffset, out, FRAME_OFFSET,
+						ETHERNET_HEADER_SIZE + headerLength);
+			}
+			else
+			{
+				System.arraycopy(buf, frameOffset, out, FRAME_OFFSET,
+						ETHERNET_HEADER_SIZE + IPV4_MIN_HEADER_SIZE);
+				copyOptions(buf, ip, headerLength, out, outIp);
+			}
+			out[outIp] = (byte)(0x40 | (outHeaderLength / 4));
+			IPv4.putShort(out, outIp + 2, outHeaderLength + size);
+			int flags = (field >>> 8) & FLAG_DONT_FRAGMENT;
+			if (!last || moreAfter)
+			{ flags |= FLAG_MORE_FRAGMENTS; }
+			IPv4.putShort(out, outIp + 6, (flags << 8)
+					| ((baseOffset + sent) / 8));
+			out[outIp + 10] = 0;
+			out[outIp + 11] = 0;
+			System.arraycopy(buf, payload + sent, out,
+					outIp + outHeaderLength, size);
+			IPv4.putShort(out, outIp + 10, IPv4.computeChecksum(out, outIp,
+					outHeaderLength));
+			device.sendRawPacket(out, FRAME_OFFSET,
+					ETHERNET_HEADER_SIZE + outHeaderLength + size, outIface);
+			sent += size;
+			outHeaderLength = laterHeaderLength;
+			this.fragments.increment();
+		}
+		this.packets.increment();
+		return true;
+	}
+
+	/**
+	 * Copy the options of a header whose copied flag is set, padded to a
+	 * multiple of 4 bytes, after the fixed part of another header.
+	 * @return length of the header with only the copied options
+	 */
+	private static int copyOptions(byte[] buf, int ip, int headerLength,
+			byte[] out, int outIp)
+	{
+		int to = outIp + IPV4_MIN_HEADER_SIZE;
+		int end = ip + headerLength;
+		for (int option = ip + IPV4_MIN_HEADER_SIZE; option < end; )
+		{
+			int type = buf[option] & 0xff;
+			if (OPTION_END == type)
+			{ break; }
+			if (OPTION_NOP == type)
+			{
+				option++;
+				continue;
+			}
+			if (option + 1 >= end)
+			{ break; }
+			int length = buf[option + 1] & 0xff;
+			if (length < 2 || option + length > end)
+			{ break; }
+			if (0 != (type & OPTION_COPIED))
+			{
+				System.arraycopy(buf, option, out, to, length);
+				to += length;
+			}
+			option += length;
+		}
+		while (0 != ((to - outIp) & 3))
+		{ out[to++] = OPTION_END; }
+		return to - outIp;
+	}
+
+	/**
+	 * @return this thread's buffer, with room for a fragment of up to an
+	 *         MTU
+	 */
+	private byte[] getBuffer(int mtu)
+	{
+		byte[] buf = this.buffers.get();
+		if (buf.length < FRAME_OFFSET + ETHERNET_HEADER_SIZE + mtu)
+		{
+			buf = new byte[FRAME_OFFSET + ETHERNET_HEADER_SIZE + mtu];
+			this.buffers.set(buf);
+		}
+		return buf;
+	}
+
+	/**
+	 * @return number of packets fragmented
+	 */
+	long getPackets()
+	{ return this.packets.sum(); }
+
+	/**
+	 * @return number of fragments sent
+	 */
+	long getFragments()
+	{ return this.fragments.sum(); }
+
+}
@@ -0,0 +1,227 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.MACAddress;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.vns.CommandPacket;
+
+/**
+ * Builds ICMP messages sent by a router directly into a reusable buffer,
+ * from the bytes of the packet that caused them. The Ethernet and IPv4
+ * headers of each message start from a template prepared once for the
+ * interface the message is sent out; only the addresses, lengths and
+ * checksums are filled in, and only the bytes a message carries are copied
+ * from the original packet. Replies go to the MAC address the original
+ * frame came from, so no route or ARP lookup is needed.
+ * <p>
+ * Each thread builds into its own buffer, with room before the frame for
+ * the VNS command header, so the frame can be sent with
+ * {@link edu.wisc.cs.sdn.vnet.Device#sendRawPacket}.
+ */
+class IcmpBuilder
+{
+	/** Position of the frame in a buffer */
+	static final int FRAME_OFFSET = CommandPacket.FRAME_OFFSET;
+
+	/** TTL of messages sent */
+	private static final int TTL = 64;
+
+	/** Size of an Ethernet header without a VLAN tag */
+	private static final int ETHERNET_HEADER_SIZE = 14;
+
+	/** Size of the IPv4 header of messages sent */
+	private static final int IPV4_HEADER_SIZE = 20;
+
+	/** Size of an ICMP header */
+	static final int ICMP_HEADER_SIZE = 8;
+
+	/** Bytes of the original packet's payload quoted in an ICMP error */
+	private static final int QUOTED_PAYLOAD_SIZE = 8;
+
+	/** Largest ICMP error frame: headers, and the largest IPv4 header of
+	 * the original packet with 8 bytes of its payload */
+	static final int MAX_ERROR_SIZE = ETHERNET_HEADER_SIZE + IPV4_HEADER_SIZE
+			+ ICMP_HEADER_SIZE + 60 + QUOTED_PAYLOAD_SIZE;
+
+	/** Size of a buffer when first used; grown for large echo replies */
+	private static final int INITIAL_BUFFER_SIZE = FRAME_OFFSET + 1514;
+
+	/** ICMP type of an echo request */
+	static final int TYPE_ECHO_REQUEST = 8;
+
+	/** Ethernet and IPv4 headers for messages sent out an interface */
+	private static class Template
+	{
+		/** Interface address and MAC the template was built for */
+		final int ipAddress;
+		final MACAddress macAddress;
+
+		/** Ethernet header followed by IPv4 header; the destination MAC,
+		 * total length, checksum and destination address are left zero */
+		final byte[] headers;
+
+		Template(Iface iface)
+		{
+			this.ipAddress = iface.getIpAddress();
+			this.macAddress = iface.getMacAddress();
+			this.headers = new byte[ETHERNET_HEADER_SIZE + IPV4_HEADER_SIZE];
+			if (this.macAddress != null)
+			{ this.macAddress.copyTo(this.headers, 6); }
+			this.headers[12] = 0x08;
+			this.headers[13] = 0x00;
+			int ip = ETHERNET_HEADER_SIZE;
+			this.headers[ip] = 0x45;
+			this.headers[ip + 8] = (byte)TTL;
+			this.headers[ip + 9] = IPv4.PROTOCOL_ICMP;
+			IPv4.putInt(this.headers, ip + 12, this.ipAddress);
+		}
+
+		boolean isFor(Iface iface)
+		{
+			return (this.ipAddress == iface.getIpAddress())
+					&& (this.macAddress == iface.getMacAddress());
+		}
+	}
+
+	/** Template for each interface; rebuilt if the interface changes */
+	private final Map<Iface,Template> templates;
+
+	/** Buffer each thread builds messages in */
+	private final ThreadLocal<byte[]> buffers;
+
+	IcmpBuilder()
+	{
+		this.templates = new ConcurrentHashMap<Iface,Template>();
+		this.buffers = new ThreadLocal<byte[]>() {
+			protected byte[] initialValue()
+			{ return new byte[INITIAL_BUFFER_SIZE]; }
+		};
+	}
+
+	/**
+	 * @return this thread's buffer, with room for a frame of a given length
+	 *         at {@link #FRAME_OFFSET}
+	 */
+	byte[] getBuffer(int frameLength)
+	{
+		byte[] buf = this.buffers.get();
+		if (buf.length < FRAME_OFFSET + frameLength)
+		{
+			buf = new byte[FRAME_OFFSET + frameLength];
+			this.buffers.set(buf);
+		}
+		return buf;
+	}
+
+	private Template getTemplate(Iface iface)
+	{
+		Template template = this.templates.get(iface);
+		if (null == template || !template.isFor(iface))
+		{
+			template = new Template(iface);
+			this.templates.put(iface, template);
+		}
+		return template;
+	}
+
+	/**
+	 * Build an ICMP error about a packet, quoting its IPv4 header and the
+	 * first 8 bytes of its payload.
+	 * @param out buffer to build into, from {@link #getBuffer(int)}
+	 * @param iface interface the error is sent out; its address is the
+	 *        error's source
+	 * @param type ICMP type
+	 * @param code ICMP code
+	 * @param rest value of the second word of the ICMP header, such as the
+	 *        next-hop MTU of a fragmentation needed error (RFC 1191); 0 for
+	 *        most errors
+	 * @param frame buffer holding the original frame
+	 * @param frameOffset position of the original frame
+	 * @param frameLength length of the original frame
+	 * @return length of the frame built at {@link #FRAME_OFFSET}
+	 */
+	int buildError(byte[] out, Iface iface, int type, int code, int rest,
+			byte[] frame, int frameOffset, int frameLength)
+	{
+		int origIp = frameOffset + ETHERNET_HEADER_SIZE;
+		int quoted = Math.min((frame[origIp] & 0x0f) * 4 + QUOTED_PAYLOAD_SIZE,
+				Math.min(IPv4.getShort(frame, origIp + 2),
+						frameLength - ETHERNET_HEADER_SIZE));
+		int icmpLength = ICMP_HEADER_SIZE + quoted;
+
+		int icmp = this.writeHeaders(out, iface, iface.getIpAddress(), frame,
+				frameOffset, icmpLength);
+		out[icmp] = (byte)type;
+		out[icmp + 1] = (byte)code;
+		out[icmp + 2] = 0;
+		out[icmp + 3] = 0;
+		IPv4.putInt(out, icmp + 4, rest);
+		System.arraycopy(frame, origIp, out, icmp + ICMP_HEADER_SIZE, quoted);
+		IPv4.putShort(out, icmp + 2, IPv4.computeChecksum(out, icmp, 
+				icmpLength));
+		return ETHERNET_HEADER_SIZE + IPV4_HEADER_SIZE + icmpLength;
+	}
+
+	/**
+	 * Build an echo reply to an echo request, from the address the request
+	 * was sent to.
+	 * @param out buffer to build into, from {@link #getBuffer(int)}, with
+	 *        room for a frame as long as the request
+	 * @param iface interface the reply is sent out
+	 * @param frame buffer holding the echo request frame
+	 * @param frameOffset position of the request frame
+	 * @param frameLength length of the request frame
+	 * @return length of the frame built at {@link #FRAME_OFFSET}
+	 */
+	int buildEchoReply(byte[] out, Iface iface, byte[] frame, int frameOffset,
+			int frameLength)
+	{
+		int origIp = frameOffset + ETHERNET_HEADER_SIZE;
+		int origHeaderLength = (frame[origIp] & 0x0f) * 4;
+		int icmpLength = Math.min(IPv4.getShort(frame, origIp + 2),
+				frameLength - ETHERNET_HEADER_SIZE) - origHeaderLength;
+		int origIcmp = origIp + origHeaderLength;
+
+		int icmp = this.writeHeaders(out, iface, 
+				IPv4.getInt(frame, origIp + 16), frame, frameOffset, icmpLength);
+		System.arraycopy(frame, origIcmp, out, icmp, icmpLength);
+
+		// Only the type and code change, so patch the request's checksum
+		short typeCode = (short)(((out[icmp] & 0xff) << 8) | (out[icmp + 1] & 0xff));
+		out[icmp] = 0;
+		out[icmp + 1] = 0;
+		IPv4.putShort(out, icmp + 2, IPv4.updateChecksum(
+				(short)IPv4.getShort(out, icmp + 2), typeCode, (short)0));
+		return ETHERNET_HEADER_SIZE + IPV4_HEADER_SIZE + icmpLength;
+	}
+
+	/**
+	 * Write the Ethernet and IPv4 headers of a message back to the sender
+	 * of a frame.
+	 * @return position of the ICMP message in the buffer
+	 */
+	private int writeHeaders(byte[] out, Iface iface, int srcAddr,
+			byte[] frame, int frameOffset, int icmpLength)
+	{
+		Template template = this.getTemplate(iface);
+		int eth = FRAME_OFFSET;
+		int ip = eth + ETHERNET_HEADER_SIZE;
+		System.arraycopy(template.headers, 0, out, eth, template.headers.length);
+
+		// Reply to the MAC address and IP address the frame came from
+		System.arraycopy(frame, frameOffset + 6, out, eth, 6);
+		IPv4.putShort(out, ip + 2, IPV4_HEADER_SIZE + icmpLength);
+		if (srcAddr != template.ipAddress)
+		{ IPv4.putInt(out, ip + 12, srcAddr); }
+		System.arraycopy(frame, frameOffset + ETHERNET_HEADER_SIZE + 12,
+				out, ip + 16, 4);
+		IPv4.putShort(out, ip + 10, IPv4.computeChecksum(out, ip, 
+				IPV4_HEADER_SIZE));
+		return ip + IPV4_HEADER_SIZE;
+	}
+
+}
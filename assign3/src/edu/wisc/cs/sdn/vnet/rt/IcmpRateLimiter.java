@@ -0,0 +1,142 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+/**
+ * Limits the rate of ICMP error messages a router generates, as suggested
+ * by RFC 1812 (section 4.3.2.8): a global token bucket caps the total rate,
+ * and a token bucket per source address stops one source from using the
+ * whole budget.
+ * <p>
+ * Each bucket is kept as a single theoretical arrival time (the generic
+ * cell rate algorithm): a message is allowed if the bucket's time is no
+ * more than a burst of intervals ahead of now, and each message allowed
+ * moves the time one interval ahead. Per-source buckets are stored in
+ * primitive arrays indexed by a hash of the source address, so checking a
+ * message allocates nothing. A source whose slot is taken by another
+ * source starts with a full bucket; the global bucket still applies.
+ * <p>
+ * Checks are synchronized; errors are only generated for packets that are
+ * not forwarded, so the lock is off the forwarding path.
+ */
+public class IcmpRateLimiter
+{
+	/** Number of per-source buckets */
+	private static final int SOURCE_SLOTS = 1024;
+
+	/** Interval between messages at the global rate, in nanoseconds */
+	private final long globalInterval;
+
+	/** How far the global bucket may run ahead of now, in nanoseconds */
+	private final long globalBurst;
+
+	/** Interval between messages at the per-source rate, in nanoseconds */
+	private final long sourceInterval;
+
+	/** How far a per-source bucket may run ahead of now, in nanoseconds */
+	private final long sourceBurst;
+
+	/** Theoretical arrival time of the global bucket */
+	private long globalTime;
+
+	/** Source address owning each per-source bucket */
+	private final int[] sources;
+
+	/** Theoretical arrival time of each per-source bucket; 0 if unused */
+	private final long[] sourceTimes;
+
+	/** Number of messages allowed */
+	private long allowed;
+
+	/** Number of messages suppressed by the global bucket */
+	private long suppressedGlobal;
+
+	/** Number of messages suppressed by a per-source bucket */
+	private long suppressedSource;
+
+	/**
+	 * Create a rate limiter.
+	 * @param globalRate messages allowed per second in total
+	 * @param globalBurst messages allowed at once in total
+	 * @param sourceRate messages allowed per second for each source
+	 * @param sourceBurst messages allowed at once for each source
+	 */
+	public IcmpRateLimiter(int globalRate, int globalBurst, int sourceRate,
+			int sourceBurst)
+	{
+		if (globalRate < 1 || sourceRate < 1 || globalBurst < 1 || sourceBurst < 1)
+		{ throw new IllegalArgumentException("Rates and bursts must be positive"); }
+		this.globalInterval = 1000000000L / globalRate;
+		this.globalBurst = (globalBurst - 1) * this.globalInterval;
+		this.sourceInterval = 1000000000L / sourceRate;
+		this.sourceBurst = (sourceBurst - 1) * this.sourceInterval;
+		this.sources = new int[SOURCE_SLOTS];
+		this.sourceTimes = new long[SOURCE_SLOTS];
+		this.globalTime = Long.MIN_VALUE;
+	}
+
+	/**
+	 * Decide whether an ICMP error may be sent to a source now, and count
+	 * the decision.
+	 * @param source address the error would be sent to
+	 * @param now current time, from {@link System#nanoTime()}
+	 * @return true if the error may be sent
+	 */
+	public synchronized boolean allow(int source, long now)
+	{
+		int slot = slotOf(source);
+		long sourceTime = this.sourceTimes[slot];
+		if (this.sources[slot] != source || 0 == sourceTime || sourceTime < now)
+		{ sourceTime = now; }
+		if (sourceTime - now > this.sourceBurst)
+		{
+			this.suppressedSource++;
+			return false;
+		}
+
+		long globalTime = Math.max(this.globalTime, now);
+		if (globalTime - now > this.globalBurst)
+		{
+			this.suppressedGlobal++;
+			return false;
+		}
+
+		this.globalTime = globalTime + this.globalInterval;
+		this.sources[slot] = source;
+		this.sourceTimes[slot] = sourceTime + this.sourceInterval;
+		this.allowed++;
+		return true;
+	}
+
+	private static int slotOf(int source)
+	{
+		int h = source * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & (SOURCE_SLOTS - 1);
+	}
+
+	/**
+	 * @return number of messages allowed
+	 */
+	public synchronized long getAllowed()
+	{ return this.allowed; }
+
+	/**
+	 * @return number of messages suppressed because the total rate was
+	 *         exceeded
+	 */
+	public synchronized long getSuppressedGlobal()
+	{ return this.suppressedGlobal; }
+
+	/**
+	 * @return number of messages suppressed because the rate for their
+	 *         source was exceeded
+	 */
+	public synchronized long getSuppressedSource()
+	{ return this.suppressedSource; }
+
+	public synchronized String toString()
+	{
+		return String.format("ICMP errors: %d sent, %d suppressed (%d global,"
+				+ " %d per source)", this.allowed,
+				this.suppressedGlobal + this.suppressedSource,
+				this.suppressedGlobal, this.suppressedSource);
+	}
+}
@@ -0,0 +1,408 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import net.floodlightcontroller.packet.IPv4;
+
+import edu.wisc.cs.sdn.vnet.vns.CommandPacket;
+
+/**
+ * Reassembles fragmented IPv4 packets addressed to the router, from the
+ * bytes of the received frames.
+ * <p>
+ * A fixed number of datagrams are reassembled at once, each in a buffer
+ * owned by its slot and reused for every datagram the slot holds, so a
+ * storm of fragments neither grows memory nor creates garbage: when every
+ * slot is busy, the datagram that has waited longest is dropped to make
+ * room. Payload is copied to its final position as each fragment arrives,
+ * and the missing ranges are tracked as hole descriptors (RFC 815); a
+ * datagram split into more holes than a slot can track is dropped.
+ * <p>
+ * Each datagram is dropped if it is not complete within a timeout. Pending
+ * datagrams are kept on a timing wheel with a list of datagrams for each
+ * tick, so expiring them costs nothing for ticks without datagrams, and
+ * the datagram that has waited longest is found in the first list that is
+ * not empty. The wheel is advanced as fragments arrive.
+ * <p>
+ * Methods are synchronized; only fragments addressed to the router are
+ * reassembled, so the lock is off the forwarding path.
+ */
+class Reassembler
+{
+	/** Number of datagrams reassembled at once */
+	private static final int MAX_DATAGRAMS = 64;
+
+	/** Most holes tracked in one datagram */
+	private static final int MAX_HOLES = 32;
+
+	/** Largest payload of an IPv4 packet */
+	private static final int MAX_PAYLOAD = 65535 - 20;
+
+	/** Size of an Ethernet header without a VLAN tag */
+	private static final int ETHERNET_HEADER_SIZE = 14;
+
+	/** Size of the largest IPv4 header */
+	private static final int IPV4_MAX_HEADER_SIZE = 60;
+
+	/** Position of the payload in a slot's buffer, leaving room before it
+	 * for the VNS command header, the Ethernet header and any IPv4 header */
+	private static final int PAYLOAD_OFFSET = CommandPacket.FRAME_OFFSET
+			+ ETHERNET_HEADER_SIZE + IPV4_MAX_HEADER_SIZE;
+
+	/** Length of a tick of the timing wheel, in nanoseconds */
+	private static final long TICK_NANOS = 1000000000L;
+
+	/** Ticks a datagram may wait for its fragments (RFC 1122 suggests 60 to
+	 * 120 seconds; like most hosts we use less, to free slots sooner) */
+	private static final int TIMEOUT_TICKS = 30;
+
+	/** Number of lists on the timing wheel; a power of two greater than
+	 * the timeout */
+	private static final int WHEEL_SIZE = 32;
+
+	/** Marks the end of a list */
+	private static final int NONE = -1;
+
+	/** Flags in the high byte of the flags and fragment offset field */
+	private static final int FLAG_MORE_FRAGMENTS = 0x20;
+
+	/** A datagram being reassembled, or reassembled and not yet released */
+	static class Datagram
+	{
+		/** Holds the datagram; allocated when the slot is first used */
+		private byte[] buf;
+
+		/** Source and destination addresses, and identification and
+		 * protocol, of the fragments */
+		private long addresses;
+		private int idProtocol;
+
+		/** First and last byte of each range of payload not yet received */
+		private final int[] holeFirst = new int[MAX_HOLES];
+		private final int[] holeLast = new int[MAX_HOLES];
+		private int holes;
+
+		/** Length of the IPv4 header of the first fragment; 0 until it
+		 * arrives */
+		private int headerLength;
+
+		/** Length of the payload; -1 until the last fragment arrives */
+		private int payloadLength;
+
+		/** Whether the slot holds a datagram being reassembled */
+		private boolean pending;
+
+		/** Whether the slot holds a reassembled datagram not yet released */
+		private boolean lent;
+
+		/** Tick after which the datagram is dropped, and the neighbours of
+		 * the datagram in the list for that tick */
+		private long expires;
+		private int prev;
+		private int next;
+
+		/** Position and length of the reassembled frame */
+		private int frameOffset;
+		private int frameLength;
+
+		/**
+		 * @return buffer holding the reassembled frame
+		 */
+		byte[] getBuffer()
+		{ return this.buf; }
+
+		/**
+		 * @return position of the reassembled frame in the buffer, with room
+		 *         before it for the VNS command header
+		 */
+		int getFrameOffset()
+		{ return this.frameOffset; }
+
+		/**
+		 * @return length of the reassembled frame
+		 */
+		int getFrameLength()
+		{ return this.frameLength; }
+	}
+
+	private final Datagram[] datagrams;
+
+	/** First datagram in the list for each tick of the wheel */
+	private final int[] wheel;
+
+	/** Last tick the wheel was advanced to */
+	private long tick;
+
+	/** Number of datagrams reassembled, timed out, dropped to make room or
+	 * for too many holes, and of fragments that could not be used */
+	private long reassembled;
+	private long timedOut;
+	private long evicted;
+	private long tooManyHoles;
+	private long badFragments;
+
+	Reassembler()
+	{
+		this.datagrams = new Datagram[MAX_DATAGRAMS];
+		for (int i = 0; i < MAX_DATAGRAMS; i++)
+		{ this.datagrams[i] = new Datagram(); }
+		this.wheel = new int[WHEEL_SIZE];
+		for (int i = 0; i < WHEEL_SIZE; i++)
+		{ this.wheel[i] = NONE; }
+		this.tick = Long.MIN_VALUE;
+	}
+
+	/**
+	 * Add a fragment addressed to the router.
+	 * @param buf buffer holding the frame; not used after this returns
+	 * @param frameOffset position of the frame; it must hold a complete,
+	 *        checked IPv4 header
+	 * @param frameLength length of the frame
+	 * @param now current time, from {@link System#nanoTime()}
+	 * @return the reassembled datagram, which must be passed to
+	 *         {@link #release(Datagram)} once handled; null if the datagram
+	 *         is not yet complete or the fragment was dropped
+	 */
+	synchronized Datagram add(byte[] buf, int frameOffset, int frameLength,
+			long now)
+	{
+		this.advance(now / TICK_NANOS);
+
+		int ip = frameOffset + ETHERNET_HEADER_SIZE;
+		int headerLength = (buf[ip] & 0x0f) * 4;
+		int totalLength = IPv4.getShort(buf, ip + 2);
+		int field = IPv4.getShort(buf, ip + 6);
+		boolean more = 0 != ((field >>> 8) & FLAG_MORE_FRAGMENTS);
+		int first = (field & 0x1fff) * 8;
+		int length = totalLength - headerLength;
+		int last = first + length - 1;
+		if (length <= 0 || ETHERNET_HEADER_SIZE + totalLength > frameLength
+				|| (more && 0 != (length & 7)) || last >= MAX_PAYLOAD)
+		{
+			this.badFragments++;
+			return null;
+		}
+
+		long addresses = ((long)IPv4.getInt(buf, ip + 12) << 32)
+				| (IPv4.getInt(buf, ip + 16) & 0xffffffffL);
+		int idProtocol = (IPv4.getShort(buf, ip + 4) << 8) 
+				| (buf[ip + 9] & 0xff);
+		int slot = this.find(addresses, idProtocol);
+		if (NONE == slot)
+		{
+			slot = this.allocate(addresses, idProtocol);
+			if (NONE == slot)
+			{
+				this.badFragments++;
+				return null;
+			}
+		}
+		Datagram datagram = this.datagrams[slot];
+
+		// Copy the payload to its place, and the headers of the first fragment
+		// to just before the payload
+		System.arraycopy(buf, ip + headerLength, datagram.buf,
+				PAYLOAD_OFFSET + first, length);
+		if (0 == first)
+		{
+			datagram.headerLength = headerLength;
+			System.arraycopy(buf, frameOffset, datagram.buf,
+					PAYLOAD_OFFSET - headerLength - ETHERNET_HEADER_SIZE,
+					ETHERNET_HEADER_SIZE + headerLength);
+		}
+		if (!more)
+		{ datagram.payloadLength = last + 1; }
+
+		// Fill the holes the fragment covers, leaving what is still missing
+		// on either side (RFC 815)
+		for (int i = 0; i < datagram.holes; i++)
+		{
+			int holeFirst = datagram.holeFirst[i];
+			int holeLast = datagram.holeLast[i];
+			if (first > holeLast || last < holeFirst)
+			{ continue; }
+			datagram.holes--;
+			datagram.holeFirst[i] = datagram.holeFirst[datagram.holes];
+			datagram.holeLast[i] = datagram.holeLast[datagram.holes];
+			i--;
+			if ((first > holeFirst && !this.addHole(datagram, holeFirst, first - 1))
+					|| (last < holeLast && more
+							&& !this.addHole(datagram, last + 1, holeLast)))
+			{
+				this.tooManyHoles++;
+				this.free(slot);
+				return null;
+			}
+		}
+		if (datagram.holes > 0 || 0 == datagram.headerLength
+				|| datagram.payloadLength < 0)
+		{ return null; }
+
+		// Complete: make the header describe the whole datagram
+		this.unlink(slot);
+		datagram.pending = false;
+		datagram.lent = true;
+		datagram.frameOffset = PAYLOAD_OFFSET - datagram.headerLength
+				- ETHERNET_HEADER_SIZE;
+		datagram.frameLength = ETHERNET_HEADER_SIZE + datagram.headerLength
+				+ datagram.payloadLength;
+		int outIp = datagram.frameOffset + ETHERNET_HEADER_SIZE;
+		IPv4.putShort(datagram.buf, outIp + 2, datagram.headerLength
+				+ datagram.payloadLength);
+		datagram.buf[outIp + 6] &= (byte)~(FLAG_MORE_FRAGMENTS | 0x1f);
+		datagram.buf[outIp + 7] = 0;
+		datagram.buf[outIp + 10] = 0;
+		datagram.buf[outIp + 11] = 0;
+		IPv4.putShort(datagram.buf, outIp + 10, IPv4.computeChecksum(
+				datagram.buf, outIp, datagram.headerLength));
+		this.reassembled++;
+		return datagram;
+	}
+
+	/**
+	 * Return a reassembled datagram's slot, once the datagram is handled.
+	 */
+	synchronized void release(Datagram datagram)
+	{ datagram.lent = false; }
+
+	private boolean addHole(Datagram datagram, int first, int last)
+	{
+		if (datagram.holes >= MAX_HOLES)
+		{ return false; }
+		datagram.holeFirst[datagram.holes] = first;
+		datagram.holeLast[datagram.holes] = last;
+		datagram.holes++;
+		return true;
+	}
+
+	/**
+	 * @return slot of the pending datagram with a key, NONE if there is none
+	 */
+	private int find(long addresses, int idProtocol)
+	{
+		for (int i = 0; i < MAX_DATAGRAMS; i++)
+		{
+			Datagram datagram = this.datagrams[i];
+			if (datagram.pending && datagram.addresses == addresses
+					&& datagram.idProtocol == idProtocol)
+			{ return i; }
+		}
+		return NONE;
+	}
+
+	/**
+	 * Start a datagram in a free slot, or in the slot of the datagram that
+	 * has waited longest if none is free.
+	 * @return the slot, NONE if every slot holds a datagram not released
+	 */
+	private int allocate(long addresses, int idProtocol)
+	{
+		int slot = NONE;
+		for (int i = 0; i < MAX_DATAGRAMS && NONE == slot; i++)
+		{
+			if (!this.datagrams[i].pending && !this.datagrams[i].lent)
+			{ slot = i; }
+		}
+		if (NONE == slot)
+		{
+			slot = this.oldest();
+			if (NONE == slot)
+			{ return NONE; }
+			this.free(slot);
+			this.evicted++;
+		}
+
+		Datagram datagram = this.datagrams[slot];
+		if (null == datagram.buf)
+		{ datagram.buf = new byte[PAYLOAD_OFFSET + MAX_PAYLOAD]; }
+		datagram.addresses = addresses;
+		datagram.idProtocol = idProtocol;
+		datagram.holeFirst[0] = 0;
+		datagram.holeLast[0] = MAX_PAYLOAD - 1;
+		datagram.holes = 1;
+		datagram.headerLength = 0;
+		datagram.payloadLength = -1;
+		datagram.pending = true;
+
+		// Put the datagram at the end of the list for its expiry tick
+		datagram.expires = this.tick + TIMEOUT_TICKS;
+		int list = (int)datagram.expires & (WHEEL_SIZE - 1);
+		datagram.next = NONE;
+		datagram.prev = NONE;
+		if (NONE == this.wheel[list])
+		{ this.wheel[list] = slot; }
+		else
+		{
+			int tail = this.wheel[list];
+			while (this.datagrams[tail].next != NONE)
+			{ tail = this.datagrams[tail].next; }
+			this.datagrams[tail].next = slot;
+			datagram.prev = tail;
+		}
+		return slot;
+	}
+
+	/**
+	 * @return slot of the pending datagram that has waited longest, NONE
+	 *         if there is none
+	 */
+	private int oldest()
+	{
+		for (int i = 1; i <= WHEEL_SIZE; i++)
+		{
+			int slot = this.wheel[(int)(this.tick + i) & (WHEEL_SIZE - 1)];
+			if (slot != NONE)
+			{ return slot; }
+		}
+		return NONE;
+	}
+
+	/**
+	 * Drop every pending datagram that expires before a tick.
+	 */
+	private void advance(long now)
+	{
+		if (Long.MIN_VALUE == this.tick)
+		{ this.tick = now; }
+		long ticks = Math.min(now - this.tick, WHEEL_SIZE);
+		for (long i = 1; i <= ticks; i++)
+		{
+			int list = (int)(this.tick + i) & (WHEEL_SIZE - 1);
+			while (this.wheel[list] != NONE)
+			{
+				this.free(this.wheel[list]);
+				this.timedOut++;
+			}
+		}
+		this.tick = Math.max(this.tick, now);
+	}
+
+	private void free(int slot)
+	{
+		this.unlink(slot);
+		this.datagrams[slot].pending = false;
+	}
+
+	/**
+	 * Remove a pending datagram from the list for its expiry tick.
+	 */
+	private void unlink(int slot)
+	{
+		Datagram datagram = this.datagrams[slot];
+		if (datagram.prev != NONE)
+		{ this.datagrams[datagram.prev].next = datagram.next; }
+		else
+		{ this.wheel[(int)datagram.expires & (WHEEL_SIZE - 1)] = datagram.next; }
+		if (datagram.next != NONE)
+		{ this.datagrams[datagram.next].prev = datagram.prev; }
+		datagram.prev = NONE;
+		datagram.next = NONE;
+	}
+
+	public synchronized String toString()
+	{
+		return String.format("Reassembly: %d datagrams, %d timed out,"
+				+ " %d dropped for room, %d for too many holes,"
+				+ " %d bad fragments", this.reassembled, this.timedOut,
+				this.evicted, this.tooManyHoles, this.badFragments);
+	}
+
+}
@@ -0,0 +1,197 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import net.floodlightcontroller.packet.MACAddress;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * A bounded cache of forwarding decisions keyed by destination IP address.
+ * A decision holds every resolved equal-cost path to the destination; the
+ * path for a particular packet is chosen by the caller.
+ * Each decision records the route table and ARP cache generations it was
+ * resolved against, and is ignored once either generation moves on, so a
+ * route or ARP change can never be masked by a stale decision.
+ * <p>
+ * The cache is an open-addressing table with a short probe window and no
+ * locking. Decisions are immutable, and a reader confirms the destination
+ * stored in a decision before using it, so concurrent readers and writers
+ * at worst miss.
+ */
+public class ResolutionCache
+{
+	/** Default number of slots in the cache */
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	/** Maximum number of slots examined for a destination */
+	private static final int MAX_PROBES = 4;
+
+	/** A resolved forwarding decision for one destination */
+	public static class Resolution
+	{
+		/** Destination IP address */
+		private final int destination;
+
+		/** Router interface out which packets are sent on each path */
+		private final Iface[] ifaces;
+
+		/** MAC address of the next hop on each path */
+		private final MACAddress[] nextHopMacs;
+
+		/** Metric of the route used */
+		private final int metric;
+
+		/** Route table generation the decision was made against */
+		private final long routeGeneration;
+
+		/** ARP cache generation the decision was made against */
+		private final long arpGeneration;
+
+		Resolution(int destination, Iface[] ifaces, MACAddress[] nextHopMacs,
+				int metric, long routeGeneration, long arpGeneration)
+		{
+			this.destination = destination;
+			this.ifaces = ifaces;
+			this.nextHopMacs = nextHopMacs;
+			this.metric = metric;
+			this.routeGeneration = routeGeneration;
+			this.arpGeneration = arpGeneration;
+		}
+
+		/**
+		 * @return destination IP address
+		 */
+		public int getDestination()
+		{ return this.destination; }
+
+		/**
+		 * @return number of equal-cost paths to the destination
+		 */
+		public int getPathCount()
+		{ return this.ifaces.length; }
+
+		/**
+		 * @param path index of the path
+		 * @return router interface out which packets are sent on the path
+		 */
+		public Iface getInterface(int path)
+		{ return this.ifaces[path]; }
+
+		/**
+		 * @param path index of the path
+		 * @return MAC address of the next hop on the path
+		 */
+		public MACAddress getNextHopMac(int path)
+		{ return this.nextHopMacs[path]; }
+
+		/**
+		 * @return metric of the route used
+		 */
+		public int getMetric()
+		{ return this.metric; }
+
+		boolean isCurrent(long routeGeneration, long arpGeneration)
+		{
+			return (this.routeGeneration == routeGeneration)
+					&& (this.arpGeneration == arpGeneration);
+		}
+	}
+
+	/** Destination IP address stored in each slot */
+	private final int[] keys;
+
+	/** Decision stored in each slot; null if the slot is empty */
+	private final Resolution[] values;
+
+	/** Mask that maps a hash onto a slot */
+	private final int mask;
+
+	/**
+	 * Create an empty cache with the default capacity.
+	 */
+	public ResolutionCache()
+	{ this(DEFAULT_CAPACITY); }
+
+	/**
+	 * Create an empty cache.
+	 * @param capacity number of slots; rounded up to a power of two
+	 */
+	public ResolutionCache(int capacity)
+	{
+		int size = Integer.highestOneBit(Math.max(capacity, MAX_PROBES) - 1) << 1;
+		this.keys = new int[size];
+		this.values = new Resolution[size];
+		this.mask = size - 1;
+	}
+
+	/**
+	 * @return the home slot for a destination
+	 */
+	private int slotOf(int destination)
+	{
+		int h = destination * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & this.mask;
+	}
+
+	/**
+	 * Find the current decision for a destination.
+	 * @param destination destination IP address
+	 * @param routeGeneration current route table generation
+	 * @param arpGeneration current ARP cache generation
+	 * @return the decision, null if none is cached or it is stale
+	 */
+	public Resolution lookup(int destination, long routeGeneration,
+			long arpGeneration)
+	{
+		int slot = this.slotOf(destination);
+		for (int i = 0; i < MAX_PROBES; i++)
+		{
+			if (this.keys[slot] == destination)
+			{
+				Resolution value = this.values[slot];
+				if (value != null && value.destination == destination)
+				{
+					return value.isCurrent(routeGeneration, arpGeneration)
+							? value : null;
+				}
+			}
+			slot = (slot + 1) & this.mask;
+		}
+		return null;
+	}
+
+	/**
+	 * Cache a decision for a destination. If the probe window is full, the
+	 * decision in the destination's home slot is evicted.
+	 * @param destination destination IP address
+	 * @param ifaces router interface out which packets are sent on each path
+	 * @param nextHopMacs MAC address of the next hop on each path
+	 * @param metric metric of the route used
+	 * @param routeGeneration route table generation read before resolving
+	 * @param arpGeneration ARP cache generation read before resolving
+	 * @return the cached decision
+	 */
+	public Resolution insert(int destination, Iface[] ifaces,
+			MACAddress[] nextHopMacs, int metric, long routeGeneration,
+			long arpGeneration)
+	{
+		Resolution value = new Resolution(destination, ifaces, nextHopMacs,
+				metric, routeGeneration, arpGeneration);
+		int home = this.slotOf(destination);
+		int target = home;
+		int slot = home;
+		for (int i = 0; i < MAX_PROBES; i++)
+		{
+			Resolution current = this.values[slot];
+			if (null == current || current.destination == destination
+					|| !current.isCurrent(routeGeneration, arpGeneration))
+			{
+				target = slot;
+				break;
+			}
+			slot = (slot + 1) & this.mask;
+		}
+		this.values[target] = value;
+		this.keys[target] = destination;
+		return value;
+	}
+}
@@ -0,0 +1,404 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * Routing information base for a router. The RIB keeps every candidate
+ * route learned for a prefix (connected, and one per RIP neighbor) and
+ * installs only the most preferred candidates in the route table, which
+ * serves as the forwarding table. Equally preferred candidates from
+ * different neighbors are installed together as equal-cost next hops.
+ * When a candidate is poisoned or times out, the next best candidate is
+ * installed immediately. Static route tables loaded from a file are
+ * installed in the route table directly and bypass the RIB.
+ * <p>
+ * The RIB is guarded by the route table's write lock, so changes to both are
+ * always made together and published as one version of the route table.
+ */
+public class Rib
+{
+	/** RIP metric that marks a destination as unreachable */
+	public static final int INFINITY = 16;
+
+	/** Maximum number of equal-cost next hops installed for a prefix */
+	public static final int MAX_PATHS = 4;
+
+	/** How a route was learned, in order of preference */
+	public enum Source
+	{
+		CONNECTED(0), RIP(120);
+
+		/** Administrative distance; lower is preferred */
+		private final int distance;
+
+		private Source(int distance)
+		{ this.distance = distance; }
+
+		/**
+		 * @return administrative distance; lower is preferred
+		 */
+		public int getDistance()
+		{ return this.distance; }
+	}
+
+	/** Candidates for one prefix */
+	private static class Prefix
+	{
+		/** Candidates learned for the prefix */
+		final List<RibEntry> candidates = new ArrayList<RibEntry>(2);
+
+		/** Most preferred candidate; null if none */
+		RibEntry best;
+
+		/** Candidates installed in the route table as next hops, most
+		 * preferred first; null if none */
+		List<RibEntry> paths;
+	}
+
+	/** Route table into which the most preferred candidates are installed */
+	private final RouteTable routeTable;
+
+	/** Candidates for every known prefix; keyed by prefix and mask */
+	private final Map<Long,Prefix> prefixes;
+
+	/** Held while a checkpoint is written, so concurrent writes of the same
+	 * file cannot interleave */
+	private final Object checkpointLock;
+
+	/**
+	 * Create an empty RIB.
+	 * @param routeTable route table into which the most preferred candidates
+	 *        are installed
+	 */
+	public Rib(RouteTable routeTable)
+	{
+		this.routeTable = routeTable;
+		this.prefixes = new HashMap<Long,Prefix>();
+		this.checkpointLock = new Object();
+	}
+
+	/**
+	 * Start a group of changes that are published to the route table
+	 * together. Calls may be nested.
+	 */
+	public void beginUpdate()
+	{ this.routeTable.beginUpdate(); }
+
+	/**
+	 * Finish a group of changes started with {@link #beginUpdate()}.
+	 */
+	public void endUpdate()
+	{ this.routeTable.endUpdate(); }
+
+	/**
+	 * Add or refresh a candidate route. A candidate from the same source,
+	 * gateway and interface as an existing candidate replaces it.
+	 * @param dstIp destination IP
+	 * @param maskIp subnet mask
+	 * @param source how the route was learned
+	 * @param gwIp gateway IP; 0 if directly connected
+	 * @param iface router interface out which packets should be sent
+	 * @param metric number of hops to the destination; capped at
+	 *        {@link #INFINITY}
+	 * @param timestamp when the route was learned
+	 */
+	public void add(int dstIp, int maskIp, Source source, int gwIp,
+			Iface iface, int metric, long timestamp)
+	{
+		RibEntry entry = new RibEntry(dstIp, maskIp, source, gwIp, iface,
+				Math.min(metric, INFINITY), timestamp);
+		Long key = RouteIndex.keyOf(dstIp, maskIp);
+		this.beginUpdate();
+		try
+		{
+			Prefix prefix = this.prefixes.get(key);
+			if (null == prefix)
+			{
+				prefix = new Prefix();
+				this.prefixes.put(key, prefix);
+			}
+			List<RibEntry> candidates = prefix.candidates;
+			int i = 0;
+			while (i < candidates.size() 
+					&& !candidates.get(i).isSameOrigin(entry))
+			{ i++; }
+			if (i < candidates.size())
+			{ candidates.set(i, entry); }
+			else
+			{ candidates.add(entry); }
+			this.select(key, prefix);
+		}
+		finally
+		{ this.endUpdate(); }
+	}
+
+	/**
+	 * Withdraw all candidates learned from a source that have not been
+	 * refreshed recently.
+	 * @param source how the routes were learned
+	 * @param timeout age (in milliseconds) after which a candidate expires
+	 * @param now current time (in milliseconds since the epoch)
+	 * @return number of candidates withdrawn
+	 */
+	public int expire(Source source, long timeout, long now)
+	{
+		int expired = 0;
+		this.beginUpdate();
+		try
+		{
+			for (Long key : new ArrayList<Long>(this.prefixes.keySet()))
+			{
+				Prefix prefix = this.prefixes.get(key);
+				boolean removed = false;
+				for (Iterator<RibEntry> it = prefix.candidates.iterator();
+						it.hasNext(); )
+				{
+					RibEntry candidate = it.next();
+					if (candidate.getSource() == source
+							&& candidate.getLastUpdateTimestamp() + timeout < now)
+					{
+						it.remove();
+						removed = true;
+						expired++;
+					}
+				}
+				if (removed)
+				{ this.select(key, prefix); }
+			}
+		}
+		finally
+		{ this.endUpdate(); }
+		return expired;
+	}
+
+	/**
+	 * Write the candidates learned from a source to a checkpoint file, in
+	 * the route table snapshot format. The file is replaced atomically.
+	 * Checkpoints are written one at a time, each from the candidates when
+	 * it starts.
+	 * @param filename name of the checkpoint file
+	 * @param source how the routes were learned
+	 * @return true if the checkpoint was written, otherwise false
+	 */
+	public boolean saveCheckpoint(String filename, Source source)
+	{
+		synchronized (this.checkpointLock)
+		{
+			List<RouteEntry> entries = new ArrayList<RouteEntry>();
+			long created;
+			this.beginUpdate();
+			try
+			{
+				created = System.currentTimeMillis();
+				for (Prefix prefix : this.prefixes.values())
+				{
+					for (RibEntry candidate : prefix.candidates)
+					{
+						if (candidate.getSource() != source)
+						{ continue; }
+						entries.add(new RouteEntry(
+								candidate.getDestinationAddress(),
+								candidate.getGatewayAddress(),
+								candidate.getMaskAddress(), 
+								candidate.getInterface(), candidate.getMetric(),
+								candidate.getLastUpdateTimestamp()));
+					}
+				}
+			}
+			finally
+			{ this.endUpdate(); }
+
+			try
+			{ RouteSnapshot.write(filename, entries, created); }
+			catch (IOException e)
+			{
+				System.err.println("Error saving RIB checkpoint: " 
+						+ e.getMessage());
+				return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Restore candidates from a checkpoint written by 
+	 * {@link #saveCheckpoint(String, Source)}. Each candidate keeps the age
+	 * it had when the checkpoint was written, so it times out as if the
+	 * router had not restarted; candidates that were already older than the
+	 * timeout are not restored.
+	 * @param filename name of the checkpoint file
+	 * @param router router whose interfaces the candidates refer to
+	 * @param source how the routes were learned
+	 * @param timeout age (in milliseconds) after which a candidate expires
+	 * @param now current time (in milliseconds since the epoch)
+	 * @return number of candidates restored, -1 if the checkpoint could not
+	 *         be read
+	 */
+	public int loadCheckpoint(String filename, Router router, Source source,
+			long timeout, long now)
+	{
+		List<RouteEntry> entries = new ArrayList<RouteEntry>();
+		long created;
+		try
+		{ created = RouteSnapshot.read(filename, router, entries); }
+		catch (IOException e)
+		{
+			System.err.println("Error loading RIB checkpoint: " 
+					+ e.getMessage());
+			return -1;
+		}
+
+		int restored = 0;
+		this.beginUpdate();
+		try
+		{
+			for (RouteEntry entry : entries)
+			{
+				long age = Math.max(0, created - entry.getLastUpdateTimestamp());
+				if (age >= timeout || null == entry.getInterface())
+				{ continue; }
+				this.add(entry.getDestinationAddress(), entry.getMaskAddress(),
+						source, entry.getGatewayAddress(), entry.getInterface(),
+						entry.getMetric(), now - age);
+				restored++;
+			}
+		}
+		finally
+		{ this.endUpdate(); }
+		return restored;
+	}
+
+	/**
+	 * Install the most preferred candidate for a prefix in the route table,
+	 * together with every other reachable candidate that is equally
+	 * preferred, or remove the prefix from the route table if no candidates
+	 * remain. The route table is only changed if the forwarding decision
+	 * changes; caller must be in a group of changes.
+	 */
+	private void select(Long key, Prefix prefix)
+	{
+		// Keep the installed candidate's origin first when another is only 
+		// equally good, so the primary next hop does not flap
+		RibEntry installed = prefix.best;
+		RibEntry best = null;
+		for (RibEntry candidate : prefix.candidates)
+		{
+			int preference = (null == best) ? -1
+					: candidate.comparePreference(best);
+			if (preference < 0 || (0 == preference && installed != null
+					&& candidate.isSameOrigin(installed)))
+			{ best = candidate; }
+		}
+
+		List<RibEntry> installedPaths = prefix.paths;
+		prefix.best = best;
+		if (null == best)
+		{
+			this.prefixes.remove(key);
+			prefix.paths = null;
+			if (installed != null)
+			{
+				this.routeTable.remove(installed.getDestinationAddress(),
+						installed.getMaskAddress());
+			}
+			return;
+		}
+
+		// Equally preferred neighbors are all used as next hops
+		List<RibEntry> paths = new ArrayList<RibEntry>(2);
+		paths.add(best);
+		if (best.getMetric() < INFINITY)
+		{
+			for (RibEntry candidate : prefix.candidates)
+			{
+				if (paths.size() < MAX_PATHS && candidate != best
+						&& 0 == candidate.comparePreference(best))
+				{ paths.add(candidate); }
+			}
+		}
+		prefix.paths = paths;
+		if (isSameForwarding(installedPaths, paths))
+		{ return; }
+
+		int[] gwIps = new int[paths.size()];
+		Iface[] ifaces = new Iface[paths.size()];
+		for (int i = 0; i < paths.size(); i++)
+		{
+			gwIps[i] = paths.get(i).getGatewayAddress();
+			ifaces[i] = paths.get(i).getInterface();
+		}
+		this.routeTable.insert(best.getDestinationAddress(), gwIps,
+				best.getMaskAddress(), ifaces, best.getMetric(),
+				best.getLastUpdateTimestamp());
+	}
+
+	/**
+	 * @return true if two sets of next hops forward packets identically
+	 */
+	private static boolean isSameForwarding(List<RibEntry> a, List<RibEntry> b)
+	{
+		if (null == a || a.size() != b.size())
+		{ return false; }
+		for (int i = 0; i < a.size(); i++)
+		{
+			RibEntry x = a.get(i);
+			RibEntry y = b.get(i);
+			if (x.getGatewayAddress() != y.getGatewayAddress()
+					|| x.getInterface() != y.getInterface()
+					|| x.getMetric() != y.getMetric())
+			{ return false; }
+		}
+		return true;
+	}
+
+	/**
+	 * @return the candidates for a prefix, most preferred first
+	 */
+	private List<RibEntry> sorted(Prefix prefix)
+	{
+		List<RibEntry> result = new ArrayList<RibEntry>(prefix.candidates);
+		for (int i = 1; i < result.size(); i++)
+		{
+			RibEntry candidate = result.get(i);
+			int j = i - 1;
+			while (j >= 0 && result.get(j).comparePreference(candidate) > 0)
+			{
+				result.set(j + 1, result.get(j));
+				j--;
+			}
+			result.set(j + 1, candidate);
+		}
+		return result;
+	}
+
+	public String toString()
+	{
+		this.beginUpdate();
+		try
+		{
+			if (0 == this.prefixes.size())
+			{ return " WARNING: RIB empty"; }
+
+			StringBuilder result = new StringBuilder(
+					"Destination\tGateway\t\tMask\t\tIface\tSource\tMetric\tTimestamp\n");
+			for (Prefix prefix : this.prefixes.values())
+			{
+				for (RibEntry entry : this.sorted(prefix))
+				{
+					result.append(prefix.paths.contains(entry) ? "*" : " ")
+							.append(entry.toString()).append("\n");
+				}
+			}
+			return result.toString();
+		}
+		finally
+		{ this.endUpdate(); }
+	}
+}
@@ -0,0 +1,131 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import net.floodlightcontroller.packet.IPv4;
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * A candidate route for a prefix in a routing information base. Candidates
+ * are immutable; refreshing a candidate replaces it.
+ */
+public class RibEntry
+{
+	/** Destination IP address (host bits are zero) */
+	private final int destinationAddress;
+
+	/** Subnet mask */
+	private final int maskAddress;
+
+	/** How the route was learned */
+	private final Rib.Source source;
+
+	/** Gateway IP address; 0 if the destination is directly connected.
+	 * For RIP routes this is the neighbor that advertised the route. */
+	private final int gatewayAddress;
+
+	/** Router interface out which packets should be sent */
+	private final Iface iface;
+
+	/** The number of hops to reach the destination address */
+	private final int metric;
+
+	/** When the route was last learned or refreshed */
+	private final long lastUpdateTimestamp;
+
+	/**
+	 * Create a candidate route.
+	 * @param destinationAddress destination IP address
+	 * @param maskAddress subnet mask
+	 * @param source how the route was learned
+	 * @param gatewayAddress gateway IP address; 0 if directly connected
+	 * @param iface router interface out which packets should be sent
+	 * @param metric the number of hops to reach the destination address
+	 * @param lastUpdateTimestamp when the route was last learned or refreshed
+	 */
+	public RibEntry(int destinationAddress, int maskAddress, Rib.Source source,
+			int gatewayAddress, Iface iface, int metric,
+			long lastUpdateTimestamp)
+	{
+		this.destinationAddress = destinationAddress & maskAddress;
+		this.maskAddress = maskAddress;
+		this.source = source;
+		this.gatewayAddress = gatewayAddress;
+		this.iface = iface;
+		this.metric = metric;
+		this.lastUpdateTimestamp = lastUpdateTimestamp;
+	}
+
+	/**
+	 * @return destination IP address
+	 */
+	public int getDestinationAddress()
+	{ return this.destinationAddress; }
+
+	/**
+	 * @return subnet mask
+	 */
+	public int getMaskAddress()
+	{ return this.maskAddress; }
+
+	/**
+	 * @return how the route was learned
+	 */
+	public Rib.Source getSource()
+	{ return this.source; }
+
+	/**
+	 * @return gateway IP address; 0 if directly connected
+	 */
+	public int getGatewayAddress()
+	{ return this.gatewayAddress; }
+
+	/**
+	 * @return router interface out which packets should be sent
+	 */
+	public Iface getInterface()
+	{ return this.iface; }
+
+	/**
+	 * @return the number of hops to reach the destination address
+	 */
+	public int getMetric()
+	{ return this.metric; }
+
+	/**
+	 * @return when the route was last learned or refreshed
+	 */
+	public long getLastUpdateTimestamp()
+	{ return this.lastUpdateTimestamp; }
+
+	/**
+	 * Compare the preference of two candidates for the same prefix.
+	 * @return negative if this candidate is preferred, positive if the other
+	 *         candidate is preferred, 0 if they are equally preferred
+	 */
+	public int comparePreference(RibEntry other)
+	{
+		if (this.source.getDistance() != other.source.getDistance())
+		{ return this.source.getDistance() - other.source.getDistance(); }
+		return this.metric - other.metric;
+	}
+
+	/**
+	 * @return true if both candidates came from the same source, neighbor
+	 *         and interface, so one supersedes the other
+	 */
+	boolean isSameOrigin(RibEntry other)
+	{
+		return (this.source == other.source)
+				&& (this.gatewayAddress == other.gatewayAddress)
+				&& (this.iface == other.iface);
+	}
+
+	public String toString()
+	{
+		return String.format("%s \t%s \t%s \t%s \t%s \t%s \t%tT",
+				IPv4.fromIPv4Address(this.destinationAddress),
+				IPv4.fromIPv4Address(this.gatewayAddress),
+				IPv4.fromIPv4Address(this.maskAddress),
+				(null == this.iface) ? "-" : this.iface.getName(),
+				this.source, this.metric, this.lastUpdateTimestamp);
+	}
+}
@@ -0,0 +1,93 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+/**
+ * A change to one prefix in a route table, as recorded in the table's
+ * {@link RouteChangeLog}. Changes are immutable.
+ */
+public class RouteChange
+{
+	/** Kinds of change */
+	public enum Type
+	{
+		/** A route was added for a prefix that had none */
+		ADDED,
+
+		/** The route for a prefix was replaced; its metric, next hops or
+		 * timestamp may differ */
+		CHANGED,
+
+		/** The route for a prefix was removed */
+		WITHDRAWN
+	}
+
+	/** Position of the change in the change log */
+	private final long sequence;
+
+	/** Version of the route table in which the change was published */
+	private final long generation;
+
+	/** Kind of change */
+	private final Type type;
+
+	/** Route after the change; the removed route if withdrawn */
+	private final RouteEntry entry;
+
+	/** Route before the change; null unless changed */
+	private final RouteEntry previous;
+
+	RouteChange(long sequence, long generation, Type type, RouteEntry entry,
+			RouteEntry previous)
+	{
+		this.sequence = sequence;
+		this.generation = generation;
+		this.type = type;
+		this.entry = entry;
+		this.previous = previous;
+	}
+
+	/**
+	 * @return position of the change in the change log
+	 */
+	public long getSequence()
+	{ return this.sequence; }
+
+	/**
+	 * @return version of the route table in which the change was published;
+	 *         see {@link RouteTable#getGeneration()}
+	 */
+	public long getGeneration()
+	{ return this.generation; }
+
+	/**
+	 * @return kind of change
+	 */
+	public Type getType()
+	{ return this.type; }
+
+	/**
+	 * @return route after the change; the removed route if withdrawn
+	 */
+	public RouteEntry getEntry()
+	{ return this.entry; }
+
+	/**
+	 * @return route before the change; null unless changed
+	 */
+	public RouteEntry getPrevious()
+	{ return this.previous; }
+
+	/**
+	 * @return true if the route was replaced by one with a different metric
+	 */
+	public boolean isMetricChanged()
+	{
+		return (Type.CHANGED == this.type)
+				&& (this.entry.getMetric() != this.previous.getMetric());
+	}
+
+	public String toString()
+	{
+		return String.format("#%d (generation %d) %s %s", this.sequence,
+				this.generation, this.type, this.entry);
+	}
+}
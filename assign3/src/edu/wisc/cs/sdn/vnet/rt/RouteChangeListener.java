@@ -0,0 +1,16 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+/**
+ * Notified when a route table publishes changes. Listeners are called on
+ * the thread that made the changes, after the table's write lock has been
+ * released, and should read the changes from the table's 
+ * {@link RouteChangeLog} rather than do lengthy work in the callback.
+ */
+public interface RouteChangeListener
+{
+	/**
+	 * @param table route table that changed
+	 * @param sequence sequence number of the newest published change
+	 */
+	void routesChanged(RouteTable table, long sequence);
+}
@@ -0,0 +1,113 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded log of the most recent changes to a route table. Every change is
+ * numbered with a sequence number, starting at 1, and changes become
+ * visible once the version of the table containing them is published.
+ * <p>
+ * Readers never block: each keeps the sequence number of the last change
+ * it has seen and calls {@link #read(long, List)} to catch up. The log
+ * keeps only the newest changes, so a reader that falls more than
+ * {@link #getCapacity()} changes behind is told so and must rescan the
+ * table. Changes are appended only by the route table, under its write
+ * lock.
+ */
+public class RouteChangeLog
+{
+	/** Default number of changes kept */
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	/** Most recent changes; the change numbered s is in slot s & mask */
+	private final AtomicReferenceArray<RouteChange> slots;
+
+	/** Mask that maps a sequence number onto a slot */
+	private final int mask;
+
+	/** Sequence number of the newest published change */
+	private volatile long sequence;
+
+	/** Sequence number of the newest numbered change; only used by the 
+	 * writer */
+	private long next;
+
+	/**
+	 * Create an empty log.
+	 * @param capacity number of changes kept; rounded up to a power of two
+	 */
+	RouteChangeLog(int capacity)
+	{
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		this.slots = new AtomicReferenceArray<RouteChange>(size);
+		this.mask = size - 1;
+		this.sequence = 0;
+		this.next = 0;
+	}
+
+	/**
+	 * @return number of changes kept
+	 */
+	public int getCapacity()
+	{ return this.mask + 1; }
+
+	/**
+	 * @return sequence number of the newest published change; 0 if none
+	 */
+	public long getSequence()
+	{ return this.sequence; }
+
+	/**
+	 * Read the published changes that follow a given change.
+	 * @param after sequence number of the last change already seen; 0 to 
+	 *        read from the start
+	 * @param changes receives the changes, oldest first
+	 * @return sequence number of the last change read, which is after if
+	 *         there are no new changes; -1 if some of the changes that 
+	 *         follow after are no longer in the log
+	 */
+	public long read(long after, List<RouteChange> changes)
+	{
+		long last = this.sequence;
+		if (last - after > this.getCapacity())
+		{ return -1; }
+		int added = 0;
+		for (long s = after + 1; s <= last; s++)
+		{
+			RouteChange change = this.slots.get((int)s & this.mask);
+			if (null == change || change.getSequence() != s)
+			{
+				// Overwritten by a newer change while reading
+				for (; added > 0; added--)
+				{ changes.remove(changes.size() - 1); }
+				return -1;
+			}
+			changes.add(change);
+			added++;
+		}
+		return last;
+	}
+
+	/**
+	 * @return sequence number for a new change; caller must hold the route
+	 *         table's write lock
+	 */
+	long nextSequence()
+	{ return ++this.next; }
+
+	/**
+	 * Store a numbered change without publishing it; caller must hold the
+	 * route table's write lock.
+	 */
+	void store(RouteChange change)
+	{ this.slots.set((int)change.getSequence() & this.mask, change); }
+
+	/**
+	 * Publish every numbered change; changes that were numbered but never
+	 * stored are reported to readers as lost. Caller must hold the route
+	 * table's write lock.
+	 */
+	void publish()
+	{ this.sequence = this.next; }
+}
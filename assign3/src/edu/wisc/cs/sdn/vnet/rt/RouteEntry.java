@@ -4,29 +4,38 @@ import net.floodlightcontroller.packet.IPv4;
 import edu.wisc.cs.sdn.vnet.Iface;
 
 /**
- * An entry in a route table.
+ * An entry in a route table. Entries are immutable; a route is changed by
+ * replacing its entry through the route table. An entry has one or more
+ * next hops of equal cost; the first next hop is also reported by
+ * {@link #getGatewayAddress()} and {@link #getInterface()}.
  * @author Aaron Gember-Jacobson and Anubhavnidhi Abhashkumar
  */
 public class RouteEntry 
 {
 	/** Destination IP address */
-	private int destinationAddress;
+	private final int destinationAddress;
 	
 	/** Gateway IP address */
-	private int gatewayAddress;
+	private final int gatewayAddress;
 	
 	/** Subnet mask */
-	private int maskAddress;
+	private final int maskAddress;
 	
 	/** Router interface out which packets should be sent to reach
 	 * the destination or gateway */
-	private Iface iface;
+	private final Iface iface;
+
+	/** Gateway IP address of every next hop; null if there is only one */
+	private final int[] gatewayAddresses;
+
+	/** Router interface for every next hop; null if there is only one */
+	private final Iface[] ifaces;
 
 	/** The number of hops to reach the destination address (only applies to RIP) */
-	private int metric;
+	private final int metric;
 
 	/**  When this routeEntry was last updated (only applies to RIP) */
-	private long lastUpdateTimestamp;
+	private final long lastUpdateTimestamp;
 	
 	/**
 	 * Create a new route table entry.
@@ -39,14 +48,59 @@ public class RouteEntry
 	 * @param lastUpdateTimestamp when this routeEntry was last updated (only applies to RIP)
 	 */
 	public RouteEntry(int destinationAddress, int gatewayAddress, 
-			int maskAddress, Iface iface, int metric)
+			int maskAddress, Iface iface, int metric, long lastUpdateTimestamp)
 	{
 		this.destinationAddress = destinationAddress;
 		this.gatewayAddress = gatewayAddress;
 		this.maskAddress = maskAddress;
 		this.iface = iface;
+		this.gatewayAddresses = null;
+		this.ifaces = null;
+		this.metric = metric;
+		this.lastUpdateTimestamp = lastUpdateTimestamp;
+	}
+
+	/**
+	 * Create a new route table entry with several next hops of equal cost.
+	 * @param destinationAddress destination IP address
+	 * @param gatewayAddresses gateway IP address of each next hop
+	 * @param maskAddress subnet mask
+	 * @param ifaces the router interface out which packets should be sent
+	 *        to reach each next hop
+	 * @param metric the number of hops to reach the destination address (only applies to RIP)
+	 * @param lastUpdateTimestamp when this routeEntry was last updated (only applies to RIP)
+	 */
+	public RouteEntry(int destinationAddress, int[] gatewayAddresses,
+			int maskAddress, Iface[] ifaces, int metric, long lastUpdateTimestamp)
+	{
+		if (0 == gatewayAddresses.length 
+				|| gatewayAddresses.length != ifaces.length)
+		{ throw new IllegalArgumentException("Next hop arrays empty or differ in length"); }
+		this.destinationAddress = destinationAddress;
+		this.gatewayAddress = gatewayAddresses[0];
+		this.maskAddress = maskAddress;
+		this.iface = ifaces[0];
+		this.gatewayAddresses = (gatewayAddresses.length > 1) 
+				? gatewayAddresses.clone() : null;
+		this.ifaces = (ifaces.length > 1) ? ifaces.clone() : null;
 		this.metric = metric;
-		this.lastUpdateTimestamp = System.currentTimeMillis();
+		this.lastUpdateTimestamp = lastUpdateTimestamp;
+	}
+
+	/**
+	 * Create a new route table entry last updated now.
+	 * @param destinationAddress destination IP address
+	 * @param gatewayAddress gateway IP address
+	 * @param maskAddress subnet mask
+	 * @param iface the router interface out which packets should 
+	 *        be sent to reach the destination or gateway
+	 * @param metric the number of hops to reach the destination address (only applies to RIP)
+	 */
+	public RouteEntry(int destinationAddress, int gatewayAddress, 
+			int maskAddress, Iface iface, int metric)
+	{
+		this(destinationAddress, gatewayAddress, maskAddress, iface, metric,
+				System.currentTimeMillis());
 	}
 	
 	/**
@@ -55,18 +109,12 @@ public class RouteEntry
 	public long getLastUpdateTimestamp()
 	{ return this.lastUpdateTimestamp; }
 
-	public void setLastUpdateTimestamp(long timestamp)
-	{ this.lastUpdateTimestamp = timestamp; }
-
 	/**
 	 * @return metric
 	 */
 	public int getMetric()
 	{ return this.metric; }
 
-	public void setMetric(int metric)
-	{ this.metric = metric; }
-
 	/**
 	 * @return destination IP address
 	 */
@@ -79,9 +127,6 @@ public class RouteEntry
 	public int getGatewayAddress()
 	{ return this.gatewayAddress; }
 
-	public void setGatewayAddress(int gatewayAddress)
-	{ this.gatewayAddress = gatewayAddress; }
-	
 	/**
 	 * @return subnet mask 
 	 */
@@ -95,16 +140,49 @@ public class RouteEntry
 	public Iface getInterface()
 	{ return this.iface; }
 
-	public void setInterface(Iface iface)
-	{ this.iface = iface; }
+	/**
+	 * @return number of next hops of equal cost
+	 */
+	public int getNextHopCount()
+	{ return (null == this.ifaces) ? 1 : this.ifaces.length; }
+
+	/**
+	 * @param i index of the next hop
+	 * @return gateway IP address of the next hop
+	 */
+	public int getGatewayAddress(int i)
+	{ 
+		return (null == this.gatewayAddresses) ? this.gatewayAddress 
+				: this.gatewayAddresses[i]; 
+	}
+
+	/**
+	 * @param i index of the next hop
+	 * @return the router interface out which packets should be sent to
+	 *         reach the next hop
+	 */
+	public Iface getInterface(int i)
+	{ return (null == this.ifaces) ? this.iface : this.ifaces[i]; }
 	
 	public String toString()
 	{
+		StringBuilder gateways = new StringBuilder();
+		StringBuilder names = new StringBuilder();
+		for (int i = 0; i < this.getNextHopCount(); i++)
+		{
+			if (i > 0)
+			{
+				gateways.append(',');
+				names.append(',');
+			}
+			gateways.append(IPv4.fromIPv4Address(this.getGatewayAddress(i)));
+			names.append(this.getInterface(i).getName());
+		}
 		return String.format("%s \t%s \t%s \t%s \t%s \t%tT",
 				IPv4.fromIPv4Address(this.destinationAddress),
-				IPv4.fromIPv4Address(this.gatewayAddress),
+				gateways,
 				IPv4.fromIPv4Address(this.maskAddress),
-				this.iface.getName(),
+				names,
 				this.getMetric(),
 				this.getLastUpdateTimestamp());
 	}
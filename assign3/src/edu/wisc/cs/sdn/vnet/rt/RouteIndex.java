@@ -0,0 +1,160 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+/**
+ * Hash index of route entries keyed by exact prefix and subnet mask. Keys
+ * are primitive longs (prefix in the upper 32 bits, mask in the lower 32
+ * bits) stored in an open-addressing table with linear probing, so finding,
+ * adding and removing an entry take constant expected time without boxing.
+ * Not thread safe.
+ */
+class RouteIndex
+{
+	/** Smallest number of slots in the table */
+	private static final int MIN_CAPACITY = 16;
+
+	/** Key stored in each slot */
+	private long[] keys;
+
+	/** Entry stored in each slot; null if the slot is empty */
+	private RouteEntry[] values;
+
+	/** Number of entries in the index */
+	private int size;
+
+	/**
+	 * Initialize an empty index.
+	 */
+	RouteIndex()
+	{
+		this.keys = new long[MIN_CAPACITY];
+		this.values = new RouteEntry[MIN_CAPACITY];
+		this.size = 0;
+	}
+
+	/**
+	 * @return number of entries in the index
+	 */
+	int size()
+	{ return this.size; }
+
+	/**
+	 * @return the key for a destination and subnet mask; masks are treated
+	 *         as a prefix length, as in {@link RouteTrie}
+	 */
+	static long keyOf(int dstIp, int maskIp)
+	{
+		maskIp = RouteTrie.maskOf(RouteTrie.lengthOf(maskIp));
+		return ((long)(dstIp & maskIp) << 32) | (maskIp & 0xffffffffL);
+	}
+
+	/**
+	 * @return the home slot for a key in a table with the given slot mask
+	 */
+	private static int slotOf(long key, int mask)
+	{
+		// Mix all key bits, since prefixes often end in many zero bits
+		long h = (key ^ (key >>> 33)) * 0xFF51AFD7ED558CCDL;
+		h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+		return (int)(h ^ (h >>> 33)) & mask;
+	}
+
+	/**
+	 * Find the entry for a destination and subnet mask.
+	 * @param dstIp destination IP
+	 * @param maskIp subnet mask
+	 * @return the matching entry, null if none exists
+	 */
+	RouteEntry get(int dstIp, int maskIp)
+	{
+		long key = keyOf(dstIp, maskIp);
+		int mask = this.keys.length - 1;
+		for (int slot = slotOf(key, mask); this.values[slot] != null;
+				slot = (slot + 1) & mask)
+		{
+			if (this.keys[slot] == key)
+			{ return this.values[slot]; }
+		}
+		return null;
+	}
+
+	/**
+	 * Store the entry for its destination and subnet mask, replacing any
+	 * existing entry for the same destination and subnet mask.
+	 * @param entry route entry
+	 */
+	void put(RouteEntry entry)
+	{
+		if ((this.size + 1) * 4 > this.keys.length * 3)
+		{ this.resize(this.keys.length * 2); }
+
+		long key = keyOf(entry.getDestinationAddress(), entry.getMaskAddress());
+		int mask = this.keys.length - 1;
+		int slot = slotOf(key, mask);
+		while (this.values[slot] != null)
+		{
+			if (this.keys[slot] == key)
+			{
+				this.values[slot] = entry;
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+		this.keys[slot] = key;
+		this.values[slot] = entry;
+		this.size++;
+	}
+
+	/**
+	 * Remove the entry for a destination and subnet mask.
+	 * @param dstIp destination IP
+	 * @param maskIp subnet mask
+	 * @return the removed entry, null if none existed
+	 */
+	RouteEntry remove(int dstIp, int maskIp)
+	{
+		long key = keyOf(dstIp, maskIp);
+		int mask = this.keys.length - 1;
+		int slot = slotOf(key, mask);
+		while (this.values[slot] != null && this.keys[slot] != key)
+		{ slot = (slot + 1) & mask; }
+		RouteEntry removed = this.values[slot];
+		if (null == removed)
+		{ return null; }
+
+		// Shift later entries of the probe sequence back into the hole
+		int hole = slot;
+		for (slot = (slot + 1) & mask; this.values[slot] != null;
+				slot = (slot + 1) & mask)
+		{
+			int home = slotOf(this.keys[slot], mask);
+			if (((slot - home) & mask) >= ((slot - hole) & mask))
+			{
+				this.keys[hole] = this.keys[slot];
+				this.values[hole] = this.values[slot];
+				hole = slot;
+			}
+		}
+		this.values[hole] = null;
+		this.size--;
+		return removed;
+	}
+
+	private void resize(int capacity)
+	{
+		long[] oldKeys = this.keys;
+		RouteEntry[] oldValues = this.values;
+		this.keys = new long[capacity];
+		this.values = new RouteEntry[capacity];
+		int mask = capacity - 1;
+		for (int i = 0; i < oldKeys.length; i++)
+		{
+			if (null == oldValues[i])
+			{ continue; }
+			int slot = slotOf(oldKeys[i], mask);
+			while (this.values[slot] != null)
+			{ slot = (slot + 1) & mask; }
+			this.keys[slot] = oldKeys[i];
+			this.values[slot] = oldValues[i];
+		}
+	}
+}
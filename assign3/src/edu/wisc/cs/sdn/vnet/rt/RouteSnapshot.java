@@ -0,0 +1,210 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * Compact binary file format for route table contents. Files are read and
+ * written through memory mappings, so loading a table is a single pass over
+ * the mapped bytes with no text parsing.
+ * <p>
+ * Layout (all values big-endian):
+ * <pre>
+ *   int    magic ("RTB1")
+ *   short  format version
+ *   short  reserved (0)
+ *   long   time the file was written (milliseconds since the epoch)
+ *   short  number of interface names, then for each name:
+ *            byte length, ASCII bytes
+ *   int    number of entries, then for each entry:
+ *            int destination, int gateway, byte prefix length,
+ *            short interface index, short metric, long last update time
+ * </pre>
+ * Only the first next hop of an entry with several equal-cost next hops is
+ * recorded.
+ */
+class RouteSnapshot
+{
+	/** Identifies a route table snapshot file */
+	static final int MAGIC = 0x52544231;
+
+	/** Current format version */
+	static final short VERSION = 1;
+
+	/** Bytes per encoded route entry */
+	private static final int ENTRY_SIZE = 4 + 4 + 1 + 2 + 2 + 8;
+
+	/** Size of a file containing no interfaces and no entries */
+	private static final int HEADER_SIZE = 4 + 2 + 2 + 8 + 2 + 4;
+
+	/** Interface index stored for entries without an interface */
+	private static final int NO_IFACE = 0xffff;
+
+	/**
+	 * Check whether a file starts with the snapshot magic number.
+	 * @param filename name of the file
+	 * @return true if the file is a route table snapshot, otherwise false
+	 */
+	static boolean isSnapshot(String filename)
+	{
+		RandomAccessFile file = null;
+		try
+		{
+			file = new RandomAccessFile(filename, "r");
+			return (file.length() >= HEADER_SIZE) && (file.readInt() == MAGIC);
+		}
+		catch (IOException e)
+		{ return false; }
+		finally
+		{
+			if (file != null)
+			{ try { file.close(); } catch (IOException e) {} }
+		}
+	}
+
+	/**
+	 * Write route entries to a snapshot file. The file is written under a
+	 * temporary name and then renamed, so an existing snapshot is never left
+	 * partially overwritten.
+	 * @param filename name of the snapshot file
+	 * @param entries route entries to write
+	 * @param created time (in milliseconds since the epoch) to record
+	 */
+	static void write(String filename, List<RouteEntry> entries, long created)
+			throws IOException
+	{
+		// Number the interfaces used by the entries
+		List<Iface> ifaces = new ArrayList<Iface>();
+		int size = HEADER_SIZE + ENTRY_SIZE * entries.size();
+		for (RouteEntry entry : entries)
+		{
+			Iface iface = entry.getInterface();
+			if (iface != null && !ifaces.contains(iface))
+			{
+				if (iface.getName().length() > 255)
+				{ throw new IOException("Interface name too long"); }
+				ifaces.add(iface);
+				size += 1 + iface.getName().length();
+			}
+		}
+		if (ifaces.size() >= NO_IFACE)
+		{ throw new IOException("Too many interfaces"); }
+
+		File target = new File(filename);
+		File temp = new File(filename + ".tmp");
+		RandomAccessFile file = new RandomAccessFile(temp, "rw");
+		try
+		{
+			file.setLength(size);
+			MappedByteBuffer buf = file.getChannel().map(
+					FileChannel.MapMode.READ_WRITE, 0, size);
+			buf.putInt(MAGIC);
+			buf.putShort(VERSION);
+			buf.putShort((short)0);
+			buf.putLong(created);
+			buf.putShort((short)ifaces.size());
+			for (Iface iface : ifaces)
+			{
+				buf.put((byte)iface.getName().length());
+				buf.put(iface.getName().getBytes("US-ASCII"));
+			}
+			buf.putInt(entries.size());
+			for (RouteEntry entry : entries)
+			{
+				Iface iface = entry.getInterface();
+				buf.putInt(entry.getDestinationAddress());
+				buf.putInt(entry.getGatewayAddress());
+				buf.put((byte)RouteTrie.lengthOf(entry.getMaskAddress()));
+				buf.putShort((short)((null == iface) ? NO_IFACE
+						: ifaces.indexOf(iface)));
+				buf.putShort((short)entry.getMetric());
+				buf.putLong(entry.getLastUpdateTimestamp());
+			}
+			buf.force();
+		}
+		finally
+		{ file.close(); }
+
+		if (!temp.renameTo(target))
+		{
+			temp.delete();
+			throw new IOException("Cannot replace " + filename);
+		}
+	}
+
+	/**
+	 * Read route entries from a snapshot file.
+	 * @param filename name of the snapshot file
+	 * @param router router whose interfaces the entries refer to
+	 * @param entries receives the entries read from the file
+	 * @return time (in milliseconds since the epoch) the file was written
+	 */
+	static long read(String filename, Router router, List<RouteEntry> entries)
+			throws IOException
+	{
+		RandomAccessFile file = new RandomAccessFile(filename, "r");
+		try
+		{
+			long length = file.length();
+			if (length < HEADER_SIZE || length > Integer.MAX_VALUE)
+			{ throw new IOException("Invalid route table snapshot size"); }
+			MappedByteBuffer buf = file.getChannel().map(
+					FileChannel.MapMode.READ_ONLY, 0, length);
+
+			if (buf.getInt() != MAGIC)
+			{ throw new IOException("Not a route table snapshot"); }
+			short version = buf.getShort();
+			if (version != VERSION)
+			{
+				throw new IOException("Unsupported route table snapshot version "
+						+ version);
+			}
+			buf.getShort();
+			long created = buf.getLong();
+
+			// Resolve interface names once
+			int ifaceCount = buf.getShort() & 0xffff;
+			Iface[] ifaces = new Iface[ifaceCount];
+			for (int i = 0; i < ifaceCount; i++)
+			{
+				byte[] name = new byte[buf.get() & 0xff];
+				buf.get(name);
+				String ifaceName = new String(name, "US-ASCII");
+				ifaces[i] = router.getInterface(ifaceName);
+				if (null == ifaces[i])
+				{ throw new IOException("Invalid interface " + ifaceName); }
+			}
+
+			int count = buf.getInt();
+			if (count < 0 || (long)count * ENTRY_SIZE > buf.remaining())
+			{ throw new IOException("Truncated route table snapshot"); }
+			for (int i = 0; i < count; i++)
+			{
+				int dstIp = buf.getInt();
+				int gwIp = buf.getInt();
+				int prefixLength = buf.get();
+				int ifaceIndex = buf.getShort() & 0xffff;
+				int metric = buf.getShort();
+				long timestamp = buf.getLong();
+				if (prefixLength < 0 || prefixLength > 32
+						|| (ifaceIndex != NO_IFACE && ifaceIndex >= ifaceCount))
+				{ throw new IOException("Invalid entry " + i); }
+				Iface iface = (NO_IFACE == ifaceIndex) 
+						? null : ifaces[ifaceIndex];
+				entries.add(new RouteEntry(dstIp, gwIp,
+						RouteTrie.maskOf(prefixLength), iface, metric,
+						timestamp));
+			}
+			return created;
+		}
+		finally
+		{ file.close(); }
+	}
+}
@@ -1,38 +1,171 @@
 package edu.wisc.cs.sdn.vnet.rt;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.util.LinkedList;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import net.floodlightcontroller.packet.IPv4;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
 
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.log.Level;
+import edu.wisc.cs.sdn.vnet.log.LogManager;
+import edu.wisc.cs.sdn.vnet.log.Logger;
 
 /**
  * Route table for a router.
+ * <p>
+ * Lookups read an immutable snapshot of the table that is published through
+ * a volatile field, so they never block and never observe a partially
+ * applied change. Changes are serialized by a write lock and build a new
+ * snapshot that shares all unchanged structure with the previous one. A
+ * group of changes can be published together by bracketing them with
+ * {@link #beginUpdate()} and {@link #endUpdate()}.
+ * <p>
+ * Every change to a prefix is recorded in a {@link RouteChangeLog} when it
+ * is published, and registered {@link RouteChangeListener}s are notified,
+ * so other components can react to deltas instead of rescanning the table.
  * @author Aaron Gember-Jacobson
  */
 public class RouteTable 
 {
-	/** Entries in the route table */
-	private List<RouteEntry> entries; 
+	/** Logs each rebuild of the compiled forwarding table */
+	private static final Logger fibLog = LogManager.getLogger("fib");
+
+	/** Immutable version of the route table */
+	private static class Snapshot
+	{
+		/** Entries indexed by prefix for longest-prefix matching */
+		final RouteTrie trie;
+
+		/** Entries compiled for direct-indexed lookup; null if not compiled */
+		final CompiledFib fib;
+
+		/** Number of versions published before this one */
+		final long generation;
+
+		/** Entries ordered by prefix; built on first use */
+		volatile List<RouteEntry> entries;
+
+		Snapshot(RouteTrie trie, CompiledFib fib, long generation)
+		{ 
+			this.trie = trie; 
+			this.fib = fib;
+			this.generation = generation;
+		}
+
+		List<RouteEntry> getEntries()
+		{
+			List<RouteEntry> result = this.entries;
+			if (null == result)
+			{
+				result = Collections.unmodifiableList(this.trie.entries());
+				this.entries = result;
+			}
+			return result;
+		}
+	}
+
+	/** Most recently published version of the route table */
+	private volatile Snapshot snapshot;
+
+	/** Serializes changes to the route table */
+	private final ReentrantLock writeLock;
+
+	/** Changes not yet published; guarded by writeLock */
+	private RouteTrie.Editor editor;
+
+	/** Entries including unpublished changes, indexed by exact prefix and
+	 * mask; guarded by writeLock */
+	private RouteIndex index;
+
+	/** Whether each published version is compiled into a DIR-24-8 FIB;
+	 * guarded by writeLock */
+	private boolean compiled;
+
+	/** Changes published so far */
+	private final RouteChangeLog changeLog;
+
+	/** Changes not yet published, oldest first; at most as many as the
+	 * change log holds; guarded by writeLock */
+	private final ArrayDeque<RouteChange> pendingChanges;
+
+	/** Notified when changes are published */
+	private final List<RouteChangeListener> listeners;
 
 	/**
 	 * Initialize an empty route table.
 	 */
 	public RouteTable()
-	{ this.entries = new LinkedList<RouteEntry>(); }
+	{ 
+		this.snapshot = new Snapshot(new RouteTrie(), null, 0);
+		this.writeLock = new ReentrantLock();
+		this.editor = null;
+		this.index = new RouteIndex();
+		this.compiled = false;
+		this.changeLog = new RouteChangeLog(RouteChangeLog.DEFAULT_CAPACITY);
+		this.pendingChanges = new ArrayDeque<RouteChange>();
+		this.listeners = new CopyOnWriteArrayList<RouteChangeListener>();
+	}
+
+	/**
+	 * @return log of changes published to the route table
+	 */
+	public RouteChangeLog getChangeLog()
+	{ return this.changeLog; }
+
+	/**
+	 * Register a listener to be notified whenever changes are published.
+	 * @param listener the listener
+	 */
+	public void addListener(RouteChangeListener listener)
+	{ this.listeners.add(listener); }
+
+	/**
+	 * Unregister a listener.
+	 * @param listener the listener
+	 */
+	public void removeListener(RouteChangeListener listener)
+	{ this.listeners.remove(listener); }
+
+	/**
+	 * Enable or disable compiling the route table into a DIR-24-8 forwarding
+	 * table. When enabled, lookups use the compiled table, which is rebuilt
+	 * every time a change is published. Compiling suits large tables that
+	 * rarely change, since each rebuild allocates the full first-level table;
+	 * each rebuild's size and build time are logged.
+	 * @param compiled true to compile the route table, otherwise false
+	 */
+	public void setCompiled(boolean compiled)
+	{
+		this.beginUpdate();
+		try
+		{
+			this.compiled = compiled;
+			this.publish(this.snapshot.trie);
+		}
+		finally
+		{ this.endUpdate(); }
+	}
+
+	/**
+	 * @return the compiled forwarding table for the most recently published
+	 *         version of the route table; null if compiling is disabled
+	 */
+	public CompiledFib getCompiledFib()
+	{ return this.snapshot.fib; }
 
 	/**
-	* Retrieve the entries in the route table
+	 * Retrieve the entries in the route table. The list is an unmodifiable
+	 * view of the most recently published version of the table and does not
+	 * reflect later changes.
 	 */
 	public List<RouteEntry> getEntries() {
-		return this.entries;
+		return this.snapshot.getEntries();
 	}
 
 	/**
@@ -42,26 +175,145 @@ public class RouteTable
 	 */
 	public RouteEntry lookup(int ip)
 	{
-		synchronized(this.entries)
-		{
-			/*****************************************************************/
-			/* TODO: Find the route entry with the longest prefix match      */
+		Snapshot current = this.snapshot;
+		if (current.fib != null)
+		{ return current.fib.lookup(ip); }
+		return current.trie.lookup(ip); 
+	}
+
+	/**
+	 * Lookup the route entries that match a batch of IP addresses. All 
+	 * addresses are resolved against the same version of the route table.
+	 * @param ips IP addresses
+	 * @param count number of addresses to look up, starting at index 0
+	 * @param results receives the matching route entry for each address, or
+	 *        null if none exists; must hold at least count elements
+	 */
+	public void lookup(int[] ips, int count, RouteEntry[] results)
+	{
+		if (count > ips.length || count > results.length)
+		{ throw new IllegalArgumentException("Batch larger than arrays"); }
+		Snapshot current = this.snapshot;
+		if (current.fib != null)
+		{ current.fib.lookup(ips, count, results); }
+		else
+		{ current.trie.lookup(ips, count, results); }
+	}
 
-			RouteEntry bestMatch = null;
-			for (RouteEntry entry : this.entries)
+	/**
+	 * Start a group of changes that are published together. Other writers
+	 * are blocked until the matching call to {@link #endUpdate()}; lookups
+	 * continue to see the previous version of the table. Calls may be nested.
+	 */
+	public void beginUpdate()
+	{ this.writeLock.lock(); }
+
+	/**
+	 * Finish a group of changes started with {@link #beginUpdate()}. When the
+	 * outermost group finishes, all of its changes are published at once.
+	 */
+	public void endUpdate()
+	{
+		boolean changed = false;
+		try
+		{
+			if (1 == this.writeLock.getHoldCount() && this.editor != null)
 			{
-				int maskedDst = ip & entry.getMaskAddress();
-				int entrySubnet = entry.getDestinationAddress() & entry.getMaskAddress();
-				if (maskedDst == entrySubnet) {
-					if ((null == bestMatch) || (entry.getMaskAddress() > bestMatch.getMaskAddress()))
-					{ bestMatch = entry; }
-				}
+				this.publish(this.editor.commit());
+				this.editor = null;
+
+				// Record changes once they are visible to lookups
+				for (RouteChange change : this.pendingChanges)
+				{ this.changeLog.store(change); }
+				this.pendingChanges.clear();
+				this.changeLog.publish();
+				changed = true;
 			}
+		}
+		finally
+		{ this.writeLock.unlock(); }
 
-			return bestMatch;
+		if (changed)
+		{
+			long sequence = this.changeLog.getSequence();
+			for (RouteChangeListener listener : this.listeners)
+			{ listener.routesChanged(this, sequence); }
+		}
+	}
 
-			/*****************************************************************/
+	/**
+	 * Make a new version of the route table visible to lookups; caller must
+	 * hold writeLock.
+	 * @param trie entries in the new version
+	 */
+	private void publish(RouteTrie trie)
+	{
+		CompiledFib fib = null;
+		if (this.compiled)
+		{
+			fib = CompiledFib.build(trie.entries());
+			fibLog.logf(Level.INFO, "Rebuilt %s", fib);
 		}
+		this.snapshot = new Snapshot(trie, fib, this.snapshot.generation + 1);
+	}
+
+	/**
+	 * @return number of versions of the route table published so far; any
+	 *         change to the table increases the generation
+	 */
+	public long getGeneration()
+	{ return this.snapshot.generation; }
+
+	/**
+	 * @return editor for unpublished changes; caller must hold writeLock
+	 */
+	private RouteTrie.Editor getEditor()
+	{
+		if (null == this.editor)
+		{ this.editor = this.snapshot.trie.edit(); }
+		return this.editor;
+	}
+
+	/**
+	 * Store an entry as an unpublished change; caller must hold writeLock.
+	 */
+	private void put(RouteEntry entry)
+	{
+		RouteEntry previous = this.getEditor().insert(
+				entry.getDestinationAddress(),
+				RouteTrie.lengthOf(entry.getMaskAddress()), entry);
+		this.index.put(entry);
+		this.record((null == previous) ? RouteChange.Type.ADDED 
+				: RouteChange.Type.CHANGED, entry, previous);
+	}
+
+	/**
+	 * Remove an entry as an unpublished change; caller must hold writeLock.
+	 * @return the removed entry, null if none existed
+	 */
+	private RouteEntry delete(int dstIp, int maskIp)
+	{
+		if (null == this.index.remove(dstIp, maskIp))
+		{ return null; }
+		RouteEntry removed = this.getEditor().remove(dstIp, 
+				RouteTrie.lengthOf(maskIp));
+		this.record(RouteChange.Type.WITHDRAWN, removed, null);
+		return removed;
+	}
+
+	/**
+	 * Record a change to be logged when it is published; caller must hold
+	 * writeLock. Only as many changes as the log holds are kept, since
+	 * readers could not see older ones anyway.
+	 */
+	private void record(RouteChange.Type type, RouteEntry entry, 
+			RouteEntry previous)
+	{
+		if (this.pendingChanges.size() == this.changeLog.getCapacity())
+		{ this.pendingChanges.removeFirst(); }
+		this.pendingChanges.addLast(new RouteChange(
+				this.changeLog.nextSequence(), this.snapshot.generation + 1,
+				type, entry, (RouteChange.Type.CHANGED == type) ? previous : null));
 	}
 
 	/**
@@ -72,91 +324,299 @@ public class RouteTable
 	 */
 	public boolean load(String filename, Router router)
 	{
-		// Open the file
-		BufferedReader reader;
+		this.beginUpdate();
+		try
+		{ return this.loadEntries(filename, router); }
+		finally
+		{ this.endUpdate(); }
+	}
+
+	private boolean loadEntries(String filename, Router router)
+	{
+		// Map the file into memory
+		MappedByteBuffer buf;
+		RandomAccessFile file = null;
 		try 
 		{
-			FileReader fileReader = new FileReader(filename);
-			reader = new BufferedReader(fileReader);
+			file = new RandomAccessFile(filename, "r");
+			if (file.length() > Integer.MAX_VALUE)
+			{
+				System.err.println("Route table file too large");
+				return false;
+			}
+			buf = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+					file.length());
 		}
-		catch (FileNotFoundException e) 
+		catch (IOException e) 
 		{
 			System.err.println(e.toString());
 			return false;
 		}
-
-		while (true)
+		finally
 		{
-			// Read a route entry from the file
-			String line = null;
-			try 
-			{ line = reader.readLine(); }
-			catch (IOException e) 
-			{
-				System.err.println(e.toString());
-				try { reader.close(); } catch (IOException f) {};
-				return false;
-			}
+			if (file != null)
+			{ try { file.close(); } catch (IOException f) {}; }
+		}
+
+		// Interface names as bytes, so lines can be matched without 
+		// allocating strings
+		Iface[] ifaces = router.getInterfaces().values().toArray(new Iface[0]);
+		byte[][] ifaceNames = new byte[ifaces.length][];
+		for (int i = 0; i < ifaces.length; i++)
+		{ ifaceNames[i] = ifaces[i].getName().getBytes(); }
 
-			// Stop if we have reached the end of the file
-			if (null == line)
-			{ break; }
+		long now = System.currentTimeMillis();
+		LineParser parser = new LineParser(buf);
+		int lineNumber = 0;
+		while (parser.nextLine())
+		{
+			lineNumber++;
+			if (parser.isBlank())
+			{ continue; }
 
 			// Parse fields for route entry
-			String ipPattern = "(\\d+\\.\\d+\\.\\d+\\.\\d+)";
-			String ifacePattern = "([a-zA-Z0-9]+)";
-			Pattern pattern = Pattern.compile(String.format(
-						"%s\\s+%s\\s+%s\\s+%s", 
-						ipPattern, ipPattern, ipPattern, ifacePattern));
-			Matcher matcher = pattern.matcher(line);
-			if (!matcher.matches() || matcher.groupCount() != 4)
+			long dstIp = parser.parseIp();
+			long gwIp = parser.skipSpace() ? parser.parseIp() : -1;
+			long maskIp = parser.skipSpace() ? parser.parseIp() : -1;
+			int ifaceIndex = parser.skipSpace() 
+					? parser.parseName(ifaceNames) : -2;
+			parser.skipSpace();
+			if (dstIp < 0 || gwIp < 0 || maskIp < 0 || ifaceIndex < -1
+					|| !parser.atEndOfLine())
 			{
-				System.err.println("Invalid entry in routing table file");
-				try { reader.close(); } catch (IOException f) {};
+				System.err.println("Invalid entry in routing table file, line "
+						+ lineNumber);
 				return false;
 			}
 
-			int dstIp = IPv4.toIPv4Address(matcher.group(1));
 			if (0 == dstIp)
 			{
 				System.err.println("Error loading route table, cannot convert "
-						+ matcher.group(1) + " to valid IP");
-				try { reader.close(); } catch (IOException f) {};
+						+ "destination on line " + lineNumber + " to valid IP");
 				return false;
 			}
 
-			int gwIp = IPv4.toIPv4Address(matcher.group(2));
-
-			int maskIp = IPv4.toIPv4Address(matcher.group(3));
 			if (0 == maskIp)
 			{
 				System.err.println("Error loading route table, cannot convert "
-						+ matcher.group(3) + " to valid IP");
-				try { reader.close(); } catch (IOException f) {};
+						+ "mask on line " + lineNumber + " to valid IP");
 				return false;
 			}
 
-			String ifaceName = matcher.group(4).trim();
-			Iface iface = router.getInterface(ifaceName);
-			if (null == iface)
+			if (-1 == ifaceIndex)
 			{
 				System.err.println("Error loading route table, invalid interface "
-						+ matcher.group(4));
-				try { reader.close(); } catch (IOException f) {};
+						+ "on line " + lineNumber);
 				return false;
 			}
 
 			// Add an entry to the route table
-			this.insert(dstIp, gwIp, maskIp, iface, 1, System.currentTimeMillis());
+			this.put(new RouteEntry((int)dstIp, (int)gwIp, (int)maskIp, 
+					ifaces[ifaceIndex], 1, now));
 		}
 
-		// Close the file
-		try { reader.close(); } catch (IOException f) {};
 		return true;
 	}
 
 	/**
-	 * Add an entry to the route table.
+	 * Populate the route table from a binary snapshot file.
+	 * @param filename name of the snapshot file
+	 * @param router the route table is associated with
+	 * @return true if route table was successfully loaded, otherwise false
+	 */
+	public boolean loadSnapshot(String filename, Router router)
+	{
+		List<RouteEntry> entries = new ArrayList<RouteEntry>();
+		try
+		{ RouteSnapshot.read(filename, router, entries); }
+		catch (IOException e)
+		{
+			System.err.println("Error loading route table snapshot: " 
+					+ e.getMessage());
+			return false;
+		}
+
+		this.beginUpdate();
+		try
+		{
+			for (RouteEntry entry : entries)
+			{ this.put(entry); }
+		}
+		finally
+		{ this.endUpdate(); }
+		return true;
+	}
+
+	/**
+	 * Write the most recently published version of the route table to a
+	 * binary snapshot file.
+	 * @param filename name of the snapshot file
+	 * @return true if the snapshot was successfully written, otherwise false
+	 */
+	public boolean saveSnapshot(String filename)
+	{
+		try
+		{ 
+			RouteSnapshot.write(filename, this.getEntries(), 
+					System.currentTimeMillis()); 
+		}
+		catch (IOException e)
+		{
+			System.err.println("Error saving route table snapshot: " 
+					+ e.getMessage());
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @param filename name of a route table file
+	 * @return true if the file is a binary snapshot, false if it is text
+	 */
+	public static boolean isSnapshot(String filename)
+	{ return RouteSnapshot.isSnapshot(filename); }
+
+	/**
+	 * Splits a memory-mapped text file into lines and parses route table 
+	 * fields in place.
+	 */
+	private static class LineParser
+	{
+		private final MappedByteBuffer buf;
+
+		/** Position of the next byte to parse */
+		private int pos;
+
+		/** Position of the end of the current line */
+		private int end;
+
+		LineParser(MappedByteBuffer buf)
+		{
+			this.buf = buf;
+			this.pos = 0;
+			this.end = -1;
+		}
+
+		/**
+		 * Advance to the next line.
+		 * @return false if there are no more lines
+		 */
+		boolean nextLine()
+		{
+			int limit = this.buf.limit();
+			this.pos = this.end + 1;
+			if (this.pos >= limit)
+			{ return false; }
+			this.end = this.pos;
+			while (this.end < limit && this.buf.get(this.end) != '\n')
+			{ this.end++; }
+			return true;
+		}
+
+		private static boolean isSpace(byte b)
+		{ return (' ' == b || '\t' == b || '\r' == b); }
+
+		/**
+		 * @return true if the current line contains only whitespace
+		 */
+		boolean isBlank()
+		{
+			for (int i = this.pos; i < this.end; i++)
+			{
+				if (!isSpace(this.buf.get(i)))
+				{ return false; }
+			}
+			return true;
+		}
+
+		/**
+		 * @return true if all of the current line has been parsed
+		 */
+		boolean atEndOfLine()
+		{ return this.pos >= this.end; }
+
+		/**
+		 * Skip whitespace.
+		 * @return true if at least one whitespace character was skipped
+		 */
+		boolean skipSpace()
+		{
+			int start = this.pos;
+			while (this.pos < this.end && isSpace(this.buf.get(this.pos)))
+			{ this.pos++; }
+			return this.pos > start;
+		}
+
+		/**
+		 * Parse a dotted-quad IP address.
+		 * @return the address as an unsigned value, -1 if malformed
+		 */
+		long parseIp()
+		{
+			long result = 0;
+			for (int octet = 0; octet < 4; octet++)
+			{
+				if (octet > 0)
+				{
+					if (this.pos >= this.end || this.buf.get(this.pos) != '.')
+					{ return -1; }
+					this.pos++;
+				}
+				int value = 0;
+				int digits = 0;
+				while (this.pos < this.end && digits < 4)
+				{
+					byte b = this.buf.get(this.pos);
+					if (b < '0' || b > '9')
+					{ break; }
+					value = value * 10 + (b - '0');
+					digits++;
+					this.pos++;
+				}
+				if (0 == digits || digits > 3 || value > 255)
+				{ return -1; }
+				result = (result << 8) | value;
+			}
+			return result;
+		}
+
+		/**
+		 * Parse an interface name made of letters and digits.
+		 * @param names candidate interface names
+		 * @return index of the matching name, -1 if the name is not one of 
+		 *         the candidates, -2 if malformed
+		 */
+		int parseName(byte[][] names)
+		{
+			int start = this.pos;
+			while (this.pos < this.end)
+			{
+				byte b = this.buf.get(this.pos);
+				if (!((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z')
+						|| (b >= '0' && b <= '9')))
+				{ break; }
+				this.pos++;
+			}
+			int length = this.pos - start;
+			if (0 == length)
+			{ return -2; }
+			for (int i = 0; i < names.length; i++)
+			{
+				if (names[i].length != length)
+				{ continue; }
+				int j = 0;
+				while (j < length && names[i][j] == this.buf.get(start + j))
+				{ j++; }
+				if (j == length)
+				{ return i; }
+			}
+			return -1;
+		}
+	}
+
+	/**
+	 * Add an entry to the route table, replacing any existing entry for the
+	 * same destination and subnet mask.
 	 * @param dstIp destination IP
 	 * @param gwIp gateway IP
 	 * @param maskIp subnet mask
@@ -165,11 +625,33 @@ public class RouteTable
 	 */
 	public void insert(int dstIp, int gwIp, int maskIp, Iface iface, int metric, long timestamp)
 	{
-		RouteEntry entry = new RouteEntry(dstIp, gwIp, maskIp, iface, metric);
-		synchronized(this.entries)
-		{ 
-			this.entries.add(entry);
-		}
+		RouteEntry entry = new RouteEntry(dstIp, gwIp, maskIp, iface, metric,
+				timestamp);
+		this.beginUpdate();
+		try
+		{ this.put(entry); }
+		finally
+		{ this.endUpdate(); }
+	}
+
+	/**
+	 * Add an entry with several next hops of equal cost to the route table,
+	 * replacing any existing entry for the same destination and subnet mask.
+	 * @param dstIp destination IP
+	 * @param gwIps gateway IP of each next hop
+	 * @param maskIp subnet mask
+	 * @param ifaces router interface out which to send packets to reach each
+	 *        next hop
+	 */
+	public void insert(int dstIp, int[] gwIps, int maskIp, Iface[] ifaces, int metric, long timestamp)
+	{
+		RouteEntry entry = new RouteEntry(dstIp, gwIps, maskIp, ifaces, metric,
+				timestamp);
+		this.beginUpdate();
+		try
+		{ this.put(entry); }
+		finally
+		{ this.endUpdate(); }
 	}
 
 	/**
@@ -180,17 +662,18 @@ public class RouteTable
 	 */
 	public boolean remove(int dstIp, int maskIp)
 	{ 
-		synchronized(this.entries)
-		{
-			RouteEntry entry = this.find(dstIp, maskIp);
-			if (null == entry) { return false; }
-			this.entries.remove(entry);
+		this.beginUpdate();
+		try
+		{ 
+			return (this.delete(dstIp, maskIp) != null); 
 		}
-		return true;
+		finally
+		{ this.endUpdate(); }
 	}
 
 	/**
-	 * Update an entry in the route table.
+	 * Update an entry in the route table. The existing entry is replaced, not
+	 * modified, so lookups never observe a partially updated entry.
 	 * @param dstIP destination IP of the entry to update
 	 * @param maskIp subnet mask of the entry to update
 	 * @param gatewayAddress new gateway IP address for matching entry
@@ -201,49 +684,44 @@ public class RouteTable
 	 */
 	public boolean update(int dstIp, int maskIp, int gwIp, Iface iface, int metric, long timestamp)
 	{
-		synchronized(this.entries)
+		this.beginUpdate();
+		try
 		{
 			RouteEntry entry = this.find(dstIp, maskIp);
 			if (null == entry) { return false; }
-			entry.setGatewayAddress(gwIp);
-			entry.setInterface(iface);
-			entry.setMetric(metric);
-			entry.setLastUpdateTimestamp(timestamp);
+			this.put(new RouteEntry(entry.getDestinationAddress(), gwIp, 
+					entry.getMaskAddress(), iface, metric, timestamp));
 		}
+		finally
+		{ this.endUpdate(); }
 		return true;
 	}
 
 	/**
-	 * Find an entry in the route table.
+	 * Find an entry in the route table. Within a group of changes, the
+	 * writer sees its own unpublished changes through a hash index, so
+	 * finds made while applying changes take constant time.
 	 * @param dstIP destination IP of the entry to find
 	 * @param maskIp subnet mask of the entry to find
 	 * @return a matching entry if one was found, otherwise null
 	 */
 	public RouteEntry find(int dstIp, int maskIp)
 	{
-		synchronized(this.entries)
-		{
-			for (RouteEntry entry : this.entries)
-			{
-				if ((entry.getDestinationAddress() == dstIp)
-					&& (entry.getMaskAddress() == maskIp)) 
-				{ return entry; }
-			}
-		}
-		return null;
+		if (this.writeLock.isHeldByCurrentThread())
+		{ return this.index.get(dstIp, maskIp); }
+		return this.snapshot.trie.find(dstIp, RouteTrie.lengthOf(maskIp));
 	}
 
 	public String toString()
 	{
-		synchronized(this.entries)
-		{ 
-			if (0 == this.entries.size())
-			{ return " WARNING: route table empty"; }
+		List<RouteEntry> entries = this.getEntries();
+		if (0 == entries.size())
+		{ return " WARNING: route table empty"; }
 
-			String result = "Destination\tGateway\t\tMask\t\tIface\tMetric\tTimestamp\n";
-			for (RouteEntry entry : entries)
-			{ result += entry.toString()+"\n"; }
-			return result;
-		}
+		StringBuilder result = new StringBuilder(
+				"Destination\tGateway\t\tMask\t\tIface\tMetric\tTimestamp\n");
+		for (RouteEntry entry : entries)
+		{ result.append(entry.toString()).append("\n"); }
+		return result.toString();
 	}
 }
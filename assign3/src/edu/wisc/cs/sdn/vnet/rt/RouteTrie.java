@@ -0,0 +1,383 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Path-compressed binary (Patricia) trie of route entries keyed by prefix.
+ * Longest-prefix match, exact find, insert and remove all walk at most one
+ * node per prefix bit, independent of the number of routes in the trie.
+ * <p>
+ * A trie is immutable once created, so any number of threads may read it
+ * without locking. Changes are made through an {@link Editor}, which copies
+ * only the nodes along the paths it modifies and shares the rest with the
+ * trie it started from.
+ */
+class RouteTrie
+{
+	/** A node in the trie; a node without an entry only joins two subtries */
+	private static class Node
+	{
+		/** Prefix bits covered by this node (host bits are zero) */
+		final int prefix;
+
+		/** Number of leading bits of prefix that are significant */
+		final int length;
+
+		/** Route entry for exactly this prefix; null if none */
+		RouteEntry entry;
+
+		/** Children indexed by the bit following the prefix */
+		final Node[] children;
+
+		/** Token of the editor that created the node; only that editor,
+		 * before committing, may modify it in place */
+		Object edit;
+
+		Node(int prefix, int length, RouteEntry entry, Object edit)
+		{
+			this.prefix = prefix;
+			this.length = length;
+			this.entry = entry;
+			this.children = new Node[2];
+			this.edit = edit;
+		}
+
+		Node(Node other, Object edit)
+		{
+			this(other.prefix, other.length, other.entry, edit);
+			this.children[0] = other.children[0];
+			this.children[1] = other.children[1];
+		}
+	}
+
+	/** Root node for the zero-length prefix; always present */
+	private final Node root;
+
+	/** Number of route entries stored in the trie */
+	private final int size;
+
+	/**
+	 * Initialize an empty trie.
+	 */
+	RouteTrie()
+	{ this(new Node(0, 0, null, null), 0); }
+
+	private RouteTrie(Node root, int size)
+	{
+		this.root = root;
+		this.size = size;
+	}
+
+	/**
+	 * @return number of route entries stored in the trie
+	 */
+	int size()
+	{ return this.size; }
+
+	/**
+	 * @param length prefix length (0-32)
+	 * @return subnet mask with the given number of leading one bits
+	 */
+	static int maskOf(int length)
+	{ return (0 == length) ? 0 : (-1 << (32 - length)); }
+
+	/**
+	 * @param mask subnet mask
+	 * @return number of leading one bits in the mask
+	 */
+	static int lengthOf(int mask)
+	{ return Integer.bitCount(mask); }
+
+	/**
+	 * @return the bit of ip at position pos, counting from the most
+	 *         significant bit
+	 */
+	private static int bitAt(int ip, int pos)
+	{ return (ip >>> (31 - pos)) & 1; }
+
+	/**
+	 * Find the entry with the longest prefix that matches an IP address.
+	 * @param ip IP address
+	 * @return the matching route entry, null if none exists
+	 */
+	RouteEntry lookup(int ip)
+	{ return lookup(this.root, ip); }
+
+	/**
+	 * Find the entries with the longest prefixes that match a batch of IP
+	 * addresses, all in this version of the trie. An address equal to the
+	 * one before it, as in a burst of packets to one destination, reuses
+	 * that address's match instead of walking the trie again.
+	 * @param ips IP addresses
+	 * @param count number of addresses to look up
+	 * @param results receives the matching route entry for each address, or
+	 *        null if none exists
+	 */
+	void lookup(int[] ips, int count, RouteEntry[] results)
+	{
+		Node root = this.root;
+		for (int i = 0; i < count; i++)
+		{
+			int ip = ips[i];
+			results[i] = (i > 0 && ip == ips[i - 1]) ? results[i - 1]
+					: lookup(root, ip);
+		}
+	}
+
+	/**
+	 * Find the entry stored for exactly a given prefix.
+	 * @param prefix prefix bits
+	 * @param length prefix length
+	 * @return the entry for the prefix, null if none exists
+	 */
+	RouteEntry find(int prefix, int length)
+	{ return find(this.root, prefix, length); }
+
+	/**
+	 * @return all entries in the trie, ordered by prefix
+	 */
+	List<RouteEntry> entries()
+	{
+		List<RouteEntry> result = new ArrayList<RouteEntry>(this.size);
+		collect(this.root, result);
+		return result;
+	}
+
+	/**
+	 * @return an editor whose changes start from the contents of this trie
+	 */
+	Editor edit()
+	{ return new Editor(this); }
+
+	private static RouteEntry lookup(Node node, int ip)
+	{
+		RouteEntry bestMatch = null;
+		while (node != null)
+		{
+			if (((ip ^ node.prefix) & maskOf(node.length)) != 0)
+			{ break; }
+			if (node.entry != null)
+			{ bestMatch = node.entry; }
+			if (32 == node.length)
+			{ break; }
+			node = node.children[bitAt(ip, node.length)];
+		}
+		return bestMatch;
+	}
+
+	private static RouteEntry find(Node node, int prefix, int length)
+	{
+		prefix &= maskOf(length);
+		while (node != null && node.length < length)
+		{
+			if (((prefix ^ node.prefix) & maskOf(node.length)) != 0)
+			{ return null; }
+			node = node.children[bitAt(prefix, node.length)];
+		}
+		if (node != null && node.length == length && node.prefix == prefix)
+		{ return node.entry; }
+		return null;
+	}
+
+	private static void collect(Node node, List<RouteEntry> result)
+	{
+		if (null == node)
+		{ return; }
+		if (node.entry != null)
+		{ result.add(node.entry); }
+		collect(node.children[0], result);
+		collect(node.children[1], result);
+	}
+
+	/**
+	 * Accumulates changes to a trie and produces a new trie with those
+	 * changes applied. Nodes created by an editor are modified in place until
+	 * the editor is committed, so a batch of changes along the same path only
+	 * copies that path once. An editor must only be used by one thread.
+	 */
+	static class Editor
+	{
+		/** Identity of this editor; marks nodes it may modify in place */
+		private Object token;
+
+		/** Root of the trie being edited */
+		private Node root;
+
+		/** Number of route entries in the trie being edited */
+		private int size;
+
+		private Editor(RouteTrie base)
+		{
+			this.token = new Object();
+			this.root = base.root;
+			this.size = base.size;
+		}
+
+		/**
+		 * @return number of route entries in the trie being edited
+		 */
+		int size()
+		{ return this.size; }
+
+		/**
+		 * Find the entry with the longest prefix that matches an IP address,
+		 * including changes made through this editor.
+		 */
+		RouteEntry lookup(int ip)
+		{ return RouteTrie.lookup(this.root, ip); }
+
+		/**
+		 * Find the entry stored for exactly a given prefix, including changes
+		 * made through this editor.
+		 */
+		RouteEntry find(int prefix, int length)
+		{ return RouteTrie.find(this.root, prefix, length); }
+
+		/**
+		 * @return a node this editor may modify, copying it if necessary
+		 */
+		private Node writable(Node node)
+		{
+			if (null == this.token)
+			{ throw new IllegalStateException("Editor already committed"); }
+			if (node.edit == this.token)
+			{ return node; }
+			return new Node(node, this.token);
+		}
+
+		/**
+		 * Store an entry for a prefix, replacing any entry already stored for
+		 * exactly that prefix.
+		 * @param prefix prefix bits
+		 * @param length prefix length
+		 * @param entry route entry to store
+		 * @return the entry that was replaced, null if none
+		 */
+		RouteEntry insert(int prefix, int length, RouteEntry entry)
+		{
+			prefix &= maskOf(length);
+			Node node = this.writable(this.root);
+			this.root = node;
+			while (true)
+			{
+				if (node.length == length)
+				{
+					RouteEntry old = node.entry;
+					node.entry = entry;
+					if (null == old)
+					{ this.size++; }
+					return old;
+				}
+
+				int b = bitAt(prefix, node.length);
+				Node child = node.children[b];
+				if (null == child)
+				{
+					node.children[b] = new Node(prefix, length, entry, this.token);
+					this.size++;
+					return null;
+				}
+
+				// Determine how many leading bits the child and prefix share
+				int common = Math.min(Math.min(child.length, length),
+						Integer.numberOfLeadingZeros(child.prefix ^ prefix));
+				if (common == child.length)
+				{
+					child = this.writable(child);
+					node.children[b] = child;
+					node = child;
+					continue;
+				}
+
+				// Split the compressed path where the child and prefix diverge
+				Node added = new Node(prefix, length, entry, this.token);
+				if (common == length)
+				{
+					added.children[bitAt(child.prefix, length)] = child;
+					node.children[b] = added;
+				}
+				else
+				{
+					Node split = new Node(prefix & maskOf(common), common, null,
+							this.token);
+					split.children[bitAt(child.prefix, common)] = child;
+					split.children[bitAt(prefix, common)] = added;
+					node.children[b] = split;
+				}
+				this.size++;
+				return null;
+			}
+		}
+
+		/**
+		 * Remove the entry stored for exactly a given prefix.
+		 * @param prefix prefix bits
+		 * @param length prefix length
+		 * @return the entry that was removed, null if none existed
+		 */
+		RouteEntry remove(int prefix, int length)
+		{
+			if (null == RouteTrie.find(this.root, prefix, length))
+			{ return null; }
+
+			prefix &= maskOf(length);
+			Node grandparent = null;
+			Node parent = null;
+			Node node = this.writable(this.root);
+			this.root = node;
+			while (node.length < length)
+			{
+				int b = bitAt(prefix, node.length);
+				Node child = this.writable(node.children[b]);
+				node.children[b] = child;
+				grandparent = parent;
+				parent = node;
+				node = child;
+			}
+
+			RouteEntry old = node.entry;
+			node.entry = null;
+			this.size--;
+			if (node == this.root)
+			{ return old; }
+
+			// Collapse nodes that no longer hold an entry or join two subtries
+			Node left = node.children[0];
+			Node right = node.children[1];
+			if (left != null && right != null)
+			{ return old; }
+			replaceChild(parent, node, (left != null) ? left : right);
+			if (null == left && null == right && parent != this.root
+					&& null == parent.entry)
+			{
+				Node sibling = (parent.children[0] != null)
+						? parent.children[0] : parent.children[1];
+				replaceChild(grandparent, parent, sibling);
+			}
+			return old;
+		}
+
+		/**
+		 * Finish editing. The editor may not be used afterwards.
+		 * @return an immutable trie with all changes applied
+		 */
+		RouteTrie commit()
+		{
+			this.token = null;
+			return new RouteTrie(this.root, this.size);
+		}
+
+		/**
+		 * Replace the link from a parent to one of its children.
+		 */
+		private static void replaceChild(Node parent, Node child,
+				Node replacement)
+		{
+			if (parent.children[0] == child)
+			{ parent.children[0] = replacement; }
+			else
+			{ parent.children[1] = replacement; }
+		}
+	}
+}
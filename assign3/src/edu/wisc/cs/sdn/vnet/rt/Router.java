@@ -1,8 +1,15 @@
 package edu.wisc.cs.sdn.vnet.rt;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.DumpFile;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.log.Level;
+import edu.wisc.cs.sdn.vnet.log.LogManager;
+import edu.wisc.cs.sdn.vnet.log.Logger;
 /*
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.IPv4;
@@ -14,15 +21,80 @@ import net.floodlightcontroller.packet.*;
  */
 public class Router extends Device
 {	
+	/** Logs each packet received */
+	private static final Logger packetLog = LogManager.getLogger("packet");
+
+	/** Largest route table printed in full when it is loaded */
+	private static final int MAX_PRINTED_ROUTES = 100;
+
+	/** Size of an Ethernet header without a VLAN tag */
+	private static final int ETHERNET_HEADER_SIZE = 14;
+
+	/** Size of an IPv4 header without options */
+	private static final int IPV4_MIN_HEADER_SIZE = 20;
+
+	/** Resolutions of destinations that cannot be reached, for which an ICMP
+	 * destination network or host unreachable error is sent */
+	private static final ResolutionCache.Resolution NET_UNREACHABLE =
+			new ResolutionCache.Resolution(0, new Iface[0], new MACAddress[0], 
+					Rib.INFINITY, -1, -1);
+	private static final ResolutionCache.Resolution HOST_UNREACHABLE =
+			new ResolutionCache.Resolution(0, new Iface[0], new MACAddress[0], 
+					Rib.INFINITY, -1, -1);
+
+	/** Resolution of a destination whose next hops are being resolved with
+	 * ARP; the packet waits until they are */
+	private static final ResolutionCache.Resolution ARP_PENDING =
+			new ResolutionCache.Resolution(0, new Iface[0], new MACAddress[0], 
+					Rib.INFINITY, -1, -1);
+
+	/** ICMP errors sent per second, and at once, in total */
+	private static final int ICMP_ERROR_RATE = 1000;
+	private static final int ICMP_ERROR_BURST = 50;
+
+	/** ICMP errors sent per second, and at once, to each source */
+	private static final int ICMP_SOURCE_RATE = 10;
+	private static final int ICMP_SOURCE_BURST = 10;
+
+	/** Time (in milliseconds) a learned ARP entry is kept unconfirmed */
+	private static final long ARP_TIMEOUT = 15000;
+
 	/** Routing table for the router */
 	private RouteTable routeTable;
 
+	/** Candidate routes from which the routing table is derived */
+	private Rib rib;
+
 	/** ARP cache for the router */
 	private ArpCache arpCache;
 
+	/** Recent forwarding decisions, keyed by destination IP address */
+	private ResolutionCache resolutionCache;
+
+	/** Recent forwarding decisions, keyed by flow */
+	private FlowCache flowCache;
+
 	/** Timestamp for when the router last sent an unsolicited RIP Response */
 	private long lastSent;
 
+	/** Limits the rate of ICMP errors sent */
+	private IcmpRateLimiter icmpLimiter;
+
+	/** Builds ICMP messages sent */
+	private IcmpBuilder icmpBuilder;
+
+	/** Addresses of the router's interfaces; replaced when they change */
+	private volatile AddressSet localAddresses;
+
+	/** Splits packets larger than the MTU of the interface they are sent out */
+	private Fragmenter fragmenter;
+
+	/** Reassembles fragmented packets addressed to the router */
+	private Reassembler reassembler;
+
+	/** Next hops being resolved with ARP, and the packets waiting for them */
+	private ArpResolver arpResolver;
+
 	/**
 	 * Creates a router for a specific host.
 	 * @param host hostname for the router
@@ -31,8 +103,31 @@ public class Router extends Device
 	{
 		super(host,logfile);
 		this.routeTable = new RouteTable();
+		this.rib = new Rib(this.routeTable);
 		this.arpCache = new ArpCache();
+		this.resolutionCache = new ResolutionCache();
+		this.flowCache = new FlowCache();
 		this.lastSent = 0;
+		this.icmpLimiter = new IcmpRateLimiter(ICMP_ERROR_RATE, 
+				ICMP_ERROR_BURST, ICMP_SOURCE_RATE, ICMP_SOURCE_BURST);
+		this.icmpBuilder = new IcmpBuilder();
+		this.localAddresses = AddressSet.EMPTY;
+		this.fragmenter = new Fragmenter();
+		this.reassembler = new Reassembler();
+		this.arpResolver = new ArpResolver();
+	}
+
+	/**
+	 * Rebuild the set of the router's own addresses.
+	 */
+	public void interfacesChanged()
+	{
+		int[] addresses = new int[this.interfaces.size()];
+		int i = 0;
+		for (Iface iface : this.interfaces.values())
+		{ addresses[i++] = iface.getIpAddress(); }
+		this.localAddresses = new AddressSet(addresses);
+		this.flowCache.invalidateAll();
 	}
 
 	/**
@@ -56,22 +151,112 @@ public class Router extends Device
 	{ return this.routeTable; }
 
 	/**
-	 * Load a new routing table from a file.
+	 * @return candidate routes from which the routing table is derived
+	 */
+	public Rib getRib()
+	{ return this.rib; }
+
+	/**
+	 * @return recent forwarding decisions for flows, with hit and eviction
+	 *         counts
+	 */
+	public FlowCache getFlowCache()
+	{ return this.flowCache; }
+
+	/**
+	 * @return the limiter of ICMP errors sent, with counts of errors sent
+	 *         and suppressed
+	 */
+	public IcmpRateLimiter getIcmpRateLimiter()
+	{ return this.icmpLimiter; }
+
+	/**
+	 * @return counts of packets fragmented and of fragmented packets
+	 *         reassembled
+	 */
+	public String getFragmentationStats()
+	{
+		return String.format("Fragmentation: %d packets into %d fragments\n%s",
+				this.fragmenter.getPackets(), this.fragmenter.getFragments(),
+				this.reassembler);
+	}
+
+	/**
+	 * @return counts of ARP requests sent and of packets that waited for
+	 *         them
+	 */
+	public String getArpStats()
+	{ return this.arpResolver.toString(); }
+
+	/**
+	 * Resend ARP requests that have not been answered, and give up next
+	 * hops that have not answered any; packets waiting for them get an
+	 * ICMP destination host unreachable error. Learned ARP entries not
+	 * confirmed within {@link #ARP_TIMEOUT} are removed, so their next hops
+	 * are resolved again. Called periodically, more often than once per
+	 * {@link ArpResolver#RETRY_INTERVAL_NANOS}.
+	 */
+	public void checkArpRequests()
+	{
+		this.arpCache.expire(ARP_TIMEOUT);
+		List<ArpResolver.Pending> retry = new ArrayList<ArpResolver.Pending>();
+		List<ArpResolver.Pending> failed = new ArrayList<ArpResolver.Pending>();
+		this.arpResolver.expire(System.nanoTime(), retry, failed);
+		for (ArpResolver.Pending pending : retry)
+		{ this.sendArpRequest(pending.getNextHop(), pending.getOutIface()); }
+		for (ArpResolver.Pending pending : failed)
+		{
+			for (ArpResolver.Packet packet : pending.getPackets())
+			{
+				this.sendIcmpError(packet.getBuffer(), ArpResolver.FRAME_OFFSET,
+						packet.getFrameLength(), packet.getInIface(), 3, 1);
+			}
+		}
+	}
+
+	/**
+	 * Load a new routing table from a file. The file may be a text route
+	 * table or a binary snapshot written by {@link #saveRouteTable(String)}.
 	 * @param routeTableFile the name of the file containing the routing table
 	 */
 	public void loadRouteTable(String routeTableFile)
 	{
-		if (!routeTable.load(routeTableFile, this))
+		long start = System.currentTimeMillis();
+		boolean snapshot = RouteTable.isSnapshot(routeTableFile);
+		boolean loaded = snapshot 
+				? routeTable.loadSnapshot(routeTableFile, this)
+				: routeTable.load(routeTableFile, this);
+		if (!loaded)
 		{
 			System.err.println("Error setting up routing table from file "
 					+ routeTableFile);
 			System.exit(1);
 		}
 
-		System.out.println("Loaded static route table");
-		System.out.println("-------------------------------------------------");
-		System.out.print(this.routeTable.toString());
-		System.out.println("-------------------------------------------------");
+		System.out.println(String.format("Loaded static route table%s: "
+				+ "%d entries in %d ms", (snapshot ? " snapshot" : ""),
+				this.routeTable.getEntries().size(),
+				System.currentTimeMillis() - start));
+		if (this.routeTable.getEntries().size() <= MAX_PRINTED_ROUTES)
+		{
+			System.out.println("-------------------------------------------------");
+			System.out.print(this.routeTable.toString());
+			System.out.println("-------------------------------------------------");
+		}
+	}
+
+	/**
+	 * Save the routing table to a binary snapshot file, which can later be
+	 * loaded with {@link #loadRouteTable(String)}.
+	 * @param routeTableFile the name of the snapshot file to write
+	 * @return true if the snapshot was written, otherwise false
+	 */
+	public boolean saveRouteTable(String routeTableFile)
+	{
+		if (!this.routeTable.saveSnapshot(routeTableFile))
+		{ return false; }
+		System.out.println("Saved route table snapshot to " + routeTableFile);
+		return true;
 	}
 
 	/**
@@ -93,6 +278,333 @@ public class Router extends Device
 		System.out.println("----------------------------------");
 	}
 
+	/**
+	 * Forward a transit IPv4 packet directly in the received buffer: check
+	 * the header, decrement the TTL, patch the header checksum, rewrite the
+	 * MAC addresses and resend the same buffer. Packets of a flow already
+	 * forwarded use the decision cached for the flow. ICMP errors and echo
+	 * replies are built from the received bytes. Packets larger than the
+	 * outgoing interface's MTU are fragmented, and fragments addressed to
+	 * the router are reassembled before they are handled. RIP, and packets
+	 * for the router other than TCP, UDP and echo requests, are left to the
+	 * decoded path.
+	 * @param buf buffer holding the frame
+	 * @param frameOffset position of the frame in the buffer
+	 * @param frameLength length of the frame
+	 * @param inIface the interface on which the frame was received
+	 * @return true if the frame was forwarded or dropped, false if it should
+	 *         be decoded
+	 */
+	public boolean handleRawPacket(byte[] buf, int frameOffset, 
+			int frameLength, Iface inIface)
+	{
+		// Describe the frame before it is rewritten in place; frames left to
+		// the decoded path are logged there instead
+		String received = packetLog.sample(Level.DEBUG) 
+				? describeFrame(buf, frameOffset, frameLength, inIface) : null;
+		boolean handled = this.forwardRawFrame(buf, frameOffset, frameLength,
+				inIface);
+		if (handled && received != null)
+		{ packetLog.log(Level.DEBUG, "*** -> Received packet: " + received); }
+		return handled;
+	}
+
+	/**
+	 * Describe a frame from its bytes, for logging.
+	 */
+	private static String describeFrame(byte[] buf, int frameOffset,
+			int frameLength, Iface inIface)
+	{
+		int ip = frameOffset + ETHERNET_HEADER_SIZE;
+		if (frameLength < ETHERNET_HEADER_SIZE)
+		{ return String.format("%d bytes on %s", frameLength, inIface.getName()); }
+		if (frameLength < ETHERNET_HEADER_SIZE + IPV4_MIN_HEADER_SIZE
+				|| IPv4.getShort(buf, frameOffset + 12) != Ethernet.TYPE_IPv4)
+		{
+			return String.format("EtherType 0x%04x, %d bytes on %s",
+					IPv4.getShort(buf, frameOffset + 12), frameLength,
+					inIface.getName());
+		}
+		return String.format("IPv4 %s -> %s, protocol %d, TTL %d, %d bytes"
+				+ " on %s", IPv4.fromIPv4Address(IPv4.getInt(buf, ip + 12)),
+				IPv4.fromIPv4Address(IPv4.getInt(buf, ip + 16)), 
+				buf[ip + 9] & 0xff, buf[ip + 8] & 0xff, frameLength, 
+				inIface.getName());
+	}
+
+	/**
+	 * Forward or answer a frame from its bytes, as described for
+	 * {@link #handleRawPacket}.
+	 * @return true if the frame was forwarded or dropped, false if it should
+	 *         be decoded
+	 */
+	private boolean forwardRawFrame(byte[] buf, int frameOffset, 
+			int frameLength, Iface inIface)
+	{
+		// Only untagged IPv4 frames with a complete header
+		int ip = frameOffset + ETHERNET_HEADER_SIZE;
+		if (frameLength < ETHERNET_HEADER_SIZE + IPV4_MIN_HEADER_SIZE
+				|| buf[frameOffset + 12] != 0x08 || buf[frameOffset + 13] != 0x00
+				|| (buf[ip] & 0xf0) != 0x40)
+		{ return false; }
+		int headerLength = (buf[ip] & 0x0f) * 4;
+		if (headerLength < IPV4_MIN_HEADER_SIZE 
+				|| ETHERNET_HEADER_SIZE + headerLength > frameLength)
+		{ return false; }
+
+		// Verify checksum
+		if (!IPv4.isHeaderChecksumValid(buf, ip))
+		{ return true; }
+
+		int protocol = buf[ip + 9] & 0xff;
+		int srcAddr = IPv4.getInt(buf, ip + 12);
+		int dstAddr = IPv4.getInt(buf, ip + 16);
+
+		// Read ports for flow hashing, and leave RIP to the decoded path
+		boolean fragmented = (0 != (buf[ip + 6] & 0x3f)) || (0 != buf[ip + 7]);
+		int ports = 0;
+		if (!fragmented && (IPv4.PROTOCOL_TCP == protocol 
+				|| IPv4.PROTOCOL_UDP == protocol))
+		{
+			if (ETHERNET_HEADER_SIZE + headerLength + 4 > frameLength)
+			{ return false; }
+			ports = IPv4.getInt(buf, ip + headerLength);
+			if (IPv4.PROTOCOL_UDP == protocol 
+					&& (ports & 0xffff) == (UDP.RIP_PORT & 0xffff))
+			{ return false; }
+		}
+
+		// Forward packets of a flow with a cached decision straight away;
+		// flows are only cached once forwarded, so they are not for the router
+		int ttl = buf[ip + 8] & 0xff;
+		int hash = flowHash(srcAddr, dstAddr, protocol, !fragmented, ports);
+		long addressKey = FlowCache.addressKey(srcAddr, dstAddr);
+		long portKey = FlowCache.portKey(protocol, !fragmented, ports);
+		long routeGeneration = this.routeTable.getGeneration();
+		long arpGeneration = this.arpCache.getGeneration();
+		long epoch = this.flowCache.getEpoch();
+		FlowCache.Entry flow = this.flowCache.lookup(hash, addressKey, portKey,
+				routeGeneration, arpGeneration);
+		if (flow != null && ttl > 1 && flow.getInterface() != inIface)
+		{
+			this.forwardRawPacket(buf, frameOffset, frameLength, inIface,
+					flow.getInterface(), flow.getNextHopMac(), true);
+			return true;
+		}
+
+		// Packets for one of router's interfaces are never forwarded; reply 
+		// to TCP, UDP and echo requests, and drop anything else
+		if (this.localAddresses.contains(dstAddr))
+		{
+			if (fragmented)
+			{
+				this.reassemble(buf, frameOffset, frameLength, inIface);
+				return true;
+			}
+			int icmp = ip + headerLength;
+			if (IPv4.PROTOCOL_TCP == protocol || IPv4.PROTOCOL_UDP == protocol)
+			{ this.sendIcmpError(buf, frameOffset, frameLength, inIface, 3, 3); }
+			else if (IPv4.PROTOCOL_ICMP == protocol && !fragmented
+					&& icmp < frameOffset + frameLength
+					&& IcmpBuilder.TYPE_ECHO_REQUEST == buf[icmp])
+			{ this.sendEchoReply(buf, frameOffset, frameLength, inIface); }
+			return true;
+		}
+
+		// Packets whose TTL expires need an ICMP error
+		if (ttl <= 1)
+		{ 
+			this.sendIcmpError(buf, frameOffset, frameLength, inIface, 11, 0);
+			return true;
+		}
+
+		// Use the cached decision for this destination, or resolve it
+		ResolutionCache.Resolution resolution = this.resolutionCache.lookup(
+				dstAddr, routeGeneration, arpGeneration);
+		if (null == resolution)
+		{
+			resolution = this.resolve(dstAddr, inIface, routeGeneration,
+					arpGeneration);
+			if (NET_UNREACHABLE == resolution || HOST_UNREACHABLE == resolution)
+			{
+				this.sendIcmpError(buf, frameOffset, frameLength, inIface, 3,
+						(NET_UNREACHABLE == resolution) ? 0 : 1);
+				return true;
+			}
+			if (ARP_PENDING == resolution)
+			{
+				IPv4.decrementTtl(buf, ip);
+				this.waitForArp(dstAddr, inIface, hash, buf, frameOffset,
+						frameLength);
+				return true;
+			}
+			if (null == resolution)
+			{ return true; }
+		}
+		int path = choosePath(resolution, hash, inIface);
+		if (path < 0)
+		{ return true; }
+
+		// Cache the path chosen for the flow
+		Iface outIface = resolution.getInterface(path);
+		MACAddress nextHopMac = resolution.getNextHopMac(path);
+		this.flowCache.insert(hash, addressKey, portKey, outIface, nextHopMac,
+				routeGeneration, arpGeneration, epoch);
+
+		this.forwardRawPacket(buf, frameOffset, frameLength, inIface, outIface,
+				nextHopMac, true);
+		return true;
+	}
+
+	/**
+	 * Forward a checked frame in place: decrement the TTL, update the
+	 * checksum, rewrite the MAC addresses and resend the buffer, in
+	 * fragments if it is larger than the outgoing interface's MTU. Packets
+	 * too large that may not be fragmented get an ICMP fragmentation
+	 * needed error instead.
+	 * @param decrementTtl false if the TTL was decremented before the
+	 *        packet waited for its next hop to be resolved
+	 */
+	private void forwardRawPacket(byte[] buf, int frameOffset, int frameLength,
+			Iface inIface, Iface outIface, MACAddress nextHopMac, 
+			boolean decrementTtl)
+	{
+		int ip = frameOffset + ETHERNET_HEADER_SIZE;
+		if (IPv4.getShort(buf, ip + 2) > outIface.getMtu() 
+				&& Fragmenter.isDontFragment(buf, frameOffset))
+		{
+			this.sendIcmpError(buf, frameOffset, frameLength, inIface, 3, 4,
+					outIface.getMtu());
+			return;
+		}
+
+		// Decrement TTL and update the checksum for the change
+		if (decrementTtl)
+		{ IPv4.decrementTtl(buf, ip); }
+
+		// Set source and destination MAC addresses in Ethernet header
+		nextHopMac.copyTo(buf, frameOffset);
+		outIface.getMacAddress().copyTo(buf, frameOffset + 6);
+
+		this.sendIpFrame(buf, frameOffset, frameLength, outIface);
+	}
+
+	/**
+	 * Queue a packet until the MAC address of its next hop is resolved,
+	 * sending an ARP request if the next hop was not already being
+	 * resolved. The next hop is chosen among the route's paths as
+	 * {@link #choosePath} would.
+	 * @param dstAddr destination IP address of the packet
+	 * @param inIface the interface on which the packet was received
+	 * @param flowHash hash of the packet's flow; see {@link #flowHash}
+	 * @param buf buffer holding the frame, whose TTL has been decremented;
+	 *        copied if the packet is queued
+	 * @param frameOffset position of the frame in the buffer
+	 * @param frameLength length of the frame
+	 */
+	private void waitForArp(int dstAddr, Iface inIface, int flowHash,
+			byte[] buf, int frameOffset, int frameLength)
+	{
+		RouteEntry route = this.routeTable.lookup(dstAddr);
+		if (null == route)
+		{ return; }
+		int pathCount = route.getNextHopCount();
+		int first = (int)(((flowHash & 0xffffffffL) * pathCount) >>> 32);
+		for (int i = 0; i < pathCount; i++)
+		{
+			int path = (first + i) % pathCount;
+			Iface outIface = route.getInterface(path);
+			if (outIface == inIface)
+			{ continue; }
+			int nextHop = route.getGatewayAddress(path);
+			if (0 == nextHop)
+			{ nextHop = dstAddr; }
+
+			if (this.arpResolver.enqueue(nextHop, outIface, buf, frameOffset,
+					frameLength, inIface, System.nanoTime()))
+			{ this.sendArpRequest(nextHop, outIface); }
+
+			// A reply may have been handled since the route was resolved;
+			// the reply is learned before its packets are taken, so either
+			// it or this sends the packet
+			ArpEntry arpEntry = this.arpCache.lookup(nextHop);
+			if (arpEntry != null)
+			{ this.sendWaitingPackets(nextHop, arpEntry.getMac()); }
+			return;
+		}
+	}
+
+	/**
+	 * Send the packets waiting for a next hop whose MAC address has been
+	 * resolved, all at once.
+	 * @param nextHop IP address of the next hop
+	 * @param nextHopMac MAC address of the next hop
+	 */
+	private void sendWaitingPackets(int nextHop, MACAddress nextHopMac)
+	{
+		ArpResolver.Pending pending = this.arpResolver.resolved(nextHop);
+		if (null == pending)
+		{ return; }
+		for (ArpResolver.Packet packet : pending.getPackets())
+		{
+			this.forwardRawPacket(packet.getBuffer(), ArpResolver.FRAME_OFFSET,
+					packet.getFrameLength(), packet.getInIface(),
+					pending.getOutIface(), nextHopMac, false);
+		}
+	}
+
+	/**
+	 * Send a frame holding an IPv4 packet, in fragments if the packet is 
+	 * larger than the interface's MTU.
+	 * @param buf buffer holding the frame, with room before it for the VNS
+	 *        command header
+	 * @param frameOffset position of the frame; it must hold a complete
+	 *        IPv4 header
+	 * @param frameLength length of the frame
+	 * @param outIface interface to send the frame out
+	 */
+	private void sendIpFrame(byte[] buf, int frameOffset, int frameLength,
+			Iface outIface)
+	{
+		if (IPv4.getShort(buf, frameOffset + ETHERNET_HEADER_SIZE + 2) 
+				<= outIface.getMtu())
+		{ this.sendRawPacket(buf, frameOffset, frameLength, outIface); }
+		else
+		{ this.fragmenter.send(this, buf, frameOffset, frameLength, outIface); }
+	}
+
+	/**
+	 * Add a fragment addressed to the router to the packet it belongs to,
+	 * and handle the packet once every fragment has arrived.
+	 * @param buf buffer holding the fragment's frame
+	 * @param frameOffset position of the frame; it must hold a complete,
+	 *        checked IPv4 header
+	 * @param frameLength length of the frame
+	 * @param inIface the interface on which the fragment was received
+	 */
+	private void reassemble(byte[] buf, int frameOffset, int frameLength,
+			Iface inIface)
+	{
+		Reassembler.Datagram datagram = this.reassembler.add(buf, frameOffset,
+				frameLength, System.nanoTime());
+		if (null == datagram)
+		{ return; }
+		try
+		{
+			byte[] frame = datagram.getBuffer();
+			int offset = datagram.getFrameOffset();
+			int length = datagram.getFrameLength();
+			if (!this.handleRawPacket(frame, offset, length, inIface))
+			{
+				Ethernet etherPacket = new Ethernet();
+				etherPacket.deserialize(frame, offset, length);
+				this.handlePacket(etherPacket, inIface);
+			}
+		}
+		finally
+		{ this.reassembler.release(datagram); }
+	}
+
 	/**
 	 * Handle an Ethernet packet received on a specific interface.
 	 * @param etherPacket the Ethernet packet that was received
@@ -100,8 +612,11 @@ public class Router extends Device
 	 */
 	public void handlePacket(Ethernet etherPacket, Iface inIface)
 	{
-		System.out.println("*** -> Received packet: " +
-				etherPacket.toString().replace("\n", "\n\t"));
+		if (packetLog.sample(Level.DEBUG))
+		{
+			packetLog.log(Level.DEBUG, "*** -> Received packet: " +
+					etherPacket.toString().replace("\n", "\n\t"));
+		}
 
 		/********************************************************************/
 		/* TODO: Handle packets                                             */
@@ -127,6 +642,9 @@ public class Router extends Device
 				this.handleIpPacket(etherPacket, inIface);
 			}
 			break;
+		case Ethernet.TYPE_ARP:
+			this.handleArpPacket(etherPacket, inIface);
+			break;
 		// Ignore all other packet types, for now
 		}
 
@@ -144,43 +662,31 @@ public class Router extends Device
 		UDP receivedUdpPacket = (UDP) receivedIpPacket.getPayload();
 		RIPv2 receivedRipPacket = (RIPv2) receivedUdpPacket.getPayload();
 
-		for (RIPv2Entry ripEntry : receivedRipPacket.getEntries()) {
-			int ripDestinationIpAddress = ripEntry.getAddress();
-			int ripSubnetMask = ripEntry.getSubnetMask();
-			int ripMetric = ripEntry.getMetric();
-
-			MACAddress gatewayMacAddress = receivedEthernetPacket.getSourceMAC();
-			int gatewayIpAddress = 0;
-			for (ArpEntry arpEntry : this.arpCache.getEntries().values()) {
-				if (arpEntry.getMac().equals(gatewayMacAddress)) {
-					gatewayIpAddress = arpEntry.getIp();
-					break;
-				}
-			}
-
-			RouteEntry existingRouteEntry = this.routeTable.find(ripDestinationIpAddress, ripSubnetMask);
-			if (existingRouteEntry == null) {
-				// add this to the route table if we are getting new information
-				this.routeTable.insert(ripDestinationIpAddress, gatewayIpAddress, ripSubnetMask, inIface, (ripMetric + 1), System.currentTimeMillis());
-			} else {
-				// compare to see if the route information from the RIP packet gives us a better route
-				if ((ripMetric + 1) < existingRouteEntry.getMetric()) {
-					existingRouteEntry.setGatewayAddress(gatewayIpAddress);
-					existingRouteEntry.setInterface(inIface);
-					existingRouteEntry.setMetric(ripMetric + 1);
-					existingRouteEntry.setLastUpdateTimestamp(System.currentTimeMillis());
-				} else if (existingRouteEntry.getGatewayAddress() == receivedIpPacket.getSourceAddress()) {
-					if (existingRouteEntry.getMetric() <= 16) {
-						existingRouteEntry.setMetric(ripMetric + 1);
-					}
-					existingRouteEntry.setLastUpdateTimestamp(System.currentTimeMillis());
-				} else {
-					existingRouteEntry.setLastUpdateTimestamp(System.currentTimeMillis());
-				}
+		// Apply the whole response as a single change to the route table
+		this.rib.beginUpdate();
+		try {
+			for (RIPv2Entry ripEntry : receivedRipPacket.getEntries()) {
+				this.applyRipEntry(ripEntry, receivedEthernetPacket, inIface);
 			}
+		} finally {
+			this.rib.endUpdate();
 		}
 	}
 
+	/**
+	* Record a single entry from a RIP response as a candidate route from the
+	* neighbor that sent it.
+	* @param ripEntry the entry from the RIP response
+	* @param receivedEthernetPacket contains the RIP response
+	* @param inIface the interface on the router that the packet came in on
+	 */
+	private void applyRipEntry(RIPv2Entry ripEntry, Ethernet receivedEthernetPacket, Iface inIface) {
+		IPv4 receivedIpPacket = (IPv4) receivedEthernetPacket.getPayload();
+		int neighborIpAddress = receivedIpPacket.getSourceAddress();
+		this.rib.add(ripEntry.getAddress(), ripEntry.getSubnetMask(), Rib.Source.RIP, neighborIpAddress,
+				inIface, ripEntry.getMetric() + 1, System.currentTimeMillis());
+	}
+
 	/**
 	* Router uses this method to send a response back for an individual solicited RIP request. 
 	* Destination IP address = IP address of router interface that sent request
@@ -232,6 +738,104 @@ public class Router extends Device
 		}
 	}
 
+	/**
+	 * Handle an ARP packet: learn the sender's MAC address, as RFC 826
+	 * describes, send the packets waiting for it, and answer requests for
+	 * the address of the interface the request arrived on.
+	 * @param etherPacket frame holding the ARP packet
+	 * @param inIface the interface on which the packet was received
+	 */
+	private void handleArpPacket(Ethernet etherPacket, Iface inIface)
+	{
+		ARP arpPacket = (ARP)etherPacket.getPayload();
+		if (arpPacket.getHardwareType() != ARP.HW_TYPE_ETHERNET
+				|| arpPacket.getProtocolType() != ARP.PROTO_TYPE_IP
+				|| arpPacket.getHardwareAddressLength() 
+						!= Ethernet.DATALAYER_ADDRESS_LENGTH
+				|| arpPacket.getProtocolAddressLength() != 4)
+		{ return; }
+
+		int senderIp = IPv4.toIPv4Address(arpPacket.getSenderProtocolAddress());
+		int targetIp = IPv4.toIPv4Address(arpPacket.getTargetProtocolAddress());
+		MACAddress senderMac = MACAddress.valueOf(
+				arpPacket.getSenderHardwareAddress());
+		boolean forUs = (targetIp == inIface.getIpAddress());
+
+		// Update the sender's entry if there is one or it is being resolved,
+		// and add one if the packet is for us; entries are only replaced
+		// when they change, since each change invalidates cached decisions,
+		// and are otherwise just marked confirmed
+		if (senderIp != 0 && (forUs || this.arpResolver.isPending(senderIp)
+				|| this.arpCache.lookup(senderIp) != null))
+		{
+			ArpEntry arpEntry = this.arpCache.lookup(senderIp);
+			if (null == arpEntry || !arpEntry.getMac().equals(senderMac))
+			{ this.arpCache.insert(senderMac, senderIp); }
+			else
+			{ arpEntry.refresh(); }
+			this.sendWaitingPackets(senderIp, senderMac);
+		}
+
+		if (ARP.OP_REQUEST == arpPacket.getOpCode() && forUs)
+		{ this.sendArpReply(arpPacket, inIface); }
+	}
+
+	/**
+	 * Broadcast an ARP request for a next hop's MAC address.
+	 * @param nextHop IP address of the next hop
+	 * @param outIface the interface to send the request out
+	 */
+	private void sendArpRequest(int nextHop, Iface outIface)
+	{
+		ARP arpPacket = newArpPacket(ARP.OP_REQUEST, outIface);
+		arpPacket.setTargetHardwareAddress(
+				new byte[Ethernet.DATALAYER_ADDRESS_LENGTH]);
+		arpPacket.setTargetProtocolAddress(nextHop);
+
+		Ethernet etherPacket = new Ethernet();
+		etherPacket.setEtherType(Ethernet.TYPE_ARP);
+		etherPacket.setSourceMACAddress(outIface.getMacAddress());
+		etherPacket.setDestinationMACAddress("FF:FF:FF:FF:FF:FF");
+		etherPacket.setPayload(arpPacket);
+		this.sendPacket(etherPacket, outIface);
+	}
+
+	/**
+	 * Answer an ARP request for the address of an interface.
+	 * @param request the request
+	 * @param inIface the interface on which the request was received
+	 */
+	private void sendArpReply(ARP request, Iface inIface)
+	{
+		ARP arpPacket = newArpPacket(ARP.OP_REPLY, inIface);
+		arpPacket.setTargetHardwareAddress(request.getSenderHardwareAddress());
+		arpPacket.setTargetProtocolAddress(request.getSenderProtocolAddress());
+
+		Ethernet etherPacket = new Ethernet();
+		etherPacket.setEtherType(Ethernet.TYPE_ARP);
+		etherPacket.setSourceMACAddress(inIface.getMacAddress());
+		etherPacket.setDestinationMACAddress(request.getSenderHardwareAddress());
+		etherPacket.setPayload(arpPacket);
+		this.sendPacket(etherPacket, inIface);
+	}
+
+	/**
+	 * @return an ARP packet for IPv4 over Ethernet, sent from an interface
+	 */
+	private static ARP newArpPacket(short opCode, Iface iface)
+	{
+		ARP arpPacket = new ARP();
+		arpPacket.setHardwareType(ARP.HW_TYPE_ETHERNET);
+		arpPacket.setProtocolType(ARP.PROTO_TYPE_IP);
+		arpPacket.setHardwareAddressLength(
+				(byte)Ethernet.DATALAYER_ADDRESS_LENGTH);
+		arpPacket.setProtocolAddressLength((byte)4);
+		arpPacket.setOpCode(opCode);
+		arpPacket.setSenderHardwareAddress(iface.getMacAddress().toBytes());
+		arpPacket.setSenderProtocolAddress(iface.getIpAddress());
+		return arpPacket;
+	}
+
 	private void handleIpPacket(Ethernet etherPacket, Iface inIface)
 	{
 		// Make sure it's an IP packet
@@ -241,39 +845,38 @@ public class Router extends Device
 		// Get IP header
 		IPv4 ipPacket = (IPv4)etherPacket.getPayload();
 
-		// Verify checksum
-		short origCksum = ipPacket.getChecksum();
-		ipPacket.resetChecksum();
-		byte[] serialized = ipPacket.serialize();
-		ipPacket.deserialize(serialized, 0, serialized.length);
-		short calcCksum = ipPacket.getChecksum();
-		if (origCksum != calcCksum)
+		// Verify checksum over the header only
+		if (!ipPacket.isChecksumValid())
 		{ return; }
 
-		// Check TTL
-		ipPacket.setTtl((byte)(ipPacket.getTtl()-1));
-		if (0 == ipPacket.getTtl())
+		// Check if packet is destined for one of router's interfaces; such
+		// packets are answered, never forwarded
+		if (this.localAddresses.contains(ipPacket.getDestinationAddress()))
 		{ 
-            sendIcmpPacket(etherPacket, inIface, 11, 0, false);
-            return; 
-        }
-
-		// Reset checksum now that TTL is decremented
-		ipPacket.resetChecksum();
-
-		// Check if packet is destined for one of router's interfaces
-		for (Iface iface : this.interfaces.values())
-		{
-			if (ipPacket.getDestinationAddress() == iface.getIpAddress())
-			{ 
-				if ((ipPacket.getProtocol() == IPv4.PROTOCOL_UDP) || (ipPacket.getProtocol() == IPv4.PROTOCOL_TCP)) {
-                    sendIcmpPacket(etherPacket, inIface, 3, 3, false);
-                } else if (ipPacket.getProtocol() == IPv4.PROTOCOL_ICMP) {
-					sendIcmpPacket(etherPacket, inIface, 0, 0, true);
-				}
+			if ((ipPacket.getFlags() & 0x1) != 0 || ipPacket.getFragmentOffset() != 0) {
+				// Answer fragments once the whole packet has arrived
+				byte[] frame = etherPacket.serialize();
+				this.reassemble(frame, 0, frame.length, inIface);
+			} else if ((ipPacket.getProtocol() == IPv4.PROTOCOL_UDP) || (ipPacket.getProtocol() == IPv4.PROTOCOL_TCP)) {
+				sendIcmpPacket(etherPacket, inIface, 3, 3, false);
+			} else if (ipPacket.getProtocol() == IPv4.PROTOCOL_ICMP
+					&& ((ICMP)ipPacket.getPayload()).getIcmpType() 
+							== IcmpBuilder.TYPE_ECHO_REQUEST) {
+				sendIcmpPacket(etherPacket, inIface, 0, 0, true);
 			}
+			return;
 		}
 
+		// Packets whose TTL expires need an ICMP error, as on the raw path
+		if ((ipPacket.getTtl() & 0xff) <= 1)
+		{ 
+			sendIcmpPacket(etherPacket, inIface, 11, 0, false);
+			return; 
+		}
+
+		// Decrement TTL; the checksum is updated for the new TTL
+		ipPacket.decrementTtl();
+
 		// Do route lookup and forward
 		this.forwardIpPacket(etherPacket, inIface);
 	}
@@ -288,199 +891,292 @@ public class Router extends Device
 		IPv4 ipPacket = (IPv4)etherPacket.getPayload();
 		int dstAddr = ipPacket.getDestinationAddress();
 
+		// Use the cached decision for this destination, if it is still current
+		long routeGeneration = this.routeTable.getGeneration();
+		long arpGeneration = this.arpCache.getGeneration();
+		ResolutionCache.Resolution resolution = this.resolutionCache.lookup(
+				dstAddr, routeGeneration, arpGeneration);
+		if (null == resolution)
+		{
+			resolution = this.resolve(dstAddr, inIface, routeGeneration,
+					arpGeneration);
+			if (NET_UNREACHABLE == resolution || HOST_UNREACHABLE == resolution)
+			{
+				sendIcmpPacket(etherPacket, inIface, 3, 
+						(NET_UNREACHABLE == resolution) ? 0 : 1, false);
+				return;
+			}
+			if (ARP_PENDING == resolution)
+			{
+				byte[] frame = etherPacket.serialize();
+				this.waitForArp(dstAddr, inIface, flowHash(ipPacket), frame, 0,
+						frame.length);
+				return;
+			}
+			if (null == resolution)
+			{ return; }
+		}
+
+		// Keep each flow on one of the equal-cost paths, and make sure we 
+		// don't sent a packet back out the interface it came in
+		int path = choosePath(resolution, flowHash(ipPacket), inIface);
+		if (path < 0)
+		{ return; }
+		Iface outIface = resolution.getInterface(path);
+
+		// Packets too large for the interface are fragmented, unless they
+		// may not be
+		boolean tooBig = (ipPacket.getTotalLength() & 0xffff) > outIface.getMtu();
+		if (tooBig && 0 != (ipPacket.getFlags() & 0x2))
+		{
+			byte[] frame = etherPacket.serialize();
+			this.sendIcmpError(frame, 0, frame.length, inIface, 3, 4,
+					outIface.getMtu());
+			return;
+		}
+
+		// Set source and destination MAC addresses in Ethernet header
+		etherPacket.setSourceMACAddress(outIface.getMacAddress());
+		etherPacket.setDestinationMACAddress(resolution.getNextHopMac(path));
+
+		if (tooBig)
+		{
+			byte[] frame = etherPacket.serialize();
+			this.fragmenter.send(this, frame, 0, frame.length, outIface);
+			return;
+		}
+		this.sendPacket(etherPacket, outIface);
+	}
+
+	/**
+	 * Choose one of the equal-cost paths in a forwarding decision for a
+	 * packet, skipping paths that lead back out the interface the packet
+	 * came in.
+	 * @param resolution forwarding decision for the packet's destination
+	 * @param flowHash hash of the packet's flow; see {@link #flowHash}
+	 * @param inIface the interface on which the packet was received
+	 * @return index of the path, -1 if every path leads back out inIface
+	 */
+	private static int choosePath(ResolutionCache.Resolution resolution,
+			int flowHash, Iface inIface)
+	{
+		// Scale the unsigned hash onto the paths, so every packet of a flow
+		// takes the same path
+		int pathCount = resolution.getPathCount();
+		int first = (int)(((flowHash & 0xffffffffL) * pathCount) >>> 32);
+		for (int i = 0; i < pathCount; i++)
+		{
+			int path = (first + i) % pathCount;
+			if (resolution.getInterface(path) != inIface)
+			{ return path; }
+		}
+		return -1;
+	}
+
+	/**
+	 * Hash a packet's flow: addresses, protocol and, for TCP and UDP, ports.
+	 * @param ipPacket the packet to forward
+	 * @return the hash
+	 */
+	private static int flowHash(IPv4 ipPacket)
+	{
+		// Fragments after the first carry no ports, so fragmented packets
+		// are hashed on addresses and protocol only
+		boolean fragmented = (0 != (ipPacket.getFlags() & 0x1)) 
+				|| (0 != ipPacket.getFragmentOffset());
+		int ports = 0;
+		if (ipPacket.getPayload() instanceof TCP)
+		{
+			TCP tcp = (TCP)ipPacket.getPayload();
+			ports = (tcp.getSourcePort() << 16) | (tcp.getDestinationPort() & 0xffff);
+		}
+		else if (ipPacket.getPayload() instanceof UDP)
+		{
+			UDP udp = (UDP)ipPacket.getPayload();
+			ports = (udp.getSourcePort() << 16) | (udp.getDestinationPort() & 0xffff);
+		}
+		return flowHash(ipPacket.getSourceAddress(), 
+				ipPacket.getDestinationAddress(), ipPacket.getProtocol() & 0xff,
+				!fragmented, ports);
+	}
+
+	/**
+	 * Hash a packet's flow from its header fields.
+	 * @param srcAddr source IP address
+	 * @param dstAddr destination IP address
+	 * @param protocol IP protocol number
+	 * @param hasPorts true if the packet is not fragmented
+	 * @param ports TCP or UDP source port and destination port; 0 for 
+	 *        other protocols
+	 * @return the hash
+	 */
+	private static int flowHash(int srcAddr, int dstAddr, int protocol, 
+			boolean hasPorts, int ports)
+	{
+		int h = srcAddr * 0x9E3779B9;
+		h = (h ^ dstAddr) * 0x85EBCA6B;
+		h ^= protocol;
+		if (hasPorts)
+		{ h = (h ^ ports) * 0xC2B2AE35; }
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		return h;
+	}
+
+	/**
+	 * Resolve the outgoing interfaces and next-hop MAC addresses for a 
+	 * packet's destination, and cache the decision.
+	 * @param dstAddr destination IP address of the packet
+	 * @param inIface the interface on which the packet was received
+	 * @param routeGeneration route table generation read before resolving
+	 * @param arpGeneration ARP cache generation read before resolving
+	 * @return the decision; {@link #NET_UNREACHABLE} or 
+	 *         {@link #HOST_UNREACHABLE} if the caller should send an ICMP
+	 *         error; {@link #ARP_PENDING} if the caller should queue the
+	 *         packet until a next hop is resolved; null if the packet 
+	 *         should be dropped silently
+	 */
+	private ResolutionCache.Resolution resolve(int dstAddr, Iface inIface, 
+			long routeGeneration, long arpGeneration)
+	{
 		// Find matching route table entry 
 		RouteEntry bestMatch = this.routeTable.lookup(dstAddr);
 
 		// If no entry matched, do nothing
 		if (null == bestMatch)
-		{ 
-			sendIcmpPacket(etherPacket, inIface, 3, 0, false);
-			return; 
-		}
+		{ return NET_UNREACHABLE; }
 
 		// Make sure we don't sent a packet back out the interface it came in
-		Iface outIface = bestMatch.getInterface();
-		if (outIface == inIface)
-		{ return; }
+		int pathCount = bestMatch.getNextHopCount();
+		boolean otherIface = false;
+		for (int i = 0; i < pathCount; i++)
+		{ otherIface |= (bestMatch.getInterface(i) != inIface); }
+		if (!otherIface)
+		{ return null; }
 
-		// Set source MAC address in Ethernet header
-		etherPacket.setSourceMACAddress(outIface.getMacAddress().toBytes());
+		// For RIP: if metric = 16, destination is unreachable
+		if (bestMatch.getMetric() >= 16) 
+		{ return HOST_UNREACHABLE; }
 
-		// If no gateway, then nextHop is IP destination
-		int nextHop = bestMatch.getGatewayAddress();
-		if (0 == nextHop)
-		{ nextHop = dstAddr; }
+		// Find destination MAC address for each next hop; next hops that
+		// are not yet resolved are not used, but resolving them is started
+		Iface[] outIfaces = new Iface[pathCount];
+		MACAddress[] nextHopMacs = new MACAddress[pathCount];
+		int resolved = 0;
+		for (int i = 0; i < pathCount; i++)
+		{
+			// If no gateway, then nextHop is IP destination
+			int nextHop = bestMatch.getGatewayAddress(i);
+			if (0 == nextHop)
+			{ nextHop = dstAddr; }
 
-		// Set destination MAC address in Ethernet header
-		ArpEntry arpEntry = this.arpCache.lookup(nextHop);
-		if (null == arpEntry)
-		{ 
-			sendIcmpPacket(etherPacket, inIface, 3, 1, false);
-			return; 
+			ArpEntry arpEntry = this.arpCache.lookup(nextHop);
+			if (null == arpEntry)
+			{
+				Iface outIface = bestMatch.getInterface(i);
+				if (outIface != inIface && this.arpResolver.enqueue(nextHop,
+						outIface, null, 0, 0, null, System.nanoTime()))
+				{ this.sendArpRequest(nextHop, outIface); }
+				continue;
+			}
+			outIfaces[resolved] = bestMatch.getInterface(i);
+			nextHopMacs[resolved] = arpEntry.getMac();
+			resolved++;
 		}
+		if (0 == resolved)
+		{ return ARP_PENDING; }
 
-		// For RIP: if metric = 16, destination is unreachable
-		RouteEntry routeEntry = this.getRouteTable().lookup(ipPacket.getDestinationAddress());
-		if (routeEntry.getMetric() >= 16) {
-			sendIcmpPacket(etherPacket, inIface, 3, 1, false);
-			return;
+		if (resolved < pathCount)
+		{
+			outIfaces = Arrays.copyOf(outIfaces, resolved);
+			nextHopMacs = Arrays.copyOf(nextHopMacs, resolved);
 		}
+		return this.resolutionCache.insert(dstAddr, outIfaces, 
+				nextHopMacs, bestMatch.getMetric(), routeGeneration, 
+				arpGeneration);
+	}
 
-		etherPacket.setDestinationMACAddress(arpEntry.getMac().toBytes());
 
-		this.sendPacket(etherPacket, outIface);
+	/**
+	 * Send an ICMP message about a decoded packet. Used only for packets the
+	 * raw path leaves to the decoded path; the packet is serialized once
+	 * and the message is built from its bytes.
+	 * @param ethernetOriginalPacket the packet the message is about
+	 * @param inIface the interface on which the packet was received
+	 * @param type the type of ICMP message to send
+	 * @param code the code of ICMP message to send
+	 * @param echoMode true to send an echo reply to an echo request
+	 */
+	private void sendIcmpPacket(Ethernet ethernetOriginalPacket, Iface inIface, 
+			int type, int code, boolean echoMode) 
+	{
+		byte[] frame = ethernetOriginalPacket.serialize();
+		if (echoMode)
+		{ this.sendEchoReply(frame, 0, frame.length, inIface); }
+		else
+		{ this.sendIcmpError(frame, 0, frame.length, inIface, type, code); }
 	}
 
+	/**
+	 * Send an ICMP error about a serialized frame back to its sender, unless
+	 * errors to the sender are over the rate limit.
+	 * @param frame buffer holding the frame the error is about
+	 * @param frameOffset position of the frame; it must hold a complete
+	 *        IPv4 header
+	 * @param frameLength length of the frame
+	 * @param inIface the interface on which the frame was received
+	 * @param type the type of ICMP message to send
+	 * @param code the code of ICMP message to send
+	 */
+	private void sendIcmpError(byte[] frame, int frameOffset, int frameLength,
+			Iface inIface, int type, int code)
+	{
+		this.sendIcmpError(frame, frameOffset, frameLength, inIface, type, 
+				code, 0);
+	}
 
-    /**
-    * Handle cases where we need to send an ICMP message.
-	* @param ethernetOriginalPacket the original Ethernet packet we are trying to send.
-    * @param inIface the interface on the router that the Ethernet packet came in on.
-    * @param type the type of ICMP message to send
-    * @param code the code of ICMP message to send
-	* @param echoMode to handle if we're sending a reply to an ICMP echo request
-    */
-    private void sendIcmpPacket(Ethernet ethernetOriginalPacket, Iface inIface, int type, int code, boolean echoMode) 
-    {
-		// set up the new Ethernet packet
-		Ethernet ethernetNewPacket = constructEthernetHeader(ethernetOriginalPacket, inIface);
-		IPv4 ipOriginalPacket = (IPv4)ethernetOriginalPacket.getPayload();
-
-		// set up the new IP Packet
-        IPv4 ipNewPacket = constructIPv4Header(ipOriginalPacket, inIface, echoMode);
-
-		// set up the new ICMP Packet
-        ICMP icmp = new ICMP();
-        icmp.setIcmpType((byte) type);
-        icmp.setIcmpCode((byte) code);
-        icmp.resetChecksum();
-    
-		// retrieve the ICMP Payload
-		if (echoMode == false) {
-			byte[] newPayload = copyIpPacketPayload(ipOriginalPacket, 8);
-			nestPackets(newPayload, icmp, ipNewPacket, ethernetNewPacket);
-		} else {
-			//byte[] newPayload = copyIpPacketPayload(ipOriginalPacket, -1);
-			//nestPackets(newPayload, icmp, ipNewPacket, ethernetNewPacket);
-			ICMP icmpPayload = new ICMP();
-			icmpPayload = (ICMP) ipOriginalPacket.getPayload();
-			icmp.setPayload(icmpPayload.getPayload());
-			ipNewPacket.setPayload(icmp);
-			ethernetNewPacket.setPayload(ipNewPacket);
-		}
-        
-		// send the new Ethernet packet to the proper destination
-        this.sendPacket(ethernetNewPacket, inIface);
-        return;
-    }
-
-	/**
-	* Places payload inside ICMP, ICMP into IP packet, IP packet into Ethernet.
-	* @param payload object that contains byte[] payload
-	* @param icmp icmp packet we're nesting the data in
-	* @param ipPacket ipPacket we're nesting the icmp in
-	* @param ethernet ethernet we're nesting the ipPacket in
-	 */
-	private void nestPackets(byte[] payload, ICMP icmp, IPv4 ipPacket, Ethernet ethernet) {
-		Data data = new Data();
-        data.setData(payload);
-        icmp.setPayload(data);
-        ipPacket.setPayload(icmp);
-        ethernet.setPayload(ipPacket);
-	}
-
-	/**
-	* Given an IP Packet, this will copy the payload up to the requested number of bytes, and return the copy as a byte array.
-	* @param originalIpPacket this is the packet we're copying the payload from
-	* @param bytesToCopy how many bytes of the payload we want to copy. If copying the entire payload, set this to -1
-	 */
-	private byte[] copyIpPacketPayload(IPv4 originalIpPacket, int bytesToCopy) {
-		if (bytesToCopy == -1) {
-			// copying the whole payload of the original IP Packet (echo reply)
-			byte[] originalIpPacketContent = originalIpPacket.serialize();
-    		byte ipOriginalPacketHeaderLength = originalIpPacket.getHeaderLength();   // convert from 4 byte words to bytes
-			int arraySize = (4 * ipOriginalPacketHeaderLength) + 4 + originalIpPacketContent.length; // 4 byes of padding and the 8 bytes of the original IP Packet
-        	byte[] newPayload = new byte[arraySize];
-        	System.arraycopy(originalIpPacketContent, 0, newPayload, 4, newPayload.length - 4);
-			return newPayload;
-		} else {
-			// copying only a specific number of bytes from the payload	
-			byte[] originalIpPacketContent = originalIpPacket.serialize();
-    		byte ipOriginalPacketHeaderLength = originalIpPacket.getHeaderLength();   // convert from 4 byte words to bytes
-			int arraySize = (4 * ipOriginalPacketHeaderLength) + 4 + bytesToCopy; // 4 byes of padding and the 8 bytes of the original IP Packet
-        	byte[] newPayload = new byte[arraySize];
-        	System.arraycopy(originalIpPacketContent, 0, newPayload, 4, newPayload.length - 4);
-			return newPayload;
-		}
+	/**
+	 * Send an ICMP error with a value in the second word of its header.
+	 * @param rest value of the second word of the ICMP header, such as the
+	 *        next-hop MTU of a fragmentation needed error
+	 * @see #sendIcmpError(byte[], int, int, Iface, int, int)
+	 */
+	private void sendIcmpError(byte[] frame, int frameOffset, int frameLength,
+			Iface inIface, int type, int code, int rest)
+	{
+		// Drop errors over the rate limit before building anything
+		int srcAddr = IPv4.getInt(frame, 
+				frameOffset + ETHERNET_HEADER_SIZE + 12);
+		if (!this.icmpLimiter.allow(srcAddr, System.nanoTime()))
+		{ return; }
+
+		byte[] out = this.icmpBuilder.getBuffer(IcmpBuilder.MAX_ERROR_SIZE);
+		int length = this.icmpBuilder.buildError(out, inIface, type, code, 
+				rest, frame, frameOffset, frameLength);
+		this.sendIpFrame(out, IcmpBuilder.FRAME_OFFSET, length, inIface);
 	}
 
 	/**
-	* Given an Ethernet Packet, this will create a new Ethernet packet and set up the header such that:
-	*	Source MAC Address = the MAC Address of the interface we'll be sending the packet out of
-	*	Destin MAC Address = found by doing a lookup in the route table to find the proper gateway IP address (next router), then finding the
-	*		corresponding MAC address using the ARP cache (if sending to another router)
-	* @param ethernetOriginalPacket the Ethernet packet that the router received
-	* @param inIface which interface on the router the Ethernet packet came in
-	 */
-	private Ethernet constructEthernetHeader(Ethernet originalEthernetPacket, Iface inIface) {
-        Ethernet ethernetNewPacket = new Ethernet();
-        IPv4 ipOriginalPacket = (IPv4)originalEthernetPacket.getPayload();
-        // set up type
-        ethernetNewPacket.setEtherType(Ethernet.TYPE_IPv4);
-
-        // set the source MAC (the router's interface)
-        MACAddress sourceMac = inIface.getMacAddress();
-        String sourceMacString = sourceMac.toString();
-        ethernetNewPacket.setSourceMACAddress(sourceMacString);
-
-        // set the destination MAC (the next hop from the router)
-
-        // 1. look up the source IP address from the original IP Packet in the route table
-        RouteEntry routeEntry = this.routeTable.lookup(ipOriginalPacket.getSourceAddress());
-
-        // 2. Find the gateway in the RouteEntry
-        int gatewayAddress = routeEntry.getGatewayAddress();
-        if (gatewayAddress == 0) {
-            // 3. If the gateway is 0, just look up the source IP address from original IP packet in ARP cache 
-            // and set destination MAC to corresponding MAC
-            ArpEntry arpEntry = this.arpCache.lookup(ipOriginalPacket.getSourceAddress());
-            MACAddress destinationMacAddress = arpEntry.getMac();
-            String arpEntryMacAddrString = destinationMacAddress.toString();
-            ethernetNewPacket.setDestinationMACAddress(arpEntryMacAddrString);
-        } else {
-            // If gateway is not 0, look up the gateway IP address (gateway = the next router) in the ARP cache
-            // and set destination MAC to the corresponding MAC
-            ArpEntry arpEntry = this.arpCache.lookup(gatewayAddress);
-            MACAddress destinationMacAddress = arpEntry.getMac();
-            String arpEntryMacAddrString = destinationMacAddress.toString();
-            ethernetNewPacket.setDestinationMACAddress(arpEntryMacAddrString);
-        }      		
-		return ethernetNewPacket;
-	}
-
-	/**
-	* Given an IPv4 Packet, this will create a new IPv4 packet and set up the header such that:
-	*	Source IP Address = if not echo mode, this will be the address of the interface that the original packet arrived on. 
-	*		If in echo mode, this will be the destination IP from the IP header in the echo request.
-	*	Destin IP Address = the source IP address of the original IP packet
-	* @param originalIpPacket the IP packet that was the payload of the Ethernet packet that the router received
-	* @param inIface which interface on the router the Ethernet packet came in
-	* @param echoMode determines how we'll set the Source IP Address on the new IP Packet
-	 */
-	private IPv4 constructIPv4Header(IPv4 originalIpPacket, Iface inIface, boolean echoMode) {
-		IPv4 ipNewPacket = new IPv4();
-        ipNewPacket.setTtl((byte) 64);
-        ipNewPacket.setProtocol(IPv4.PROTOCOL_ICMP);
-        
-        if (echoMode == true) {
-			// set source IP on new packet as the destination IP from the IP header in the echo request.
-			ipNewPacket.setSourceAddress(originalIpPacket.getDestinationAddress());
-		} else {
-			// set source IP on new packet as the IP address of the interface that the original packet arrived on.
-			ipNewPacket.setSourceAddress(inIface.getIpAddress());
-		}
-		ipNewPacket.setDestinationAddress(originalIpPacket.getSourceAddress());
-        ipNewPacket.resetChecksum();
-		return ipNewPacket;
+	 * Send an echo reply to a serialized echo request.
+	 * @param frame buffer holding the echo request; it must hold a complete
+	 *        IPv4 header
+	 * @param frameOffset position of the frame
+	 * @param frameLength length of the frame
+	 * @param inIface the interface on which the request was received
+	 */
+	private void sendEchoReply(byte[] frame, int frameOffset, int frameLength,
+			Iface inIface)
+	{
+		int ip = frameOffset + ETHERNET_HEADER_SIZE;
+		int icmpLength = Math.min(((frame[ip + 2] & 0xff) << 8) | (frame[ip + 3] & 0xff),
+				frameLength - ETHERNET_HEADER_SIZE) - (frame[ip] & 0x0f) * 4;
+		if (icmpLength < IcmpBuilder.ICMP_HEADER_SIZE)
+		{ return; }
+
+		byte[] out = this.icmpBuilder.getBuffer(frameLength);
+		int length = this.icmpBuilder.buildEchoReply(out, inIface, frame, 
+				frameOffset, frameLength);
+		this.sendIpFrame(out, IcmpBuilder.FRAME_OFFSET, length, inIface);
 	}
-}
\ No newline at end of file
+}
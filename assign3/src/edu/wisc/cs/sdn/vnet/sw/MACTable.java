@@ -1,7 +1,7 @@
 package edu.wisc.cs.sdn.vnet.sw;
 
-import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import edu.wisc.cs.sdn.vnet.Iface;
 
@@ -17,7 +17,7 @@ public class MACTable implements Runnable
 	public static final int TIMEOUT = 15 * 1000;
 	
 	/** Entries in the MAC table */
-	private Map<MACAddress,MACTableEntry> entries;
+	private ConcurrentMap<MACAddress,MACTableEntry> entries;
 	
 	/** Thread for timing out requests and entries in the cache */
 	private Thread timeoutThread;
@@ -33,6 +33,10 @@ public class MACTable implements Runnable
 		timeoutThread.start();
 	}
 	
+	/**
+	 * Learn or refresh the interface for a MAC address. May be called from
+	 * several threads.
+	 */
 	public void insert(MACAddress macAddress, Iface iface)
 	{
 		MACTableEntry entry = this.lookup(macAddress);
@@ -41,16 +45,15 @@ public class MACTable implements Runnable
 		else
 		{ 
 			entry = new MACTableEntry(macAddress, iface);
-			this.entries.put(macAddress, entry); 
+			MACTableEntry existing = this.entries.putIfAbsent(macAddress, 
+					entry);
+			if (existing != null)
+			{ existing.update(iface); }
 		}
 	}
 	
 	public MACTableEntry lookup(MACAddress macAddress) 
-	{
-		if (this.entries.containsKey(macAddress))
-		{ return this.entries.get(macAddress); }
-		return null;
-	}
+	{ return this.entries.get(macAddress); }
 	
 	/**
 	 * Every second: timeout MAC table entries.
@@ -13,10 +13,10 @@ public class MACTableEntry
 	private MACAddress macAddress;
 
 	/** Switch interface out which packets should be sent to reach the MAC */
-	private Iface iface;
+	private volatile Iface iface;
 	
 	/** Time (in milliseconds since the epoch) the entry was updated */
-	private long timeUpdated;
+	private volatile long timeUpdated;
 	
 	/**
 	 * Create a new MAC table entry.
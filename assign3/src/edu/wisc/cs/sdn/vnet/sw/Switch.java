@@ -4,12 +4,18 @@ import net.floodlightcontroller.packet.Ethernet;
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.DumpFile;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.log.Level;
+import edu.wisc.cs.sdn.vnet.log.LogManager;
+import edu.wisc.cs.sdn.vnet.log.Logger;
 
 /**
  * @author Aaron Gember-Jacobson
  */
 public class Switch extends Device
 {
+	/** Logs each packet received and forwarded */
+	private static final Logger packetLog = LogManager.getLogger("packet");
+
 	private MACTable macTable;
 	
 	/**
@@ -29,8 +35,11 @@ public class Switch extends Device
 	 */
 	public void handlePacket(Ethernet etherPacket, Iface inIface)
 	{
-		System.out.println("*** -> Received packet: " +
-				etherPacket.toString().replace("\n", "\n\t"));
+		if (packetLog.sample(Level.DEBUG))
+		{
+			packetLog.log(Level.DEBUG, "*** -> Received packet: " +
+					etherPacket.toString().replace("\n", "\n\t"));
+		}
 		
 		/********************************************************************/
 		/* TODO: Handle packets                                             */
@@ -42,12 +51,14 @@ public class Switch extends Device
 		{ this.sendPacket(etherPacket, entry.getInterface()); }
 		else
 		{
+			boolean trace = packetLog.sample(Level.TRACE);
 			for (Iface iface : this.interfaces.values()) 
 			{
 				if (iface != inIface)
 				{
 					this.sendPacket(etherPacket, iface);
-					System.out.println("Send packet out interface "+iface);
+					if (trace)
+					{ packetLog.log(Level.TRACE, "Send packet out interface "+iface); }
 				}
 			}
 		}
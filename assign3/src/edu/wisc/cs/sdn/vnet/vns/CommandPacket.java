@@ -6,6 +6,12 @@ import net.floodlightcontroller.packet.Ethernet;
 
 public class CommandPacket extends Command
 {
+	/** Length of the interface name field */
+	public static final int IFACE_NAME_SIZE = 16;
+
+	/** Position of the Ethernet frame in a serialized command */
+	public static final int FRAME_OFFSET = 4 + 4 + IFACE_NAME_SIZE;
+
 	protected String mInterfaceName;
 	protected Ethernet etherPacket;
 	
@@ -0,0 +1,121 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+/**
+ * Decides which packets an output queue drops. With tail drop, a packet is
+ * dropped only when its queue is full. With random early detection (RED),
+ * a packet is also dropped with a probability that grows from 0 to a
+ * maximum as the queue's average depth grows from a minimum threshold to a
+ * maximum threshold, and always once the average passes the maximum
+ * threshold, so senders slow down before the queue overflows.
+ * <p>
+ * Policies are written as {@code "tail"} or {@code "red[:min:max:p]"},
+ * where the thresholds are fractions of the queue's capacity and p is the
+ * maximum drop probability, e.g. {@code "red:0.25:0.75:0.1"}.
+ */
+public class DropPolicy
+{
+	/** Drop packets only when the queue is full */
+	public static final DropPolicy TAIL_DROP = new DropPolicy(false, 1.0, 1.0, 0.0);
+
+	/** Random early detection with the default thresholds */
+	public static final DropPolicy RED = new DropPolicy(true, 0.25, 0.75, 0.1);
+
+	private final boolean red;
+	private final double minThreshold;
+	private final double maxThreshold;
+	private final double maxProbability;
+
+	private DropPolicy(boolean red, double minThreshold, double maxThreshold,
+			double maxProbability)
+	{
+		this.red = red;
+		this.minThreshold = minThreshold;
+		this.maxThreshold = maxThreshold;
+		this.maxProbability = maxProbability;
+	}
+
+	/**
+	 * Parse a policy.
+	 * @param spec the policy, e.g. "tail" or "red:0.25:0.75:0.1"
+	 * @return the policy
+	 * @throws IllegalArgumentException if the policy is malformed
+	 */
+	public static DropPolicy parse(String spec)
+	{
+		String[] parts = spec.trim().toLowerCase().split(":");
+		if (parts[0].equals("tail") && 1 == parts.length)
+		{ return TAIL_DROP; }
+		if (!parts[0].equals("red"))
+		{ throw new IllegalArgumentException("Unknown drop policy " + parts[0]); }
+		if (1 == parts.length)
+		{ return RED; }
+		if (parts.length != 4)
+		{ throw new IllegalArgumentException("Expected red:min:max:p"); }
+
+		double min = Double.parseDouble(parts[1]);
+		double max = Double.parseDouble(parts[2]);
+		double p = Double.parseDouble(parts[3]);
+		if (min < 0 || max <= min || max > 1 || p <= 0 || p > 1)
+		{
+			throw new IllegalArgumentException(
+					"Need 0 <= min < max <= 1 and 0 < p <= 1");
+		}
+		return new DropPolicy(true, min, max, p);
+	}
+
+	/**
+	 * Check that the policy can be applied to queues of a capacity: scaled
+	 * to the queue's size, the RED thresholds must differ and the maximum
+	 * must not be 0, or every packet would be dropped.
+	 * @param capacity number of packets queued for each class
+	 * @throws IllegalArgumentException if the queues are too small
+	 */
+	public void checkCapacity(int capacity)
+	{
+		if (!this.red)
+		{ return; }
+		int size = OutputQueue.sizeFor(capacity);
+		int min = OutputQueue.averageFor(this.minThreshold, size);
+		int max = OutputQueue.averageFor(this.maxThreshold, size);
+		if (0 == max || max <= min)
+		{
+			throw new IllegalArgumentException(String.format(
+					"Thresholds too close for queues of %d packets", size));
+		}
+	}
+
+	/**
+	 * @return true if packets are dropped early
+	 */
+	public boolean isRed()
+	{ return this.red; }
+
+	/**
+	 * @return average depth, as a fraction of capacity, from which packets
+	 *         are dropped early
+	 */
+	public double getMinThreshold()
+	{ return this.minThreshold; }
+
+	/**
+	 * @return average depth, as a fraction of capacity, from which every
+	 *         packet is dropped
+	 */
+	public double getMaxThreshold()
+	{ return this.maxThreshold; }
+
+	/**
+	 * @return probability of dropping a packet just below the maximum
+	 *         threshold
+	 */
+	public double getMaxProbability()
+	{ return this.maxProbability; }
+
+	public String toString()
+	{
+		if (!this.red)
+		{ return "tail"; }
+		return String.format("red:%s:%s:%s", this.minThreshold,
+				this.maxThreshold, this.maxProbability);
+	}
+}
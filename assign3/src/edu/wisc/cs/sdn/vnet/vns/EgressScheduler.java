@@ -0,0 +1,155 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+/**
+ * Chooses the order in which packets queued for one interface are written.
+ * Each {@link TrafficClass} has its own queue. Priority classes are served
+ * first, in order, whenever they have packets; the weighted classes share
+ * the rest by deficit round robin, each sending up to its quantum of bytes,
+ * plus any unused credit, per round. A weighted class that empties loses
+ * its credit, so idle classes cannot save up a burst.
+ * <p>
+ * Any thread may queue packets; only the writer thread selects them.
+ * Priority classes always use tail drop, so routing updates are not
+ * dropped early to signal congestion caused by other traffic.
+ */
+class EgressScheduler
+{
+	/** Queue for each class, indexed by ordinal */
+	private final OutputQueue[] queues;
+
+	/** Queues of priority classes, in order */
+	private final OutputQueue[] priority;
+
+	/** Queues of weighted classes, and the bytes each may send per round */
+	private final OutputQueue[] weighted;
+	private final int[] quanta;
+
+	/** Bytes each weighted class may still send; only used by the writer */
+	private final int[] deficits;
+
+	/** Weighted class being served; only used by the writer */
+	private int current;
+
+	/** Whether the current class has yet to receive its quantum this round */
+	private boolean newRound;
+
+	/**
+	 * Create empty queues for an interface.
+	 * @param ifaceName name of the interface
+	 * @param capacity number of packets queued for each class
+	 * @param policy decides which packets of weighted classes are dropped
+	 */
+	EgressScheduler(String ifaceName, int capacity, DropPolicy policy)
+	{
+		TrafficClass[] classes = TrafficClass.values();
+		this.queues = new OutputQueue[classes.length];
+		int priorityCount = 0;
+		for (TrafficClass trafficClass : classes)
+		{
+			if (trafficClass.isPriority())
+			{ priorityCount++; }
+		}
+		this.priority = new OutputQueue[priorityCount];
+		this.weighted = new OutputQueue[classes.length - priorityCount];
+		this.quanta = new int[this.weighted.length];
+		this.deficits = new int[this.weighted.length];
+
+		int p = 0, w = 0;
+		for (TrafficClass trafficClass : classes)
+		{
+			OutputQueue queue = new OutputQueue(ifaceName + "/" + trafficClass,
+					capacity, trafficClass.isPriority() ? DropPolicy.TAIL_DROP
+							: policy);
+			this.queues[trafficClass.ordinal()] = queue;
+			if (trafficClass.isPriority())
+			{ this.priority[p++] = queue; }
+			else
+			{
+				this.quanta[w] = trafficClass.getQuantum();
+				this.weighted[w++] = queue;
+			}
+		}
+		this.current = 0;
+		this.newRound = true;
+	}
+
+	/**
+	 * @return the queue for a class
+	 */
+	OutputQueue getQueue(TrafficClass trafficClass)
+	{ return this.queues[trafficClass.ordinal()]; }
+
+	/**
+	 * @return every queue, in class order
+	 */
+	OutputQueue[] getQueues()
+	{ return this.queues; }
+
+	/**
+	 * Choose the queue whose next packet is written next, and charge that
+	 * packet to its class. Only called by the writer, which must then take
+	 * the packet.
+	 * @return the queue, null if every queue is empty
+	 */
+	OutputQueue select()
+	{
+		for (OutputQueue queue : this.priority)
+		{
+			if (queue.nextLength() >= 0)
+			{ return queue; }
+		}
+
+		boolean any = false;
+		for (OutputQueue queue : this.weighted)
+		{ any |= (queue.nextLength() >= 0); }
+		if (!any)
+		{ return null; }
+
+		// Terminates because some class has a packet and gains credit
+		// every round
+		while (true)
+		{
+			OutputQueue queue = this.weighted[this.current];
+			int length = queue.nextLength();
+			if (length < 0)
+			{ this.deficits[this.current] = 0; }
+			else
+			{
+				if (this.newRound)
+				{
+					this.deficits[this.current] += this.quanta[this.current];
+					this.newRound = false;
+				}
+				if (this.deficits[this.current] >= length)
+				{
+					this.deficits[this.current] -= length;
+					return queue;
+				}
+			}
+			this.current = (this.current + 1) % this.weighted.length;
+			this.newRound = true;
+		}
+	}
+
+	/**
+	 * Record the current depth of each queue as seen by the writer.
+	 */
+	void sampleDepths()
+	{
+		for (OutputQueue queue : this.queues)
+		{ queue.sampleDepth(); }
+	}
+
+	/**
+	 * @return true if every queue is empty
+	 */
+	boolean isEmpty()
+	{
+		for (OutputQueue queue : this.queues)
+		{
+			if (queue.nextLength() >= 0)
+			{ return false; }
+		}
+		return true;
+	}
+}
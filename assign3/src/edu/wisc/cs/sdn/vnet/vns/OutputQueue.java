@@ -0,0 +1,299 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded queue of commands waiting to be sent out one interface, for one
+ * class of traffic. Any number of threads add commands; only the writer
+ * thread takes them.
+ * <p>
+ * Commands are copied into buffers owned by the slots of a ring, so adding
+ * a command allocates nothing once the buffers have grown to fit. Each slot
+ * has a sequence number: a sender claims the slot for command n with a
+ * compare-and-set on the tail once the slot's sequence is n, and publishes
+ * the command by setting the sequence to n+1; the writer frees the slot by
+ * setting it to n+capacity. A sender never waits: when the ring is full,
+ * or the drop policy drops the command early, the command is counted and
+ * dropped.
+ * <p>
+ * Each command records when it was queued, so the writer can measure how
+ * long commands wait in the queue.
+ */
+class OutputQueue
+{
+	/** Size of a slot's buffer when first used; grown for larger commands */
+	private static final int INITIAL_COMMAND_SIZE = CommandPacket.FRAME_OFFSET + 1514;
+
+	/** The average depth moves 1/2^AVERAGE_SHIFT of the way to the depth
+	 * seen by each command */
+	private static final int AVERAGE_SHIFT = 4;
+
+	/** Fractional bits of the average depth */
+	private static final int AVERAGE_FRACTION_BITS = 8;
+
+	/** Name of the queue: the interface and class of its commands */
+	private final String name;
+
+	private final int capacity;
+	private final int mask;
+
+	/** Command held in each slot, starting at position 0 */
+	private final byte[][] buffers;
+
+	/** Length of the command held in each slot */
+	private final int[] lengths;
+
+	/** When the command in each slot was queued, in nanoseconds */
+	private final long[] queuedAt;
+
+	/** Sequence number of each slot, as described above */
+	private final AtomicLongArray sequences;
+
+	/** Number of commands claimed by senders */
+	private final AtomicLong tail;
+
+	/** Number of commands taken by the writer */
+	private volatile long head;
+
+	private final DropPolicy policy;
+
+	/** Average depths, with fractional bits, between which commands are
+	 * dropped early */
+	private final int minAverage;
+	private final int maxAverage;
+
+	/** Average depth, with fractional bits; updated by senders without
+	 * synchronization, so a concurrent update may be lost */
+	private int average;
+
+	private final LongAdder enqueued;
+	private final LongAdder tailDrops;
+	private final LongAdder earlyDrops;
+
+	/** Greatest depth seen by the writer; only used by the writer */
+	private int maxDepth;
+
+	/** Number of commands taken, and the total and longest time they
+	 * waited in nanoseconds; only updated by the writer */
+	private long dequeued;
+	private long latencyNanos;
+	private long maxLatencyNanos;
+
+	/**
+	 * Create an empty queue.
+	 * @param name name of the queue
+	 * @param capacity number of commands the queue holds; rounded up to a
+	 *        power of two
+	 * @param policy decides which commands are dropped
+	 */
+	OutputQueue(String name, int capacity, DropPolicy policy)
+	{
+		int size = sizeFor(capacity);
+		this.name = name;
+		this.capacity = size;
+		this.mask = size - 1;
+		this.buffers = new byte[size][];
+		this.lengths = new int[size];
+		this.queuedAt = new long[size];
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++)
+		{ this.sequences.set(i, i); }
+		this.tail = new AtomicLong();
+		this.head = 0;
+		this.policy = policy;
+		this.minAverage = averageFor(policy.getMinThreshold(), size);
+		this.maxAverage = averageFor(policy.getMaxThreshold(), size);
+		this.enqueued = new LongAdder();
+		this.tailDrops = new LongAdder();
+		this.earlyDrops = new LongAdder();
+	}
+
+	/**
+	 * @return number of commands a queue created with a capacity holds
+	 */
+	static int sizeFor(int capacity)
+	{ return Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1; }
+
+	/**
+	 * @return a threshold, as a fraction of capacity, as an average depth
+	 *         with fractional bits for a queue holding size commands; scaled
+	 *         before truncating, so small queues keep fractional thresholds
+	 */
+	static int averageFor(double threshold, int size)
+	{ return (int)(threshold * (size << AVERAGE_FRACTION_BITS)); }
+
+	/**
+	 * Add a command to the queue, unless it is dropped.
+	 * @param buf buffer holding the command; not used after this returns
+	 * @param offset position of the command in the buffer
+	 * @param length length of the command
+	 * @return true if the command was queued
+	 */
+	boolean offer(byte[] buf, int offset, int length)
+	{
+		if (this.policy.isRed() && this.dropEarly())
+		{
+			this.earlyDrops.increment();
+			return false;
+		}
+
+		long position;
+		int slot;
+		while (true)
+		{
+			position = this.tail.get();
+			slot = (int)position & this.mask;
+			long sequence = this.sequences.get(slot);
+			if (sequence == position)
+			{
+				if (this.tail.compareAndSet(position, position + 1))
+				{ break; }
+			}
+			else if (sequence < position)
+			{
+				// The writer has not freed the slot from the last lap
+				this.tailDrops.increment();
+				return false;
+			}
+		}
+
+		byte[] command = this.buffers[slot];
+		if (null == command || command.length < length)
+		{
+			command = new byte[Math.max(length, INITIAL_COMMAND_SIZE)];
+			this.buffers[slot] = command;
+		}
+		System.arraycopy(buf, offset, command, 0, length);
+		this.lengths[slot] = length;
+		this.queuedAt[slot] = System.nanoTime();
+		this.sequences.set(slot, position + 1);
+		this.enqueued.increment();
+		return true;
+	}
+
+	/**
+	 * Update the average depth and decide whether to drop a command early.
+	 */
+	private boolean dropEarly()
+	{
+		int depth = this.getDepth() << AVERAGE_FRACTION_BITS;
+		int average = this.average;
+		average += (depth - average) >> AVERAGE_SHIFT;
+		this.average = average;
+
+		if (average < this.minAverage)
+		{ return false; }
+		if (average >= this.maxAverage)
+		{ return true; }
+		double probability = this.policy.getMaxProbability()
+				* (average - this.minAverage) / (this.maxAverage - this.minAverage);
+		return ThreadLocalRandom.current().nextDouble() < probability;
+	}
+
+	/**
+	 * @return length of the next command, -1 if no command is ready; only
+	 *         called by the writer
+	 */
+	int nextLength()
+	{
+		long position = this.head;
+		int slot = (int)position & this.mask;
+		if (this.sequences.get(slot) != position + 1)
+		{ return -1; }
+		return this.lengths[slot];
+	}
+
+	/**
+	 * Copy the next command into a buffer and remove it from the queue;
+	 * only called by the writer, after {@link #nextLength()} found one.
+	 * @param out buffer to copy into, with room for the command
+	 * @param offset position in the buffer to copy to
+	 * @param now current time, from {@link System#nanoTime()}
+	 */
+	void takeNext(byte[] out, int offset, long now)
+	{
+		long position = this.head;
+		int slot = (int)position & this.mask;
+		System.arraycopy(this.buffers[slot], 0, out, offset, this.lengths[slot]);
+		long latency = now - this.queuedAt[slot];
+		this.dequeued++;
+		this.latencyNanos += latency;
+		this.maxLatencyNanos = Math.max(this.maxLatencyNanos, latency);
+		this.head = position + 1;
+		this.sequences.set(slot, position + this.capacity);
+	}
+
+	/**
+	 * Record the current depth as seen by the writer.
+	 */
+	void sampleDepth()
+	{ this.maxDepth = Math.max(this.maxDepth, this.getDepth()); }
+
+	/**
+	 * @return name of the queue
+	 */
+	String getName()
+	{ return this.name; }
+
+	/**
+	 * @return number of commands the queue holds
+	 */
+	int getCapacity()
+	{ return this.capacity; }
+
+	/**
+	 * @return number of commands claimed but not yet taken by the writer
+	 */
+	int getDepth()
+	{ return (int)Math.max(0, this.tail.get() - this.head); }
+
+	/**
+	 * @return greatest depth seen by the writer
+	 */
+	int getMaxDepth()
+	{ return this.maxDepth; }
+
+	/**
+	 * @return number of commands queued
+	 */
+	long getEnqueued()
+	{ return this.enqueued.sum(); }
+
+	/**
+	 * @return number of commands dropped because the queue was full
+	 */
+	long getTailDrops()
+	{ return this.tailDrops.sum(); }
+
+	/**
+	 * @return number of commands dropped early by the drop policy
+	 */
+	long getEarlyDrops()
+	{ return this.earlyDrops.sum(); }
+
+	/**
+	 * @return mean time commands taken waited in the queue, in nanoseconds
+	 */
+	long getMeanLatencyNanos()
+	{ return (0 == this.dequeued) ? 0 : this.latencyNanos / this.dequeued; }
+
+	/**
+	 * @return longest time a command taken waited in the queue, in
+	 *         nanoseconds
+	 */
+	long getMaxLatencyNanos()
+	{ return this.maxLatencyNanos; }
+
+	public String toString()
+	{
+		return String.format("%s: %d queued, %d tail drops, %d early drops,"
+				+ " depth %d (max %d of %d), latency mean %.1f us max %.1f us",
+				this.name, this.getEnqueued(), this.getTailDrops(),
+				this.getEarlyDrops(), this.getDepth(), this.maxDepth,
+				this.capacity, this.getMeanLatencyNanos() / 1000.0,
+				this.maxLatencyNanos / 1000.0);
+	}
+}
@@ -0,0 +1,290 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Queues commands sent to the server in bounded queues for each interface
+ * and writes them from a single writer thread. Each interface has a queue
+ * for each {@link TrafficClass}, and an {@link EgressScheduler} that
+ * decides which class is written next, so routing updates and expedited
+ * traffic pass bulk traffic when the interface is congested. The writer
+ * takes commands from the interfaces in turn, a few at a time from each so
+ * a busy interface cannot starve the others, and copies them into one
+ * buffer, which it writes and flushes when the buffer is full or every
+ * queue is empty. A burst of packets therefore costs one write instead of
+ * one per packet, and the threads sending packets never wait for the
+ * socket: when a queue is full, its drop policy drops the packet.
+ * <p>
+ * The writer records how many commands each write carried, so the effect
+ * of batching can be seen; each queue records its depth, drops and how
+ * long commands wait in it.
+ */
+class OutputQueues
+{
+	/** Size of the buffer used for writing to the server */
+	static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+	/** Most commands taken from one queue before moving to the next */
+	private static final int QUANTUM = 32;
+
+	/** Longest the writer sleeps when every queue is empty */
+	private static final long IDLE_WAIT_NANOS = 1000000;
+
+	/** Buckets of the batch size histogram: 1, 2-3, 4-7, ..., 128 or more */
+	private static final int BATCH_BUCKETS = 8;
+
+	/** Stream to the server; only used by the writer */
+	private final OutputStream out;
+
+	/** Number of commands each queue holds */
+	private final int capacity;
+
+	private final DropPolicy policy;
+
+	/** Queues for each interface, by name */
+	private final Map<String,EgressScheduler> schedulers;
+
+	/** Queues of every interface, in the order the writer visits them */
+	private volatile EgressScheduler[] order;
+
+	private final Thread writer;
+
+	/** Whether the writer may be sleeping, so senders must wake it */
+	private volatile boolean idle;
+
+	/** Whether the writer should exit once every queue is empty */
+	private volatile boolean stopping;
+
+	/** Number of writes carrying each size of batch; only updated by the
+	 * writer */
+	private final long[] batchSizes;
+
+	/** Number of commands and bytes written; only updated by the writer */
+	private long commands;
+	private long bytes;
+
+	/** Number of commands refused because they are too large */
+	private final LongAdder oversized;
+
+	/**
+	 * Create the queues; call {@link #start()} to start the writer.
+	 * @param out stream to the server
+	 * @param capacity number of commands queued for each class on each
+	 *        interface
+	 * @param policy decides which commands are dropped
+	 * @throws IllegalArgumentException if the policy does not suit the
+	 *         capacity; see {@link DropPolicy#checkCapacity(int)}
+	 */
+	OutputQueues(OutputStream out, int capacity, DropPolicy policy)
+	{
+		policy.checkCapacity(capacity);
+		this.out = out;
+		this.capacity = capacity;
+		this.policy = policy;
+		this.schedulers = new ConcurrentHashMap<String,EgressScheduler>();
+		this.order = new EgressScheduler[0];
+		this.batchSizes = new long[BATCH_BUCKETS];
+		this.oversized = new LongAdder();
+		this.writer = new Thread(new Runnable() {
+			public void run()
+			{ write(); }
+		}, "writer");
+		this.writer.setDaemon(true);
+	}
+
+	void start()
+	{ this.writer.start(); }
+
+	/**
+	 * Write every command queued and stop the writer.
+	 */
+	void stop()
+	{
+		this.stopping = true;
+		LockSupport.unpark(this.writer);
+		try
+		{ this.writer.join(); }
+		catch (InterruptedException e)
+		{ Thread.currentThread().interrupt(); }
+	}
+
+	/**
+	 * Queue a packet command to be sent out an interface, in the queue for
+	 * the packet's class; never waits. May be called from several threads.
+	 * @param ifaceName interface the command is sent out
+	 * @param buf buffer holding the command; not used after this returns
+	 * @param offset position of the command in the buffer
+	 * @param length length of the command
+	 * @return true if the command was queued, false if it was dropped
+	 */
+	boolean send(String ifaceName, byte[] buf, int offset, int length)
+	{
+		if (length > WRITE_BUFFER_SIZE)
+		{
+			this.oversized.increment();
+			return false;
+		}
+		TrafficClass trafficClass = TrafficClass.classify(buf,
+				offset + CommandPacket.FRAME_OFFSET,
+				length - CommandPacket.FRAME_OFFSET);
+		if (!this.getScheduler(ifaceName).getQueue(trafficClass).offer(buf,
+				offset, length))
+		{ return false; }
+		if (this.idle)
+		{ LockSupport.unpark(this.writer); }
+		return true;
+	}
+
+	private EgressScheduler getScheduler(String ifaceName)
+	{
+		EgressScheduler scheduler = this.schedulers.get(ifaceName);
+		if (scheduler != null)
+		{ return scheduler; }
+		synchronized (this)
+		{
+			scheduler = this.schedulers.get(ifaceName);
+			if (null == scheduler)
+			{
+				scheduler = new EgressScheduler(ifaceName, this.capacity,
+						this.policy);
+				EgressScheduler[] grown = new EgressScheduler[this.order.length + 1];
+				System.arraycopy(this.order, 0, grown, 0, this.order.length);
+				grown[this.order.length] = scheduler;
+				this.order = grown;
+				this.schedulers.put(ifaceName, scheduler);
+			}
+		}
+		return scheduler;
+	}
+
+	/**
+	 * Write queued commands until told to stop, writing a batch whenever
+	 * the buffer fills or every queue is empty.
+	 */
+	private void write()
+	{
+		byte[] pending = new byte[WRITE_BUFFER_SIZE];
+		int pendingLength = 0;
+		int batch = 0;
+		while (true)
+		{
+			boolean found = false;
+			for (EgressScheduler scheduler : this.order)
+			{
+				scheduler.sampleDepths();
+				for (int i = 0; i < QUANTUM; i++)
+				{
+					OutputQueue queue = scheduler.select();
+					if (null == queue)
+					{ break; }
+					int length = queue.nextLength();
+					if (pendingLength + length > pending.length)
+					{
+						this.flush(pending, pendingLength, batch);
+						pendingLength = 0;
+						batch = 0;
+					}
+					queue.takeNext(pending, pendingLength, System.nanoTime());
+					pendingLength += length;
+					batch++;
+					found = true;
+				}
+			}
+			if (found)
+			{ continue; }
+
+			this.flush(pending, pendingLength, batch);
+			pendingLength = 0;
+			batch = 0;
+			if (this.stopping && this.isEmpty())
+			{ return; }
+
+			// Sleep until a sender queues a command; check again after
+			// announcing the sleep, so a command queued meanwhile is seen
+			this.idle = true;
+			if (this.isEmpty())
+			{ LockSupport.parkNanos(IDLE_WAIT_NANOS); }
+			this.idle = false;
+		}
+	}
+
+	private boolean isEmpty()
+	{
+		for (EgressScheduler scheduler : this.order)
+		{
+			if (!scheduler.isEmpty())
+			{ return false; }
+		}
+		return true;
+	}
+
+	/**
+	 * Write a batch of commands to the server.
+	 */
+	private void flush(byte[] buf, int length, int batch)
+	{
+		if (0 == batch)
+		{ return; }
+		try
+		{
+			this.out.write(buf, 0, length);
+			this.out.flush();
+		}
+		catch (IOException e)
+		{ System.err.println("Error writing packet"); }
+		this.batchSizes[Math.min(31 - Integer.numberOfLeadingZeros(batch),
+				BATCH_BUCKETS - 1)]++;
+		this.commands += batch;
+		this.bytes += length;
+	}
+
+	/**
+	 * Describe the commands written and each queue; only accurate once the
+	 * writer has stopped.
+	 * @return the number of writes and commands, a histogram of the number
+	 *         of commands in each write, and the depth, drops and latency
+	 *         of each queue that was used
+	 */
+	String getStats()
+	{
+		long writes = 0;
+		for (long count : this.batchSizes)
+		{ writes += count; }
+		StringBuilder stats = new StringBuilder(String.format(
+				"Output (%s drop): %d commands, %d bytes in %d writes"
+				+ " (mean batch %.1f)\n  batch sizes:", this.policy,
+				this.commands, this.bytes, writes,
+				(0 == writes) ? 0.0 : (double)this.commands / writes));
+		for (int i = 0; i < BATCH_BUCKETS; i++)
+		{
+			int low = 1 << i;
+			if (0 == i)
+			{ stats.append(" 1:"); }
+			else if (i < BATCH_BUCKETS - 1)
+			{ stats.append(String.format(" %d-%d:", low, 2 * low - 1)); }
+			else
+			{ stats.append(String.format(" %d+:", low)); }
+			stats.append(this.batchSizes[i]);
+		}
+		if (this.oversized.sum() > 0)
+		{
+			stats.append(String.format("\n  %d oversized commands refused",
+					this.oversized.sum()));
+		}
+		for (EgressScheduler scheduler : this.order)
+		{
+			for (OutputQueue queue : scheduler.getQueues())
+			{
+				if (queue.getEnqueued() + queue.getTailDrops()
+						+ queue.getEarlyDrops() > 0)
+				{ stats.append("\n  ").append(queue); }
+			}
+		}
+		return stats.toString();
+	}
+}
@@ -0,0 +1,312 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import net.floodlightcontroller.packet.IPv4;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * Processes packets from the server on several threads. The thread that
+ * reads from the server copies each packet command into a pooled buffer
+ * and passes it to one of several worker threads, chosen by a hash of the
+ * packet's flow, so packets of one flow are handled in order. Packets the
+ * workers send go to the device's {@link OutputQueues}.
+ * <p>
+ * Worker queues are bounded: the reader waits when a worker falls behind,
+ * so a busy device pushes back on the server instead of growing without
+ * bound.
+ * <p>
+ * Stages run on platform threads or, where the Java runtime supports them,
+ * on virtual threads. Virtual threads are cheap enough to use many workers,
+ * and a worker that blocks parks without holding an operating system
+ * thread. Each worker records how long packets wait in its queue and how
+ * long they take to handle, so the cost of scheduling can be compared
+ * with handling packets on the reading thread.
+ */
+class PacketPipeline
+{
+	/** Number of packets queued across all workers; each worker queues at
+	 * least {@link #MIN_WORKER_QUEUE_SIZE} */
+	private static final int TOTAL_WORKER_QUEUE_SIZE = 1024;
+
+	/** Fewest packets queued for a worker */
+	private static final int MIN_WORKER_QUEUE_SIZE = 16;
+
+	/** EtherType of IPv4 */
+	private static final int ETHERTYPE_IPV4 = 0x0800;
+
+	/** A command passed between stages */
+	private static class Slot
+	{
+		/** Holds the command, starting at position 0 */
+		byte[] buf;
+
+		/** Length of the command */
+		int length;
+
+		/** Interface on which a received packet arrived */
+		Iface iface;
+
+		/** When a received packet was queued for a worker, in nanoseconds */
+		long queuedAt;
+
+		Slot(int size)
+		{ this.buf = new byte[size]; }
+	}
+
+	/** Queued to a stage to make it exit */
+	private static final Slot STOP = new Slot(0);
+
+	/** Handles the packets received */
+	private final VNSComm vnsComm;
+
+	/** Size of each pooled buffer */
+	private final int bufferSize;
+
+	/** Slots not in use; a stage takes one or allocates one if none are free */
+	private final BlockingQueue<Slot> freeSlots;
+
+	/** Packets waiting for each worker */
+	private final BlockingQueue<Slot>[] workQueues;
+
+	private final Thread[] workers;
+
+	/** Whether the stages run on virtual threads */
+	private final boolean virtual;
+
+	/** Packets handled by each worker; only updated by that worker */
+	private final long[] handled;
+
+	/** Total time packets waited in each worker's queue, in nanoseconds */
+	private final long[] waitNanos;
+
+	/** Total time each worker spent handling packets, in nanoseconds */
+	private final long[] busyNanos;
+
+	/**
+	 * Create a pipeline; call {@link #start()} to start its threads.
+	 * @param vnsComm handles the packets received
+	 * @param workerCount number of worker threads
+	 * @param bufferSize size of the largest command
+	 * @param virtual whether to run the stages on virtual threads; ignored
+	 *        if the Java runtime does not support them
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	PacketPipeline(VNSComm vnsComm, int workerCount, int bufferSize,
+			boolean virtual)
+	{
+		this.vnsComm = vnsComm;
+		this.bufferSize = bufferSize;
+		this.virtual = virtual && isVirtualThreadSupported();
+		int workerQueueSize = Math.max(MIN_WORKER_QUEUE_SIZE,
+				TOTAL_WORKER_QUEUE_SIZE / workerCount);
+		this.freeSlots = new ArrayBlockingQueue<Slot>(workerCount 
+				* (workerQueueSize + 1));
+		this.workQueues = (BlockingQueue<Slot>[])new BlockingQueue[workerCount];
+		this.workers = new Thread[workerCount];
+		this.handled = new long[workerCount];
+		this.waitNanos = new long[workerCount];
+		this.busyNanos = new long[workerCount];
+		for (int i = 0; i < workerCount; i++)
+		{
+			final BlockingQueue<Slot> queue = 
+					new ArrayBlockingQueue<Slot>(workerQueueSize);
+			final int id = i;
+			this.workQueues[i] = queue;
+			this.workers[i] = this.newThread(new Runnable() {
+				public void run()
+				{ work(id, queue); }
+			}, "worker-" + i);
+		}
+	}
+
+	/**
+	 * @return true if the Java runtime supports virtual threads
+	 */
+	static boolean isVirtualThreadSupported()
+	{ return virtualBuilder() != null; }
+
+	/**
+	 * @return a builder of virtual threads, null if the Java runtime does
+	 *         not support them; found reflectively so the code also runs on
+	 *         runtimes without them
+	 */
+	private static Object virtualBuilder()
+	{
+		try
+		{ return Thread.class.getMethod("ofVirtual").invoke(null); }
+		catch (Exception e)
+		{ return null; }
+	}
+
+	private Thread newThread(Runnable task, String name)
+	{
+		if (this.virtual)
+		{
+			try
+			{
+				Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+				Object builder = builderClass.getMethod("name", String.class)
+						.invoke(virtualBuilder(), name);
+				Method unstarted = builderClass.getMethod("unstarted", Runnable.class);
+				return (Thread)unstarted.invoke(builder, task);
+			}
+			catch (Exception e)
+			{ throw new IllegalStateException("Cannot create virtual thread", e); }
+		}
+		Thread thread = new Thread(task, name);
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	void start()
+	{
+		for (Thread worker : this.workers)
+		{ worker.start(); }
+	}
+
+	/**
+	 * Let the workers finish the packets queued and stop them.
+	 */
+	void stop()
+	{
+		try
+		{
+			for (BlockingQueue<Slot> queue : this.workQueues)
+			{ queue.put(STOP); }
+			for (Thread worker : this.workers)
+			{ worker.join(); }
+		}
+		catch (InterruptedException e)
+		{ Thread.currentThread().interrupt(); }
+	}
+
+	private Slot takeSlot(int length)
+	{
+		Slot slot = this.freeSlots.poll();
+		if (null == slot)
+		{ slot = new Slot(Math.max(length, this.bufferSize)); }
+		else if (slot.buf.length < length)
+		{ slot.buf = new byte[length]; }
+		return slot;
+	}
+
+	private void releaseSlot(Slot slot)
+	{
+		slot.iface = null;
+		this.freeSlots.offer(slot);
+	}
+
+	/**
+	 * Queue a received packet command for the worker handling its flow;
+	 * waits if that worker's queue is full. Only called by the thread that
+	 * reads from the server.
+	 * @param buf buffer holding the command, starting at position 0; not
+	 *        used after this returns
+	 * @param length length of the command
+	 * @param inIface interface on which the packet arrived
+	 */
+	void submit(byte[] buf, int length, Iface inIface)
+	{
+		Slot slot = this.takeSlot(length);
+		System.arraycopy(buf, 0, slot.buf, 0, length);
+		slot.length = length;
+		slot.iface = inIface;
+		slot.queuedAt = System.nanoTime();
+
+		int hash = flowHash(buf, CommandPacket.FRAME_OFFSET,
+				length - CommandPacket.FRAME_OFFSET);
+		int worker = (int)(((hash & 0xffffffffL) * this.workQueues.length) >>> 32);
+		try
+		{ this.workQueues[worker].put(slot); }
+		catch (InterruptedException e)
+		{
+			this.releaseSlot(slot);
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Hash the flow of a frame: the addresses, protocol and ports of an
+	 * IPv4 packet, or the MAC addresses of any other frame.
+	 */
+	static int flowHash(byte[] buf, int frameOffset, int frameLength)
+	{
+		int h = 0;
+		if (frameLength >= 14 + 20 && ETHERTYPE_IPV4 ==
+				(((buf[frameOffset + 12] & 0xff) << 8) | (buf[frameOffset + 13] & 0xff)))
+		{
+			int ip = frameOffset + 14;
+			int headerLength = (buf[ip] & 0x0f) * 4;
+			int protocol = buf[ip + 9] & 0xff;
+			h = IPv4.getInt(buf, ip + 12) * 31 + IPv4.getInt(buf, ip + 16);
+			h = h * 31 + protocol;
+
+			// Include ports of TCP and UDP packets that are not fragments
+			boolean fragment = ((buf[ip + 6] & 0x3f) | buf[ip + 7]) != 0;
+			if ((6 == protocol || 17 == protocol) && !fragment
+					&& headerLength >= 20 && 14 + headerLength + 4 <= frameLength)
+			{ h = h * 31 + IPv4.getInt(buf, ip + headerLength); }
+		}
+		else
+		{
+			for (int i = 0; i < 12 && i < frameLength; i++)
+			{ h = h * 31 + buf[frameOffset + i]; }
+		}
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Handle packets from a worker queue until told to stop.
+	 * @param id number of the worker
+	 */
+	private void work(int id, BlockingQueue<Slot> queue)
+	{
+		while (true)
+		{
+			Slot slot;
+			try
+			{ slot = queue.take(); }
+			catch (InterruptedException e)
+			{ return; }
+			if (STOP == slot)
+			{ return; }
+
+			long start = System.nanoTime();
+			try
+			{ this.vnsComm.handlePacketCommand(slot.buf, slot.length, slot.iface); }
+			catch (RuntimeException e)
+			{ e.printStackTrace(); }
+			this.handled[id]++;
+			this.waitNanos[id] += start - slot.queuedAt;
+			this.busyNanos[id] += System.nanoTime() - start;
+			this.releaseSlot(slot);
+		}
+	}
+
+	/**
+	 * Describe the packets handled; only accurate once the pipeline has
+	 * stopped.
+	 * @return the number of packets handled, and the mean time they waited
+	 *         to be scheduled and took to handle
+	 */
+	String getStats()
+	{
+		long packets = 0, waited = 0, busy = 0;
+		for (int i = 0; i < this.workers.length; i++)
+		{
+			packets += this.handled[i];
+			waited += this.waitNanos[i];
+			busy += this.busyNanos[i];
+		}
+		return String.format("%d packets on %d %s workers: mean wait %.1f us,"
+				+ " mean handling %.1f us", packets, this.workers.length,
+				this.virtual ? "virtual" : "platform",
+				(0 == packets) ? 0.0 : waited / 1000.0 / packets,
+				(0 == packets) ? 0.0 : busy / 1000.0 / packets);
+	}
+}
@@ -0,0 +1,106 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+/**
+ * Class of service of a packet sent out an interface, from its DSCP
+ * (the upper six bits of the IPv4 DiffServ byte). Priority classes are
+ * sent before any other traffic; the remaining classes share what is left
+ * in proportion to their weights.
+ * <p>
+ * Routing updates (RIP) and ARP are network control, along with CS6 and
+ * CS7. EF and VOICE-ADMIT are expedited; as RFC 3246 assumes, senders of
+ * EF traffic are expected to be policed so it cannot starve other classes.
+ * The AF classes take the class selector of the same precedence, CS5 goes
+ * with AF4, and everything else is best effort.
+ */
+enum TrafficClass
+{
+	CONTROL(true, 0), EXPEDITED(true, 0), AF4(false, 8), AF3(false, 6),
+	AF2(false, 4), AF1(false, 2), BEST_EFFORT(false, 1);
+
+	/** Bytes each weight unit lets a class send in a round */
+	private static final int QUANTUM = 1514;
+
+	/** EtherTypes of IPv4 and ARP */
+	private static final int ETHERTYPE_IPV4 = 0x0800;
+	private static final int ETHERTYPE_ARP = 0x0806;
+
+	private static final int PROTOCOL_UDP = 17;
+	private static final int RIP_PORT = 520;
+
+	private static final int DSCP_EF = 46;
+	private static final int DSCP_VOICE_ADMIT = 44;
+	private static final int DSCP_CS1 = 8;
+
+	private final boolean priority;
+	private final int weight;
+
+	private TrafficClass(boolean priority, int weight)
+	{
+		this.priority = priority;
+		this.weight = weight;
+	}
+
+	/**
+	 * @return true if the class is sent ahead of every weighted class
+	 */
+	boolean isPriority()
+	{ return this.priority; }
+
+	/**
+	 * @return bytes the class may send in each round of the weighted
+	 *         classes; 0 for priority classes
+	 */
+	int getQuantum()
+	{ return this.weight * QUANTUM; }
+
+	/**
+	 * Classify a frame.
+	 * @param buf buffer holding the frame
+	 * @param frameOffset position of the frame in the buffer
+	 * @param frameLength length of the frame
+	 * @return the frame's class
+	 */
+	static TrafficClass classify(byte[] buf, int frameOffset, int frameLength)
+	{
+		if (frameLength < 14)
+		{ return BEST_EFFORT; }
+		int etherType = ((buf[frameOffset + 12] & 0xff) << 8)
+				| (buf[frameOffset + 13] & 0xff);
+		if (ETHERTYPE_ARP == etherType)
+		{ return CONTROL; }
+		if (etherType != ETHERTYPE_IPV4 || frameLength < 14 + 20)
+		{ return BEST_EFFORT; }
+
+		int ip = frameOffset + 14;
+		int headerLength = (buf[ip] & 0x0f) * 4;
+		boolean fragment = ((buf[ip + 6] & 0x1f) | buf[ip + 7]) != 0;
+		if (PROTOCOL_UDP == (buf[ip + 9] & 0xff) && !fragment
+				&& headerLength >= 20 && 14 + headerLength + 4 <= frameLength)
+		{
+			int udp = ip + headerLength;
+			int dstPort = ((buf[udp + 2] & 0xff) << 8) | (buf[udp + 3] & 0xff);
+			if (RIP_PORT == dstPort)
+			{ return CONTROL; }
+		}
+
+		int dscp = (buf[ip + 1] & 0xff) >>> 2;
+		switch (dscp >>> 3)
+		{
+		case 7:
+		case 6:
+			return CONTROL;
+		case 5:
+			return (DSCP_EF == dscp || DSCP_VOICE_ADMIT == dscp) ? EXPEDITED : AF4;
+		case 4:
+			return AF4;
+		case 3:
+			return AF3;
+		case 2:
+			return AF2;
+		case 1:
+			return (DSCP_CS1 == dscp) ? BEST_EFFORT : AF1;
+		default:
+			return BEST_EFFORT;
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package edu.wisc.cs.sdn.vnet.vns;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -7,8 +8,10 @@ import java.net.InetAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.packet.MACAddress;
 
 import edu.wisc.cs.sdn.vnet.Device;
@@ -16,8 +19,42 @@ import edu.wisc.cs.sdn.vnet.Iface;
 
 public class VNSComm 
 {
+	/** Largest command accepted from the server */
+	private static final int MAX_COMMAND_SIZE = 10000;
+
 	private Socket socket;
 	private Device device;
+
+	/** Buffered stream of commands from the server; only read by the thread
+	 * that reads from the server */
+	private InputStream inStream;
+
+	/** Holds each command read from the server; reused for every command */
+	private final byte[] recvBuf = new byte[MAX_COMMAND_SIZE];
+
+	/** Device interfaces and their names as bytes, so interfaces can be
+	 * found without decoding names; set from the hardware information */
+	private Iface[] ifaces = new Iface[0];
+	private byte[][] ifaceNames = new byte[0][];
+
+	/** Threads that handle packets; null if packets are handled by the
+	 * thread that reads from the server */
+	private volatile PacketPipeline pipeline = null;
+
+	/** Queues of packets waiting to be written to the server by a writer
+	 * thread; null if packets are written by the thread sending them */
+	private volatile OutputQueues output = null;
+
+	/** Description of the output queues last stopped */
+	private String outputStats = null;
+
+	/** Packets handled by the thread that reads from the server, and the
+	 * total time spent handling them in nanoseconds */
+	private long inlinePackets = 0;
+	private long inlineNanos = 0;
+
+	/** Description of the packets handled by the last pipeline stopped */
+	private String pipelineStats = null;
 	
 	public VNSComm(Device device)
 	{ 
@@ -39,7 +76,11 @@ public class VNSComm
 		
 		// Create socket and attempt to connect to the server
 		try 
-		{ socket = new Socket(addr, port); }
+		{ 
+			socket = new Socket(addr, port); 
+			inStream = new BufferedInputStream(socket.getInputStream(), 
+					4 * MAX_COMMAND_SIZE);
+		}
 		catch (IOException e) 
 		{
 			e.printStackTrace();
@@ -66,6 +107,110 @@ public class VNSComm
 		return true; 
 	}
 	
+	/**
+	 * Handle packets on worker threads instead of the thread that reads
+	 * from the server. Must be called after connecting and before reading
+	 * packets.
+	 * @param workers number of worker threads
+	 * @param virtual whether to use virtual threads, if the Java runtime
+	 *        supports them
+	 * @return true if the threads were started
+	 */
+	public boolean startPipeline(int workers, boolean virtual)
+	{
+		PacketPipeline started = new PacketPipeline(this, workers,
+				MAX_COMMAND_SIZE, virtual);
+		started.start();
+		this.pipeline = started;
+		return true;
+	}
+
+	/**
+	 * Finish handling queued packets and stop the threads started by
+	 * {@link #startPipeline(int, boolean)}, if any.
+	 */
+	public void stopPipeline()
+	{
+		PacketPipeline stopping = this.pipeline;
+		if (null == stopping)
+		{ return; }
+		stopping.stop();
+		this.pipeline = null;
+		this.pipelineStats = stopping.getStats();
+	}
+
+	/**
+	 * Queue packets sent out each interface, and write them to the server
+	 * in batches from a writer thread, so threads sending packets never
+	 * wait for the socket. Must be called after connecting.
+	 * @param capacity number of packets queued for each interface
+	 * @param policy decides which packets are dropped
+	 * @return true if the writer was started
+	 * @throws IllegalArgumentException if the policy does not suit the
+	 *         capacity; see {@link DropPolicy#checkCapacity(int)}
+	 */
+	public boolean startOutputQueues(int capacity, DropPolicy policy)
+	{
+		OutputStream outStream;
+		try
+		{ outStream = socket.getOutputStream(); }
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			return false;
+		}
+		OutputQueues started = new OutputQueues(outStream, capacity, policy);
+		started.start();
+		this.output = started;
+		return true;
+	}
+
+	/**
+	 * Write the packets queued and stop the writer started by
+	 * {@link #startOutputQueues(int, DropPolicy)}, if any; packets sent
+	 * afterwards are written by the thread sending them.
+	 */
+	public void stopOutputQueues()
+	{
+		OutputQueues stopping = this.output;
+		if (null == stopping)
+		{ return; }
+		this.output = null;
+		stopping.stop();
+		this.outputStats = stopping.getStats();
+	}
+
+	/**
+	 * Describe the packets written by the output queues last stopped,
+	 * including how many were written at once and each queue's depth and
+	 * drops.
+	 * @return the description, null if output queues were not used
+	 */
+	public String getOutputStats()
+	{ return this.outputStats; }
+
+	/**
+	 * @return true if the Java runtime supports virtual threads
+	 */
+	public static boolean isVirtualThreadSupported()
+	{ return PacketPipeline.isVirtualThreadSupported(); }
+
+	/**
+	 * Describe the packets handled so far, including the mean time spent
+	 * scheduling and handling them, so the threading modes can be compared.
+	 * @return the description
+	 */
+	public String getPacketStats()
+	{
+		StringBuilder stats = new StringBuilder(String.format(
+				"%d packets on the reading thread: mean handling %.1f us", 
+				this.inlinePackets, (0 == this.inlinePackets) ? 0.0 
+						: this.inlineNanos / 1000.0 / this.inlinePackets));
+		if (this.pipelineStats != null)
+		{ stats.append('\n').append(this.pipelineStats); }
+		return stats.toString();
+	}
+	
 	private boolean handleHwInfo(CommandHwInfo cmdHwInfo)
 	{
 		Iface lastIface = null;
@@ -91,6 +236,12 @@ public class VNSComm
 			}
 		}
 		
+		this.ifaces = this.device.getInterfaces().values().toArray(new Iface[0]);
+		this.ifaceNames = new byte[this.ifaces.length][];
+		for (int i = 0; i < this.ifaces.length; i++)
+		{ this.ifaceNames[i] = this.ifaces[i].getName().getBytes(); }
+		this.device.interfacesChanged();
+
 		System.out.println("Device interfaces:");
 		if (0 == this.device.getInterfaces().size())
 		{ System.out.println(" Interface list empty"); }
@@ -108,39 +259,16 @@ public class VNSComm
 	
 	public boolean readFromServerExpect(int expectedCmd)
 	{
-		int bytesRead = 0;
-		InputStream inStream = null;
-		
-		// Get input stream
-		try 
-		{ inStream = this.socket.getInputStream(); } 
-		catch (IOException e) 
-		{
-			e.printStackTrace();
-			return false;
-		}
+		byte[] buf = this.recvBuf;
 		
 		// Attempt to read the size of the incoming packet
-		byte[] lenBytes = new byte[4];
-		while (bytesRead < 4)
-		{
-			try 
-			{
-				int ret = inStream.read(lenBytes, bytesRead, 4 - bytesRead);
-				if (ret < 0)
-				{ throw new Exception(); }
-				bytesRead += ret;
-			} 
-			catch (Exception e) 
-			{
-				e.printStackTrace();
-				return false;
-			}
-		}
+		if (!this.readFully(buf, 0, 4))
+		{ return false; }
 		
-		int len = ByteBuffer.wrap(lenBytes).getInt();
+		int len = ((buf[0] & 0xff) << 24) | ((buf[1] & 0xff) << 16)
+				| ((buf[2] & 0xff) << 8) | (buf[3] & 0xff);
 		
-		if (len > 10000 || len < 0)
+		if (len > MAX_COMMAND_SIZE || len < 8)
 		{
 			System.err.println(String.format(
 					"Error: comamnd length too large %d", len));
@@ -148,33 +276,17 @@ public class VNSComm
 			return false;
 		}
 		
-		// Allocate buffer
-		ByteBuffer buf = ByteBuffer.allocate(len);
-		
-		// Set first field of command since we've already read it
-		buf.putInt(len);
-		
 		// Read the rest of the command
-		while (bytesRead < len)
+		if (!this.readFully(buf, 4, len - 4))
 		{
-			try 
-			{
-				int ret = inStream.read(buf.array(), bytesRead, len - bytesRead);
-				if (ret < 0)
-				{ throw new Exception(); }
-				bytesRead += ret;
-			} 
-			catch (Exception e) 
-			{
-				e.printStackTrace();
-				System.err.println("Error: failed reading command body");
-				try { socket.close(); } catch (IOException e2) { }
-				return false;
-			}
+			System.err.println("Error: failed reading command body");
+			try { socket.close(); } catch (IOException e2) { }
+			return false;
 		}
 		
 		// Make sure the command is what we expected if we were expecting something
-		int command = buf.getInt();
+		int command = ((buf[4] & 0xff) << 24) | ((buf[5] & 0xff) << 16)
+				| ((buf[6] & 0xff) << 8) | (buf[7] & 0xff);
 		if (expectedCmd != 0 && command != expectedCmd)
 		{
 			if (command != Command.VNS_CLOSE) // VNS_CLOSE is always ok
@@ -186,32 +298,44 @@ public class VNSComm
 			}
 		}
 		
-		buf.position(0);
 		switch(command)
 		{
 		case Command.VNS_PACKET:
-			CommandPacket cmdPkt = new CommandPacket();
-			cmdPkt.deserialize(buf);
-			
+			if (len < CommandPacket.FRAME_OFFSET)
+			{ break; }
+			int frameLength = len - CommandPacket.FRAME_OFFSET;
+
 			// Log packet
             if (this.device.getLogFile() != null)
-            { this.device.getLogFile().dump(cmdPkt.etherPacket); }
-			
-			// Pass to device, student's code should take over here
-			this.device.handlePacket(cmdPkt.etherPacket, 
-					this.device.getInterface(cmdPkt.mInterfaceName));
+            { 
+				this.device.getLogFile().dump(buf, CommandPacket.FRAME_OFFSET, 
+						frameLength); 
+			}
+
+			// Hand the packet to the worker for its flow, if there are workers
+			Iface inIface = this.findInterface(buf, 8);
+			PacketPipeline workers = this.pipeline;
+			if (workers != null && inIface != null)
+			{ workers.submit(buf, len, inIface); }
+			else
+			{ 
+				long start = System.nanoTime();
+				this.handlePacketCommand(buf, len, inIface); 
+				this.inlinePackets++;
+				this.inlineNanos += System.nanoTime() - start;
+			}
 			break;
 			
 		case Command.VNS_CLOSE:
 			System.err.println("VNS server closed session.");
 			CommandClose cmdClose = new CommandClose();
-			cmdClose.deserialize(buf);
+			cmdClose.deserialize(this.copyCommand(len));
 			System.err.println("Reason: " + new String(cmdClose.mErrorMessage));
 			return true;
 			
 		case Command.VNS_HW_INFO:
 			CommandHwInfo cmdHwInfo = new CommandHwInfo();
-			cmdHwInfo.deserialize(buf);
+			cmdHwInfo.deserialize(this.copyCommand(len));
 			this.handleHwInfo(cmdHwInfo);
 			break;
 		
@@ -222,6 +346,84 @@ public class VNSComm
 
 		return true;
 	}
+
+	/**
+	 * Pass a packet command to the device.
+	 * @param buf buffer holding the command, starting at position 0; the
+	 *        device may modify the frame and resend it in place
+	 * @param len length of the command
+	 * @param inIface interface on which the packet arrived; null to find it
+	 *        by the name in the command
+	 */
+	void handlePacketCommand(byte[] buf, int len, Iface inIface)
+	{
+		// Let the device handle the frame in place if it can
+		if (inIface != null && this.device.handleRawPacket(buf, 
+				CommandPacket.FRAME_OFFSET, len - CommandPacket.FRAME_OFFSET, 
+				inIface))
+		{ return; }
+		
+		CommandPacket cmdPkt = new CommandPacket();
+		cmdPkt.deserialize(ByteBuffer.wrap(Arrays.copyOf(buf, len)));
+		
+		// Pass to device, student's code should take over here
+		this.device.handlePacket(cmdPkt.etherPacket, (inIface != null) 
+				? inIface : this.device.getInterface(cmdPkt.mInterfaceName));
+	}
+
+	/**
+	 * Read exactly the requested number of bytes from the server.
+	 * @return true if all bytes were read, false if the connection failed
+	 */
+	private boolean readFully(byte[] buf, int offset, int length)
+	{
+		int bytesRead = 0;
+		while (bytesRead < length)
+		{
+			try 
+			{
+				int ret = this.inStream.read(buf, offset + bytesRead, 
+						length - bytesRead);
+				if (ret < 0)
+				{ throw new IOException("Connection closed"); }
+				bytesRead += ret;
+			} 
+			catch (IOException e) 
+			{
+				e.printStackTrace();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return a buffer holding a copy of the command just read, for
+	 *         commands that are decoded into objects
+	 */
+	private ByteBuffer copyCommand(int len)
+	{ return ByteBuffer.wrap(Arrays.copyOf(this.recvBuf, len)); }
+
+	/**
+	 * Find the interface named by a fixed-size, zero-padded name field.
+	 * @return the interface, null if there is none with the name
+	 */
+	private Iface findInterface(byte[] buf, int offset)
+	{
+		for (int i = 0; i < this.ifaces.length; i++)
+		{
+			byte[] name = this.ifaceNames[i];
+			if (name.length > CommandPacket.IFACE_NAME_SIZE)
+			{ continue; }
+			boolean match = (name.length == CommandPacket.IFACE_NAME_SIZE)
+					|| (0 == buf[offset + name.length]);
+			for (int j = 0; match && j < name.length; j++)
+			{ match = (buf[offset + j] == name[j]); }
+			if (match)
+			{ return this.ifaces[i]; }
+		}
+		return null;
+	}
 	
 	public boolean etherAddrsMatchInterface(Ethernet etherPacket, 
 			String ifaceName)
@@ -241,7 +443,75 @@ public class VNSComm
 		return true;
 	}
 	
-	// sr_send_packet
+	/**
+	 * Send a serialized Ethernet frame without copying it. The VNS command
+	 * header is written into the buffer just before the frame, so the 
+	 * frame must be preceded by {@link CommandPacket#FRAME_OFFSET} bytes 
+	 * that are free to overwrite. The buffer is not used once this returns.
+	 * May be called from several threads.
+	 * @param buf buffer holding the frame
+	 * @param frameOffset position of the frame in the buffer
+	 * @param frameLength length of the frame
+	 * @param ifaceName interface on which to send the frame
+	 * @return true if the frame was sent, otherwise false
+	 */
+	public boolean sendRawPacket(byte[] buf, int frameOffset,
+			int frameLength, String ifaceName)
+	{
+		int start = frameOffset - CommandPacket.FRAME_OFFSET;
+		int len = CommandPacket.FRAME_OFFSET + frameLength;
+		if (start < 0 || ifaceName.length() > CommandPacket.IFACE_NAME_SIZE)
+		{ throw new IllegalArgumentException("No room for command header"); }
+
+		// Fill in the header: length, type and zero-padded interface name
+		IPv4.putInt(buf, start, len);
+		IPv4.putInt(buf, start + 4, Command.VNS_PACKET);
+		int nameOffset = start + 8;
+		for (int i = 0; i < CommandPacket.IFACE_NAME_SIZE; i++)
+		{ 
+			buf[nameOffset + i] = (byte)((i < ifaceName.length()) 
+					? ifaceName.charAt(i) : 0); 
+		}
+
+		// Log packet
+        if (this.device.getLogFile() != null)
+        { this.device.getLogFile().dump(buf, frameOffset, frameLength); }
+
+		return this.writeCommand(ifaceName, buf, start, len);
+	}
+
+	/**
+	 * Write a serialized command to the server, or queue it for the writer
+	 * thread if there is one.
+	 * @param ifaceName interface the command sends a packet out
+	 * @return true if the command was written or queued
+	 */
+	private boolean writeCommand(String ifaceName, byte[] buf, int offset,
+			int len)
+	{
+		OutputQueues queues = this.output;
+		if (queues != null)
+		{ return queues.send(ifaceName, buf, offset, len); }
+
+		synchronized (this)
+		{
+			try
+			{
+				OutputStream outStream = socket.getOutputStream();
+				outStream.write(buf, offset, len);
+				outStream.flush();
+			}
+			catch(IOException e)
+			{
+				System.err.println("Error writing packet");
+				return false;
+			}
+		}
+		return true;
+	}
+
+	
+	// sr_send_packet; may be called from several threads
 	public boolean sendPacket(Ethernet etherPacket, String ifaceName)
 	{
 		CommandPacket cmdPacket = new CommandPacket();
@@ -260,17 +530,6 @@ public class VNSComm
         if (this.device.getLogFile() != null)
         { this.device.getLogFile().dump(etherPacket); }
 		
-	    try
-		{
-			OutputStream outStream = socket.getOutputStream();
-			outStream.write(buf);
-            outStream.flush();
-		}
-		catch(IOException e)
-		{
-			System.err.println("Error writing packet");
-			return false;
-		}
-		return true;
+		return this.writeCommand(ifaceName, buf, 0, buf.length);
 	}
 }
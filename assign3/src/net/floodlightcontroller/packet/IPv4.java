@@ -326,9 +326,7 @@ public class IPv4 extends BasePacket {
             for (int i = 0; i < this.headerLength * 2; ++i) {
                 accumulation += 0xffff & bb.getShort();
             }
-            accumulation = ((accumulation >> 16) & 0xffff)
-                    + (accumulation & 0xffff);
-            this.checksum = (short) (~accumulation & 0xffff);
+            this.checksum = (short) (~fold(accumulation) & 0xffff);
             bb.putShort(10, this.checksum);
         }
         return data;
@@ -382,6 +380,150 @@ public class IPv4 extends BasePacket {
         return this;
     }
 
+    /**
+     * Checks the header checksum against the header fields, without
+     * serializing the packet or its payload.
+     * @return true if the checksum is correct for the header
+     */
+    public boolean isChecksumValid() {
+        int accumulation = ((((this.version & 0xf) << 4) | (this.headerLength & 0xf)) << 8)
+                | (this.diffServ & 0xff);
+        accumulation += this.totalLength & 0xffff;
+        accumulation += this.identification & 0xffff;
+        accumulation += ((this.flags & 0x7) << 13) | (this.fragmentOffset & 0x1fff);
+        accumulation += ((this.ttl & 0xff) << 8) | (this.protocol & 0xff);
+        accumulation += this.checksum & 0xffff;
+        accumulation += (this.sourceAddress >>> 16) + (this.sourceAddress & 0xffff);
+        accumulation += (this.destinationAddress >>> 16) + (this.destinationAddress & 0xffff);
+        if (this.options != null) {
+            for (int i = 0; i + 1 < this.options.length; i += 2) {
+                accumulation += ((this.options[i] & 0xff) << 8) | (this.options[i + 1] & 0xff);
+            }
+        }
+        return 0xffff == fold(accumulation);
+    }
+
+    /**
+     * Decrements the TTL and updates the checksum for the change, without
+     * recomputing it over the whole header.
+     * @return this
+     */
+    public IPv4 decrementTtl() {
+        short oldWord = (short) (((this.ttl & 0xff) << 8) | (this.protocol & 0xff));
+        this.ttl = (byte) (this.ttl - 1);
+        short newWord = (short) (((this.ttl & 0xff) << 8) | (this.protocol & 0xff));
+        this.checksum = updateChecksum(this.checksum, oldWord, newWord);
+        return this;
+    }
+
+    /**
+     * Computes the Internet checksum of serialized data, such as an IPv4
+     * header or an ICMP message: the one's complement of the one's complement
+     * sum of its 16-bit words. Data of odd length is padded with a zero byte.
+     * @param data buffer holding the data
+     * @param offset position of the data in the buffer
+     * @param length length of the data in bytes
+     * @return the checksum; 0 if the data's checksum field is correct
+     */
+    public static short computeChecksum(byte[] data, int offset, int length) {
+        int accumulation = 0;
+        int end = offset + (length & ~1);
+        for (int i = offset; i < end; i += 2) {
+            accumulation += ((data[i] & 0xff) << 8) | (data[i + 1] & 0xff);
+            // Fold early so long data cannot overflow the sum
+            if (accumulation < 0) {
+                accumulation = fold(accumulation);
+            }
+        }
+        if ((length & 1) != 0) {
+            accumulation += (data[end] & 0xff) << 8;
+        }
+        return (short) (~fold(accumulation) & 0xffff);
+    }
+
+    /**
+     * Checks the checksum of a serialized IPv4 header.
+     * @param data buffer holding the header
+     * @param offset position of the header in the buffer; the header length
+     *        field must already have been checked against the buffer size
+     * @return true if the checksum is correct for the header
+     */
+    public static boolean isHeaderChecksumValid(byte[] data, int offset) {
+        return 0 == computeChecksum(data, offset, (data[offset] & 0xf) * 4);
+    }
+
+    /**
+     * Updates a checksum for a change to one 16-bit word of the data it
+     * covers, as in RFC 1624 (HC' = ~(~HC + ~m + m')).
+     * @param checksum checksum before the change
+     * @param oldWord value of the word before the change
+     * @param newWord value of the word after the change
+     * @return checksum after the change
+     */
+    public static short updateChecksum(short checksum, short oldWord, short newWord) {
+        int accumulation = (~checksum & 0xffff) + (~oldWord & 0xffff)
+                + (newWord & 0xffff);
+        return (short) (~fold(accumulation) & 0xffff);
+    }
+
+    /**
+     * Decrements the TTL of a serialized IPv4 header and updates its checksum
+     * for the change.
+     * @param data buffer holding the header
+     * @param offset position of the header in the buffer
+     */
+    public static void decrementTtl(byte[] data, int offset) {
+        int ttl = data[offset + 8] & 0xff;
+        int protocol = data[offset + 9] & 0xff;
+        short checksum = (short) (((data[offset + 10] & 0xff) << 8) | (data[offset + 11] & 0xff));
+        data[offset + 8] = (byte) (ttl - 1);
+        checksum = updateChecksum(checksum, (short) ((ttl << 8) | protocol),
+                (short) ((((ttl - 1) & 0xff) << 8) | protocol));
+        data[offset + 10] = (byte) (checksum >> 8);
+        data[offset + 11] = (byte) checksum;
+    }
+
+    /**
+     * @return the big-endian unsigned 16-bit value at a position in a buffer
+     */
+    public static int getShort(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+    }
+
+    /**
+     * @return the big-endian 32-bit value at a position in a buffer
+     */
+    public static int getInt(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+
+    /**
+     * Writes the low 16 bits of a value, big-endian, at a position in a buffer.
+     */
+    public static void putShort(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 8);
+        data[offset + 1] = (byte) value;
+    }
+
+    /**
+     * Writes a 32-bit value, big-endian, at a position in a buffer.
+     */
+    public static void putInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Folds the carries of a one's complement sum back into its low 16 bits.
+     */
+    private static int fold(int accumulation) {
+        accumulation = (accumulation & 0xffff) + (accumulation >>> 16);
+        return (accumulation & 0xffff) + (accumulation >>> 16);
+    }
+
     /**
      * Accepts an IPv4 address of the form xxx.xxx.xxx.xxx, ie 192.168.0.1 and
      * returns the corresponding 32 bit integer.
@@ -88,6 +88,15 @@ public class MACAddress {
         return Arrays.copyOf(address, address.length);
     }
 
+    /**
+     * Copies the value of the {@code MACAddress} into a {@code byte} array.
+     * @param dst the array to copy into.
+     * @param offset the position in the array of the first byte.
+     */
+    public void copyTo(byte[] dst, int offset) {
+        System.arraycopy(address, 0, dst, offset, address.length);
+    }
+
     /**
      * Returns the value of the {@code MACAddress} as a {@code long}.
      * @return the numeric value represented by this object after conversion to type {@code long}.